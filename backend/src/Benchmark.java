@@ -0,0 +1,191 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks for the Quibble back end. Each benchmark is run by name, and prints its results to the terminal:
+ *
+ *     java Benchmark names [transactions] [events]  - memory used by event names on a hot-event-skewed workload
+ *     java Benchmark sort [sizes]                   - ordering events by date, sizes given as a comma separated list
+ *     java Benchmark bloom [events] [probes]        - false positive rate of the current events name filter
+ *     java Benchmark delta [events] [changes]       - size and cost of the delta between two current events files
+ *     java Benchmark aggregate [transactions] [events] - folding ticket transactions, checked against handling
+ *                                                     each transaction on its own; exits with 1 if they differ
+ *     java Benchmark pipeline [events] [transactions] - a full back end run, sequential and pipelined
+ *     java Benchmark serve [events] [transactions]  - availability queries answered while the back end runs
+ *     java Benchmark shards [events] [transactions] [counts] - a full back end run, in one process and sharded
+ *                                                     over each number of worker processes in counts
+ *     java Benchmark archive [days] [transactions]  - size of the transaction archive and the cost of reading the
+ *                                                     history of one event
+ *     java Benchmark replay [days] [transactions] [runs] - rebuilding the master events from a year of daily runs,
+ *                                                     runs times a day, from the newest snapshot and from the start
+ *                                                     of the history
+ *     java Benchmark availability [days] [transactions] [runs] - the events with one name on a past day, rebuilt
+ *                                                     from the nearest snapshot, against a full replay
+ *     java Benchmark tombstones [events] [days]     - deleting every event of a catalog, and pruning a table run after
+ *                                                     run with and without copying it each run
+ *     java Benchmark months [days] [creates] [frontend] [csv] - months of daily runs with a growing catalog and
+ *                                                     transaction volume, written to a CSV file for plotting
+ *     java Benchmark columns [sizes]                - the sort, prune and output passes over the event table's
+ *                                                     columns, against the record layout it used to have
+ *     java Benchmark encode [events] [threads]      - writing the output files with each number of encoding threads,
+ *                                                     against formatting every line through a BufferedWriter, and
+ *                                                     the current events file cut out of unchanged master lines
+ *     java Benchmark catchup [events] [days] [transactions] - catching up on missed days in one run, against a run
+ *                                                     for each day, and against a single day's run; then checks that
+ *                                                     catching up again changes nothing
+ *     java Benchmark search frontend [events] [prefixes] - the front end's search by name prefix, loaded and mapped,
+ *                                                     with its classes in frontend, against a scan of every name
+ *
+ * Workloads are generated in memory from a fixed seed, so runs are repeatable and no input files are needed.
+ *
+ * The benchmarks are kept by area in TableBenchmarks, FileBenchmarks, RunBenchmarks, HistoryBenchmarks and
+ * FrontendBenchmarks; this class picks one by name and holds the helpers they share.
+ */
+public class Benchmark {
+    static final int SEED = 42;
+
+    public static void main(String[] args) {
+        switch (args.length < 1 ? "" : args[0]) {
+            // the event table, in memory (see TableBenchmarks)
+            case "names" -> TableBenchmarks.bench_names(int_arg(args, 1, 2000000), int_arg(args, 2, 100000));
+            case "sort" -> TableBenchmarks.bench_sort(args.length > 1 ? args[1] : "100000,1000000,10000000");
+            case "aggregate" -> TableBenchmarks.bench_aggregate(int_arg(args, 1, 2000000), int_arg(args, 2, 10000));
+            case "tombstones" -> TableBenchmarks.bench_tombstones(int_arg(args, 1, 1000000), int_arg(args, 2, 60));
+            case "columns" -> TableBenchmarks.bench_columns(args.length > 1 ? args[1] : "1000000,4000000,10000000");
+            // the files the back end writes (see FileBenchmarks)
+            case "bloom" -> FileBenchmarks.bench_bloom(int_arg(args, 1, 1000000), int_arg(args, 2, 1000000));
+            case "delta" -> FileBenchmarks.bench_delta(int_arg(args, 1, 1000000), int_arg(args, 2, 10000));
+            case "encode" -> FileBenchmarks.bench_encode(int_arg(args, 1, 5000000),
+                    args.length > 2 ? args[2] : "1,2,4");
+            // whole back end runs (see RunBenchmarks)
+            case "pipeline" -> RunBenchmarks.bench_pipeline(int_arg(args, 1, 5000000), int_arg(args, 2, 2000000));
+            case "serve" -> RunBenchmarks.bench_serve(int_arg(args, 1, 1000000), int_arg(args, 2, 2000000));
+            case "shards" -> RunBenchmarks.bench_shards(int_arg(args, 1, 2000000), int_arg(args, 2, 2000000),
+                    args.length > 3 ? args[3] : "2,4");
+            case "catchup" -> RunBenchmarks.bench_catchup(int_arg(args, 1, 2000000), int_arg(args, 2, 3),
+                    int_arg(args, 3, 200000));
+            // the transaction history (see HistoryBenchmarks)
+            case "archive" -> HistoryBenchmarks.bench_archive(int_arg(args, 1, 90), int_arg(args, 2, 100000));
+            case "replay" -> HistoryBenchmarks.bench_replay(int_arg(args, 1, 365), int_arg(args, 2, 10000),
+                    int_arg(args, 3, 2));
+            case "availability" -> HistoryBenchmarks.bench_availability(int_arg(args, 1, 120), int_arg(args, 2, 10000),
+                    int_arg(args, 3, 2));
+            // with the front end's classes (see FrontendBenchmarks)
+            case "months" -> FrontendBenchmarks.bench_months(int_arg(args, 1, 120), int_arg(args, 2, 10000),
+                    args.length > 3 ? args[3] : null, args.length > 4 ? args[4] : "months.csv");
+            case "search" -> {
+                if (args.length < 2) {
+                    usage();
+                }
+                FrontendBenchmarks.bench_search(args[1], int_arg(args, 2, 1000000), int_arg(args, 3, 200));
+            }
+            default -> usage();
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    static void delete_tree(File dir) {
+        File[] files = dir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            delete_tree(file);
+        }
+        dir.delete();
+    }
+
+    /**
+     * Runs the back end in a directory as a separate java process, with the same class path and heap settings as the
+     * benchmark, since the back end reads and writes files in its current directory.
+     */
+    static void run_backend(File dir, String... args) throws IOException, InterruptedException {
+        if (start_backend(dir, args).waitFor() != 0) {
+            System.err.println("[BACKEND ERROR] The back end failed in " + dir);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Starts the back end in a directory as a separate java process, without waiting for it to finish.
+     */
+    static Process start_backend(File dir, String... args) throws IOException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).directory(dir).inheritIO().start();
+    }
+
+    /**
+     * Returns the date of a day counted from the first of January 2027, as a YYMMDD integer, for a year or so.
+     */
+    static int day_date(int day) {
+        java.time.LocalDate date = java.time.LocalDate.of(2027, 1, 1).plusDays(day);
+        return (date.getYear() % 100) * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+
+    /**
+     * Returns a random valid date as a YYMMDD integer, within about two years.
+     */
+    static int random_date(Random random) {
+        return (26 + random.nextInt(2)) * 10000 + (1 + random.nextInt(12)) * 100 + 1 + random.nextInt(28);
+    }
+
+    /**
+     * Generates sell transactions where nine out of ten are for the first one percent of the events.
+     */
+    static String[] skewed_transactions(int count, int catalog, Random random) {
+        int hot = Math.max(1, catalog / 100);
+        String[] lines = new String[count];
+        for (int i = 0; i < count; ++i) {
+            int event = random.nextInt(10) < 9 ? random.nextInt(hot) : random.nextInt(catalog);
+            lines[i] = String.format("01 %-20s 000000 %05d", "event " + event, 1 + random.nextInt(8));
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the number of heap bytes in use after a full collection.
+     */
+    static long retained() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int int_arg(String[] args, int i, int fallback) {
+        return args.length > i ? Integer.parseInt(args[i]) : fallback;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java Benchmark names [transactions] [events]");
+        System.err.println("       java Benchmark sort [sizes]");
+        System.err.println("       java Benchmark bloom [events] [probes]");
+        System.err.println("       java Benchmark delta [events] [changes]");
+        System.err.println("       java Benchmark aggregate [transactions] [events]");
+        System.err.println("       java Benchmark pipeline [events] [transactions]");
+        System.err.println("       java Benchmark serve [events] [transactions]");
+        System.err.println("       java Benchmark shards [events] [transactions] [counts]");
+        System.err.println("       java Benchmark archive [days] [transactions]");
+        System.err.println("       java Benchmark replay [days] [transactions] [runs per day]");
+        System.err.println("       java Benchmark availability [days] [transactions] [runs per day]");
+        System.err.println("       java Benchmark tombstones [events] [days]");
+        System.err.println("       java Benchmark months [days] [creates] [frontend classes] [csv file]");
+        System.err.println("       java Benchmark columns [sizes]");
+        System.err.println("       java Benchmark encode [events] [threads]");
+        System.err.println("       java Benchmark catchup [events] [days] [transactions]");
+        System.err.println("       java Benchmark search frontend-classes [events] [prefixes]");
+        System.exit(2);
+    }
+}
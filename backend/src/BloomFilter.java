@@ -0,0 +1,172 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over event names. A filter can say for certain that a name was never added to it, but may wrongly say
+ * that a name was added (a false positive) at a rate set by the number of bits used per name: about 1% at 10 bits per
+ * name.
+ *
+ * Names are hashed from their characters with two hash functions combined as h1 + i * h2, so a filter can be written
+ * to a file by the back end and read back by any program that hashes names the same way.
+ */
+public class BloomFilter {
+    public static final int BITS_PER_NAME = 10;
+
+    private long[] bits;
+    private int hashes;   // number of bits set for each name
+
+    /**
+     * Two parameter constructor for the Bloom filter. Creates an empty filter sized for the expected number of names.
+     *
+     * @param expected - the number of names that will be added
+     * @param bits_per_name - the number of bits to use for each name
+     */
+    public BloomFilter(int expected, int bits_per_name) {
+        bits = new long[(int) Math.max(1, ((long) expected * bits_per_name + 63) / 64)];
+        // the number of hashes that gives the lowest false positive rate is ln(2) times the bits per name
+        hashes = Math.max(1, (int) Math.round(bits_per_name * Math.log(2)));
+    }
+
+    private BloomFilter(long[] bits_, int hashes_) {
+        bits = bits_;
+        hashes = hashes_;
+    }
+
+    /**
+     * Adds a name given as a range of characters to the filter.
+     *
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     */
+    public void add(CharSequence text, int start, int end) {
+        long size = bits.length * 64L;
+        int h1 = hash1(text, start, end);
+        int h2 = hash2(text, start, end);
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Adds a name to the filter.
+     *
+     * @param name - the name
+     */
+    public void add(CharSequence name) {
+        add(name, 0, name.length());
+    }
+
+    /**
+     * Adds a name given as a range of bytes to the filter, such as a name in a mapped events file. Each byte is
+     * hashed as the character with the same value, so ASCII names hash the same as bytes and as characters.
+     *
+     * @param bytes - the bytes containing the name
+     * @param start - the index of the first byte of the name
+     * @param end - the index after the last byte of the name
+     */
+    public void add(ByteBuffer bytes, int start, int end) {
+        long size = bits.length * 64L;
+        int h1 = 0;
+        int h2 = 0x811c9dc5;
+        for (int i = start; i < end; ++i) {
+            int c = bytes.get(i) & 0xff;
+            h1 = 31 * h1 + c;
+            h2 = (h2 ^ c) * 0x01000193;
+        }
+        h2 |= 1;
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if a name given as a range of characters was definitely never added to the filter.
+     *
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     * @return true if the name may have been added to the filter
+     */
+    public boolean might_contain(CharSequence text, int start, int end) {
+        long size = bits.length * 64L;
+        int h1 = hash1(text, start, end);
+        int h2 = hash2(text, start, end);
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if a name was definitely never added to the filter.
+     *
+     * @param name - the name
+     * @return true if the name may have been added to the filter
+     */
+    public boolean might_contain(CharSequence name) {
+        return might_contain(name, 0, name.length());
+    }
+
+    /**
+     * Writes the filter to a stream, as the number of hashes, the number of 64 bit words, and the words.
+     *
+     * @param out - the stream to write to
+     * @throws IOException - if the filter cannot be written
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by write.
+     *
+     * @param in - the stream to read from
+     * @return the filter
+     * @throws IOException - if the filter cannot be read
+     */
+    public static BloomFilter read(DataInputStream in) throws IOException {
+        int hashes = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    /**
+     * Hashes a range of characters the same way as String.hashCode.
+     */
+    private static int hash1(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * Hashes a range of characters with 32 bit FNV-1a, forced odd so that the probes never repeat early.
+     */
+    private static int hash2(CharSequence text, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; ++i) {
+            h = (h ^ text.charAt(i)) * 0x01000193;
+        }
+        return h | 1;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * The date of every event in the current events file, kept next to it in current-events.dates, so that a front end can
+ * list the events within a range of dates. The current events file has no dates, but its lines are in the same order
+ * as the master events lines they were written from, which are in date order; so the dates are stored as runs, one
+ * entry for each date with the line number and byte offset of its first line. The file is written with a
+ * DataOutputStream as:
+ *     the CurrentEventsStamp of the current events file
+ *     int  - the number of dates
+ *     then for each date, in date order: the date as a YYMMDD integer, its first line number and that line's offset
+ *     then the line number and offset of the END line, where the lines of the last date end
+ *
+ * A front end should ignore a dates file whose stamp does not match its current events file.
+ */
+public class CurrentEventsDates {
+    public static final String SUFFIX = ".dates";
+
+    /**
+     * Writes the dates of a current events file from the master events files its lines were written from, in the
+     * same order. The dates file is written to a temporary file first, so a front end never sees a partly written
+     * one; if the files do not line up, or the current events file is too large for int offsets, it is deleted
+     * instead, and front ends cannot list events by date.
+     *
+     * @param current_events - the new current events file, which must already be complete
+     * @param masters - the master events file, or the master events segments in date order
+     * @throws IOException - if a file cannot be read or the dates cannot be written
+     */
+    public static void write(File current_events, List<File> masters) throws IOException {
+        File dates = new File(current_events.getPath() + SUFFIX);
+        File temp = new File(dates.getPath() + ".tmp");
+        boolean complete = current_events.length() <= Integer.MAX_VALUE;
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int count = 0;
+        int line = 0;
+        try (LineReader current = new LineReader(current_events)) {
+            int previous = -1;
+            for (int m = 0; m < masters.size() && complete; ++m) {
+                try (LineReader master = new LineReader(masters.get(m))) {
+                    while (complete && master.next()) {
+                        int date = parse_date(master.get_line(), master.get_length());
+                        complete = date >= 0 && date >= previous && current.next();
+                        if (complete && date != previous) {
+                            out.writeInt(date);
+                            out.writeInt(line);
+                            out.writeInt((int) current.get_offset());
+                            ++count;
+                            previous = date;
+                        }
+                        ++line;
+                    }
+                }
+            }
+            // the END line follows the last event, and ends the file
+            complete = complete && current.next();
+            long end = complete ? current.get_offset() : 0;
+            complete = complete && !current.next();
+            if (complete) {
+                try (DataOutputStream file = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+                    CurrentEventsStamp.of(current_events).write(file);
+                    file.writeInt(count);
+                    entries.writeTo(file);
+                    file.writeInt(line);
+                    file.writeInt((int) end);
+                }
+            }
+        }
+        if (!complete) {
+            dates.delete();
+            return;
+        }
+        Files.move(temp.toPath(), dates.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the date at the start of a master events line, or -1 if it does not start with six digits.
+     */
+    private static int parse_date(byte[] line, int length) {
+        if (length < 6) {
+            return -1;
+        }
+        int date = 0;
+        for (int i = 0; i < 6; ++i) {
+            if (line[i] < '0' || line[i] > '9') {
+                return -1;
+            }
+            date = date * 10 + line[i] - '0';
+        }
+        return date;
+    }
+}
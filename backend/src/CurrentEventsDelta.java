@@ -0,0 +1,164 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes between the previous current events file and the one just written, kept next to it in
+ * current-events.delta, so that a running front end can bring the events it has loaded up to date without reading the
+ * whole file again.
+ *
+ * A front end only ever uses the first line with a name, so the delta holds one entry for each name whose first line
+ * is new (CREATED), gone (DELETED) or has a different number of tickets (CHANGED). Each entry gives the name and the
+ * tickets of its first line in the new file, so applying an entry twice, or to events that already have it, does no
+ * harm. It is written with a DataOutputStream as:
+ *     long - the generation of the current events file, one more than that of the previous file
+ *     the CurrentEventsStamp of the current events file
+ *     int  - the number of entries
+ *     then for each entry: the kind (byte), the name (writeUTF) and the tickets (int)
+ *
+ * A front end that has the events of the previous generation applies the delta; one that is further behind has to
+ * read the current events file again. Before a current events file is replaced, the old one is kept as
+ * current-events.prev (see keep_previous), and it is deleted once the delta has been written. The sessions applied to
+ * the new file are recorded before its delta is written (see ProcessedSessions).
+ */
+public class CurrentEventsDelta {
+    public static final String SUFFIX = ".delta";
+    public static final String PREVIOUS_SUFFIX = ".prev";
+    public static final byte CREATED = 0;
+    public static final byte DELETED = 1;
+    public static final byte CHANGED = 2;
+
+    /**
+     * Keeps a current events file that is about to be replaced as the previous file. If there is no current events
+     * file but a previous one is left by a run that failed, that previous file is kept instead.
+     *
+     * @param current_events - the current events file
+     * @throws IOException - if the file cannot be renamed
+     */
+    public static void keep_previous(File current_events) throws IOException {
+        if (current_events.exists()) {
+            Files.move(current_events.toPath(), previous(current_events).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the delta between the previous current events file and a new one, and deletes the previous file. With no
+     * previous file every event is created. The delta is written to a temporary file first, so a front end never sees
+     * a partly written one; if either file is too large to index, the delta is deleted instead, and front ends have
+     * to read the new file in full.
+     *
+     * @param current_events - the new current events file, which must already be complete
+     * @param index - the index of the new file, or null to build one
+     * @throws IOException - if a file cannot be read or the delta cannot be written
+     */
+    public static void write(File current_events, CurrentEventsIndex index) throws IOException {
+        write(current_events, index, Collections.emptyList());
+    }
+
+    /**
+     * Writes the delta between the previous current events file and a new one, as write(current_events, index) does,
+     * after recording the sessions of the merged transaction files applied to the new file.
+     *
+     * @param current_events - the new current events file, which must already be complete
+     * @param index - the index of the new file, or null to build one
+     * @param merged - the merged transaction files applied to the new file
+     * @throws IOException - if a file cannot be read or the delta cannot be written
+     */
+    public static void write(File current_events, CurrentEventsIndex index, List<File> merged) throws IOException {
+        File delta = new File(current_events.getPath() + SUFFIX);
+        File previous = previous(current_events);
+        long generation = read_generation(delta) + 1;
+        CurrentEventsIndex now = index != null ? index : CurrentEventsIndex.read(current_events);
+        CurrentEventsIndex before = previous.isFile() ? CurrentEventsIndex.read(previous) : null;
+        if (now == null || (previous.isFile() && before == null)) {
+            // without a delta the generations start again from 0
+            delta.delete();
+            ProcessedSessions.write(current_events, 0, merged);
+            previous.delete();
+            return;
+        }
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        int old_count = before == null ? 0 : before.get_count();
+        while (i < now.get_count() || j < old_count) {
+            int c = i == now.get_count() ? 1 : j == old_count ? -1 : now.compare_name(i, before, j);
+            if (c < 0) {
+                write_entry(out, CREATED, now.get_name(i), now.get_tickets(i));
+                ++count;
+            }
+            else if (c > 0) {
+                write_entry(out, DELETED, before.get_name(j), 0);
+                ++count;
+            }
+            else if (now.get_tickets(i) != before.get_tickets(j)) {
+                write_entry(out, CHANGED, now.get_name(i), now.get_tickets(i));
+                ++count;
+            }
+            // skip the later lines with the same name, which a front end never sees
+            if (c <= 0) {
+                i = next_name(now, i);
+            }
+            if (c >= 0) {
+                j = next_name(before, j);
+            }
+        }
+
+        ProcessedSessions.write(current_events, generation, merged);
+        File temp = new File(delta.getPath() + ".tmp");
+        try (DataOutputStream file = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            file.writeLong(generation);
+            now.get_stamp().write(file);
+            file.writeInt(count);
+            entries.writeTo(file);
+        }
+        Files.move(temp.toPath(), delta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        previous.delete();
+    }
+
+    /**
+     * Returns the generation of the current events file a delta was written for.
+     * @param delta - the delta file
+     * @return the generation, or 0 if there is no delta
+     */
+    public static long read_generation(File delta) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(delta))) {
+            return in.readLong();
+        }
+        catch (IOException e) {
+            // a missing or unreadable delta starts the generations again
+            return 0;
+        }
+    }
+
+    private static File previous(File current_events) {
+        return new File(current_events.getPath() + PREVIOUS_SUFFIX);
+    }
+
+    private static void write_entry(DataOutputStream out, byte kind, String name, int tickets) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(name);
+        out.writeInt(tickets);
+    }
+
+    /**
+     * Returns the position in name order of the first line after a line with a different name.
+     */
+    private static int next_name(CurrentEventsIndex index, int i) {
+        int next = i + 1;
+        while (next < index.get_count() && index.compare_name(next, index, i) == 0) {
+            ++next;
+        }
+        return next;
+    }
+}
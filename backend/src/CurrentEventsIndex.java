@@ -0,0 +1,281 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Sidecar files for the current events file, written by the back end next to it so that a front end can find an event
+ * without reading the whole file. The current events file itself is not changed.
+ *
+ * current-events.idx is written with a DataOutputStream as:
+ *     the CurrentEventsStamp of the current events file it was built from
+ *     int   - the number of lines
+ *     int[] - the byte offset of every line in the current events file, in name order
+ *
+ * current-events.bloom holds the same stamp followed by a BloomFilter (see BloomFilter.write) of every name in the
+ * file, so that a name that is not in the file can usually be rejected without looking at the file or the index.
+ *
+ * A line's name is everything before its last six bytes (a space and five digits of tickets) with the trailing padding
+ * removed, and names are compared byte by byte as unsigned values. The sort is stable, so lines with the same name
+ * keep their order in the file and the first of them is the one found first. The END line is indexed like any other.
+ * A front end should ignore a sidecar file whose stamp does not match its current events file.
+ */
+public class CurrentEventsIndex {
+    public static final String SUFFIX = ".idx";
+    public static final String FILTER_SUFFIX = ".bloom";
+
+    private File current_events;
+    private MappedByteBuffer file;
+    private int[] line_starts;   // offset of each line, by line number
+    private int[] name_ends;     // end of the name of each line, by line number
+    private int[] sorted;        // line numbers in name order
+    private CurrentEventsStamp stamp;   // the stamp of the file, or null until it is needed
+
+    /**
+     * Builds the index and the name filter for a current events file and writes them next to the file. Each is
+     * written to a temporary file first, so a front end never sees a partly written one.
+     *
+     * @param current_events - the current events file, which must already be complete
+     * @return the index, or null if the file is too large to index
+     * @throws IOException - if the current events file cannot be read or the index cannot be written
+     */
+    public static CurrentEventsIndex write(File current_events) throws IOException {
+        File index = new File(current_events.getPath() + SUFFIX);
+        File filter = new File(current_events.getPath() + FILTER_SUFFIX);
+        if (current_events.length() > Integer.MAX_VALUE) {
+            // offsets are stored as ints; a front end without an index falls back to scanning the file
+            index.delete();
+            filter.delete();
+            return null;
+        }
+        CurrentEventsIndex built = new CurrentEventsIndex(current_events);
+        built.write_filter(filter);
+        built.write_index(index);
+        return built;
+    }
+
+    /**
+     * Sorts the lines of a current events file by name without writing anything, or returns null if the file is too
+     * large to index.
+     *
+     * @param current_events - the current events file
+     * @return the index
+     * @throws IOException - if the file cannot be read
+     */
+    public static CurrentEventsIndex read(File current_events) throws IOException {
+        if (current_events.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new CurrentEventsIndex(current_events);
+    }
+
+    /**
+     * One parameter constructor for the index. Maps the file and sorts its lines by name.
+     * @param current_events_ - the current events file
+     */
+    private CurrentEventsIndex(File current_events_) throws IOException {
+        current_events = current_events_;
+        try (FileChannel channel = FileChannel.open(current_events.toPath())) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        sorted = find_lines();
+        sort(sorted, new int[sorted.length], 0, sorted.length);
+    }
+
+    /**
+     * Returns the stamp of the file, which identifies its content.
+     * @return the stamp
+     */
+    public CurrentEventsStamp get_stamp() {
+        if (stamp == null) {
+            stamp = CurrentEventsStamp.of(current_events, file);
+        }
+        return stamp;
+    }
+
+    /**
+     * Returns the number of lines in the file.
+     * @return the number of lines
+     */
+    public int get_count() {
+        return sorted.length;
+    }
+
+    /**
+     * Returns the name of a line, with the padding removed.
+     * @param i - the position of the line in name order
+     * @return the name
+     */
+    public String get_name(int i) {
+        int line = sorted[i];
+        byte[] name = new byte[name_ends[line] - line_starts[line]];
+        file.get(line_starts[line], name);
+        return new String(name);
+    }
+
+    /**
+     * Returns the number of tickets of a line, read from its last five bytes.
+     * @param i - the position of the line in name order
+     * @return the number of tickets
+     */
+    public int get_tickets(int i) {
+        int line = sorted[i];
+        int end = line_end(line);
+        int tickets = 0;
+        for (int j = Math.max(name_ends[line], end - 5); j < end; ++j) {
+            byte b = file.get(j);
+            if (b >= '0' && b <= '9') {
+                tickets = tickets * 10 + (b - '0');
+            }
+        }
+        return tickets;
+    }
+
+    /**
+     * Compares the name of a line to the name of a line of another index, the same way as the lines are sorted.
+     *
+     * @param i - the position of the line in name order
+     * @param other - the other index
+     * @param j - the position of the other line in the other index's name order
+     * @return the result of the comparison, as for compareTo
+     */
+    public int compare_name(int i, CurrentEventsIndex other, int j) {
+        return compare(file, line_starts[sorted[i]], name_ends[sorted[i]], other.file,
+                other.line_starts[other.sorted[j]], other.name_ends[other.sorted[j]]);
+    }
+
+    /**
+     * Writes the name filter, holding the stamp of the file and the filter.
+     */
+    private void write_filter(File filter) throws IOException {
+        BloomFilter names = new BloomFilter(sorted.length, BloomFilter.BITS_PER_NAME);
+        for (int line : sorted) {
+            names.add(file, line_starts[line], name_ends[line]);
+        }
+        File temp = new File(filter.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            get_stamp().write(out);
+            names.write(out);
+        }
+        Files.move(temp.toPath(), filter.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the index, holding the stamp of the file, the number of lines and the offset of each line by name.
+     */
+    private void write_index(File index) throws IOException {
+        File temp = new File(index.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            get_stamp().write(out);
+            out.writeInt(sorted.length);
+            for (int line : sorted) {
+                out.writeInt(line_starts[line]);
+            }
+        }
+        Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the offset of the newline that ends a line, or the end of the file for the last line.
+     */
+    private int line_end(int line) {
+        int end = name_ends[line];
+        while (end < file.limit() && file.get(end) != '\n') {
+            ++end;
+        }
+        return end;
+    }
+
+    /**
+     * Finds the start of every line in the file and the end of its name.
+     * @return the line numbers, in file order
+     */
+    private int[] find_lines() {
+        int limit = file.limit();
+        int capacity = Math.max(limit / 27, 16);
+        line_starts = new int[capacity];
+        name_ends = new int[capacity];
+        int count = 0;
+        int line = 0;
+        while (line < limit) {
+            int end = line;
+            while (end < limit && file.get(end) != '\n') {
+                ++end;
+            }
+            if (count == line_starts.length) {
+                line_starts = Arrays.copyOf(line_starts, count * 2);
+                name_ends = Arrays.copyOf(name_ends, count * 2);
+            }
+            int name_end = Math.max(line, end - 6);
+            while (name_end > line && (file.get(name_end - 1) & 0xff) <= ' ') {
+                --name_end;
+            }
+            line_starts[count] = line;
+            name_ends[count] = name_end;
+            ++count;
+            line = end + 1;
+        }
+
+        int[] lines = new int[count];
+        for (int i = 0; i < count; ++i) {
+            lines[i] = i;
+        }
+        return lines;
+    }
+
+    /**
+     * Stable merge sort of line numbers by name.
+     */
+    private void sort(int[] lines, int[] temp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(lines, temp, from, middle);
+        sort(lines, temp, middle, to);
+        if (compare(lines[middle - 1], lines[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(lines, from, temp, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; ++i) {
+            if (right >= to || (left < middle && compare(temp[left], temp[right]) <= 0)) {
+                lines[i] = temp[left++];
+            }
+            else {
+                lines[i] = temp[right++];
+            }
+        }
+    }
+
+    /**
+     * Compares the names of two lines, given by line number.
+     */
+    private int compare(int a, int b) {
+        return compare(file, line_starts[a], name_ends[a], file, line_starts[b], name_ends[b]);
+    }
+
+    /**
+     * Compares two names byte by byte as unsigned values, given by where they start and end in two files.
+     */
+    private static int compare(MappedByteBuffer a, int a_start, int a_end, MappedByteBuffer b, int b_start,
+                               int b_end) {
+        int a_length = a_end - a_start;
+        int b_length = b_end - b_start;
+        for (int i = 0; i < Math.min(a_length, b_length); ++i) {
+            int difference = (a.get(a_start + i) & 0xff) - (b.get(b_start + i) & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a_length - b_length;
+    }
+}
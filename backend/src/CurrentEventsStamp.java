@@ -0,0 +1,95 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Identifies a current events file, so that a front end can tell whether a sidecar file was written for the current
+ * events file next to it. Every sidecar holds the stamp of the file it was built from, written as:
+ *     long - the length of the file
+ *     long - the time the file was last modified, in milliseconds
+ *     int  - the CRC32 of the file
+ *
+ * Every line of a current events file is the same width, so two files with as many events have the same length; the
+ * time tells them apart, since the file is written again by every run. A front end only compares the length and the
+ * time, which it gets without reading the file, so it starts in the same time however many events there are. The
+ * CRC32 lets the back end and the benchmarks check a sidecar against the content of the file, where reading the whole
+ * file costs nothing extra. The stamp is taken once the current events file is complete, and the file must not be
+ * changed after it.
+ */
+public class CurrentEventsStamp {
+    public static final int BYTES = 20;   // bytes of a stamp in a sidecar file
+
+    private final long length;
+    private final long modified;
+    private final int checksum;
+
+    private CurrentEventsStamp(long length_, long modified_, int checksum_) {
+        length = length_;
+        modified = modified_;
+        checksum = checksum_;
+    }
+
+    /**
+     * Stamps a current events file by reading it.
+     * @param current_events - the current events file
+     * @return the stamp
+     * @throws IOException - if the file cannot be read
+     */
+    public static CurrentEventsStamp of(File current_events) throws IOException {
+        long modified = current_events.lastModified();
+        CRC32 crc = new CRC32();
+        long length = 0;
+        try (FileChannel channel = FileChannel.open(current_events.toPath())) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                length += buffer.remaining();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return new CurrentEventsStamp(length, modified, (int) crc.getValue());
+    }
+
+    /**
+     * Stamps a current events file that is already mapped.
+     * @param current_events - the current events file
+     * @param file - the whole file
+     * @return the stamp
+     */
+    public static CurrentEventsStamp of(File current_events, ByteBuffer file) {
+        CRC32 crc = new CRC32();
+        crc.update(file.duplicate().clear());
+        return new CurrentEventsStamp(file.limit(), current_events.lastModified(), (int) crc.getValue());
+    }
+
+    /**
+     * Writes the stamp at the start of a sidecar file.
+     * @param out - the sidecar file
+     * @throws IOException - if the stamp cannot be written
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(length);
+        out.writeLong(modified);
+        out.writeInt(checksum);
+    }
+
+    /**
+     * Reads the stamp at the start of a sidecar file and checks all of it, the CRC32 included, against this one.
+     * @param in - the sidecar file
+     * @return true if the sidecar was written for this version of the file
+     * @throws IOException - if the stamp cannot be read
+     */
+    public boolean matches(DataInput in) throws IOException {
+        long read_length = in.readLong();
+        long read_modified = in.readLong();
+        return read_length == length && read_modified == modified && in.readInt() == checksum;
+    }
+}
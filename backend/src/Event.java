@@ -13,9 +13,9 @@ import java.lang.Comparable;
  * This class contains methods for getting and setting attributes, as well as adding, selling, and returning
  * tickets. Input is assumed to be valid.
  */
-public class Event implements Comparable {
-    private final int MAX_TICKETS = 99999;
-    private final int MIN_TICKETS = 0;
+public class Event implements Comparable<Event> {
+    public static final int MAX_TICKETS = 99999;
+    public static final int MIN_TICKETS = 0;
     private String event_name;
     private String event_date;
     private int num_tickets;
@@ -48,13 +48,7 @@ public class Event implements Comparable {
      * @param tickets - the number of tickets to be added
      */
     public void add_tickets(int tickets) {
-        // case where too many tickets have been returned from separate terminals
-        if (num_tickets + tickets > MAX_TICKETS) {
-            num_tickets = MAX_TICKETS;
-        }
-        else {
-            num_tickets += tickets;
-        }
+        num_tickets = added_tickets(num_tickets, tickets);
     }
 
     /**
@@ -62,13 +56,39 @@ public class Event implements Comparable {
      * @param tickets
      */
     public void sell_tickets(int tickets) {
+        num_tickets = sold_tickets(num_tickets, tickets);
+    }
+
+    /**
+     * Returns the number of tickets an event has after adding tickets to it. Shared by Event and EventTable so that
+     * both apply the same limits.
+     *
+     * @param num_tickets - the number of tickets the event has
+     * @param tickets - the number of tickets to be added
+     * @return the new number of tickets
+     */
+    public static int added_tickets(int num_tickets, int tickets) {
+        // case where too many tickets have been returned from separate terminals
+        if (num_tickets + tickets > MAX_TICKETS) {
+            return MAX_TICKETS;
+        }
+        return num_tickets + tickets;
+    }
+
+    /**
+     * Returns the number of tickets an event has after selling tickets from it. Shared by Event and EventTable so
+     * that both apply the same limits.
+     *
+     * @param num_tickets - the number of tickets the event has
+     * @param tickets - the number of tickets to be sold
+     * @return the new number of tickets
+     */
+    public static int sold_tickets(int num_tickets, int tickets) {
         // case where too many tickets have been sold from separate terminals
         if (num_tickets - tickets < MIN_TICKETS) {
-            num_tickets = MIN_TICKETS;
-        }
-        else {
-            num_tickets -= tickets;
+            return MIN_TICKETS;
         }
+        return num_tickets - tickets;
     }
 
     /**
@@ -91,10 +111,9 @@ public class Event implements Comparable {
      * @param other - the other event
      * @return -1 if the event comes before another event, 0 if they are on the same day, 1 if the event comes after.
      */
-    @Override public int compareTo(Object other) {
-        Event other_event = (Event) other;
+    @Override public int compareTo(Event other) {
         int d1 = Integer.parseInt(event_date);
-        int d2 = Integer.parseInt(other_event.get_event_date());
+        int d2 = Integer.parseInt(other.get_event_date());
         if(d1 < d2) {
             return -1;
         }
@@ -0,0 +1,241 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Local HTTP endpoint that answers availability queries while the back end runs, when it is started with --serve.
+ * While a run applies transactions the output files are being replaced, so instead the back end publishes views of
+ * its event table to the server, and every request is answered from the newest published view.
+ *
+ * A view never changes once it is published. The first view holds a copy of the event table made once the master
+ * events have been read (the base); each later view holds the base and the events of every name changed since, in
+ * layers, and is made from the view before it and a new layer of the names changed by the transactions applied in
+ * between. So that publishing does not copy every change made so far, layers are merged like the digits of a binary
+ * counter: a new layer is merged with the newest layer of the view before while that layer is no more than twice its
+ * size. A change is then copied O(log n) times over a run, and a view has O(log n) layers to look through.
+ *
+ * The apply thread only ever writes its own table and swaps in a new view through a volatile field, so it never waits
+ * on a request, and a request always sees the events of one moment of the run. A new view is made at the end of a
+ * batch of transactions, at most every INTERVAL milliseconds and no more often than keeps the time spent making views
+ * under a tenth of the apply thread's time.
+ *
+ * The server listens on the loopback address only, and answers:
+ *     GET /events?name=NAME - the events named NAME as lines of the current events file, or 404 if there are none
+ *     GET /status           - the phase of the run, the view version and the number of transactions applied
+ * Event queries are answered with 503 until the master events have been read.
+ */
+public class EventServer {
+    public static final long INTERVAL = 100;   // milliseconds between published views
+
+    private HttpServer server;
+    private volatile View view;
+    private BitSet changed;            // ids of the names changed since the last view, used by the apply thread only
+    private long published;            // System.nanoTime when the last view was published
+    private long cost;                 // nanoseconds taken to make the last view
+
+    /**
+     * An immutable view of the events.
+     */
+    private static class View {
+        final EventTable base;   // copy of the table once the master events were read, or null
+        final ArrayList<HashMap<String, int[]>> layers;   // date and tickets of the events of changed names, by name
+        final long version;
+        final long applied;      // number of transactions applied
+        final String phase;
+
+        View(EventTable base_, ArrayList<HashMap<String, int[]>> layers_, long version_, long applied_,
+             String phase_) {
+            base = base_;
+            layers = layers_;
+            version = version_;
+            applied = applied_;
+            phase = phase_;
+        }
+
+        /**
+         * Returns the date and tickets of each event with a name, in the order of the current events file.
+         */
+        int[] get(String name) {
+            for (int i = layers.size() - 1; i >= 0; --i) {
+                int[] events = layers.get(i).get(name);
+                if (events != null) {
+                    return events;
+                }
+            }
+            return events_of(base, base.get_names().lookup(name));
+        }
+    }
+
+    /**
+     * One parameter constructor for the server. Starts listening at once, answering event queries with 503 until the
+     * base view is published.
+     *
+     * @param port - the port to listen on
+     * @throws IOException - if the server cannot listen on the port
+     */
+    public EventServer(int port) throws IOException {
+        view = new View(null, new ArrayList<>(), 0, 0, "reading");
+        changed = new BitSet();
+        // without TCP_NODELAY the response body waits for the client to acknowledge the headers, about 40ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/events", this::handle_events);
+        server.createContext("/status", this::handle_status);
+        server.start();
+    }
+
+    /**
+     * Publishes the first view, copying the event table.
+     * @param events - the event table once the master events have been read
+     */
+    public void publish_base(EventTable events) {
+        view = new View(events.copy(events.get_names().copy()), new ArrayList<>(), 1, 0, "applying");
+        published = System.nanoTime();
+    }
+
+    /**
+     * Notes a name whose events have changed, to be included in the next view.
+     * @param name_id - the id of the name in the event table's dictionary, or NameDictionary.NONE for no name
+     */
+    public void changed(int name_id) {
+        if (name_id != NameDictionary.NONE) {
+            changed.set(name_id);
+        }
+    }
+
+    /**
+     * Returns true if a new view should be published.
+     * @return true if INTERVAL milliseconds, and nine times as long as the last view took to make, have passed since
+     *         the last view
+     */
+    public boolean due() {
+        return System.nanoTime() - published >= Math.max(INTERVAL * 1000000, 9 * cost);
+    }
+
+    /**
+     * Publishes a view of the events after the transactions applied so far. The table must hold every change noted
+     * with changed, so any transactions folded by a TransactionAggregator must be flushed first.
+     *
+     * @param events - the event table
+     * @param applied - the number of transactions applied so far
+     */
+    public void publish(EventTable events, long applied) {
+        long start = System.nanoTime();
+        View last = view;
+        HashMap<String, int[]> layer = new HashMap<>();
+        for (int id = changed.nextSetBit(0); id >= 0; id = changed.nextSetBit(id + 1)) {
+            layer.put(events.get_names().get_name(id), events_of(events, id));
+        }
+        changed.clear();
+        ArrayList<HashMap<String, int[]>> layers = new ArrayList<>(last.layers);
+        while (!layers.isEmpty() && layers.get(layers.size() - 1).size() <= 2 * layer.size()) {
+            // the older layer is copied, since the view before still uses it
+            HashMap<String, int[]> merged = new HashMap<>(layers.remove(layers.size() - 1));
+            merged.putAll(layer);
+            layer = merged;
+        }
+        layers.add(layer);
+        view = new View(last.base, layers, last.version + 1, applied, last.phase);
+        published = System.nanoTime();
+        cost = published - start;
+    }
+
+    /**
+     * Sets the phase of the run reported by /status, keeping the events of the newest view.
+     * @param phase - the phase, such as "writing" or "done"
+     */
+    public void set_phase(String phase) {
+        View last = view;
+        view = new View(last.base, last.layers, last.version, last.applied, phase);
+    }
+
+    /**
+     * Stops the server, giving requests being answered up to a second to finish.
+     */
+    public void stop() {
+        server.stop(1);
+    }
+
+    /**
+     * Returns the date and tickets of each live event with a name, in the order of the current events file: by date,
+     * and otherwise in the order find and find_next give them.
+     */
+    private static int[] events_of(EventTable events, int name_id) {
+        int count = 0;
+        for (int record = events.find(name_id); record != EventTable.NONE; record = events.find_next(record)) {
+            ++count;
+        }
+        int[] found = new int[count * 2];
+        int i = 0;
+        for (int record = events.find(name_id); record != EventTable.NONE; record = events.find_next(record)) {
+            found[i++] = events.get_event_date(record);
+            found[i++] = events.get_num_tickets(record);
+        }
+        // insertion sort, which keeps events on the same date in order; few names have more than one event
+        for (int j = 2; j < found.length; j += 2) {
+            int date = found[j];
+            int tickets = found[j + 1];
+            int k = j;
+            while (k > 0 && found[k - 2] > date) {
+                found[k] = found[k - 2];
+                found[k + 1] = found[k - 1];
+                k -= 2;
+            }
+            found[k] = date;
+            found[k + 1] = tickets;
+        }
+        return found;
+    }
+
+    private void handle_events(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        View current = view;
+        if (query == null || !query.startsWith("name=")) {
+            respond(exchange, 400, current, "expected /events?name=NAME\n");
+            return;
+        }
+        if (current.base == null) {
+            respond(exchange, 503, current, "the master events are still being read\n");
+            return;
+        }
+        String name = URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8).trim();
+        int[] events = current.get(name);
+        if (events.length == 0) {
+            respond(exchange, 404, current, "no event named " + name + "\n");
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        for (int i = 1; i < events.length; i += 2) {
+            body.append(String.format("%-" + EventTable.NAME_WIDTH + "s %05d\n", name, events[i]));
+        }
+        respond(exchange, 200, current, body.toString());
+    }
+
+    private void handle_status(HttpExchange exchange) throws IOException {
+        View current = view;
+        respond(exchange, 200, current, String.format("phase %s\nversion %d\napplied %d\n", current.phase,
+                current.version, current.applied));
+    }
+
+    private static void respond(HttpExchange exchange, int status, View current, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.getResponseHeaders().set("Quibble-Version", Long.toString(current.version));
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,678 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Off-heap table of events for the back end. Every event is stored as a record number with its fields in direct
+ * buffers instead of as an Event object, so the size of the catalog does not affect the size of the Java heap or the
+ * length of garbage collection pauses. Records are kept in the order they were added, which is the order the back end
+ * has always used to break ties between events on the same date.
+ *
+ * Each field is kept in a column of its own, indexed by record number:
+ *     name     - the id of the event name in the table's NameDictionary
+ *     date     - the event date as a YYMMDD integer
+ *     tickets  - the number of tickets remaining
+ *     next     - the next record with the same event name, or NONE
+ *     flags    - DELETED once the event has been deleted
+ *     source   - where the unchanged master events line of the event can be copied from (see EventWriter), or NONE
+ *                for events that were created or have had their tickets changed
+ * The passes over every event read only the columns they need: ordering the events and pruning passed events read
+ * the flags and dates, five bytes an event instead of a whole record, so they touch a fifth of the memory.
+ *
+ * Events are found by name id through a direct index, which is also kept off heap. The index entry for a name points
+ * at the first live record with that name; later records with the same name (two terminals can create the same event
+ * on the same day) are chained behind it through the next field. Deleted records are only flagged, so deleting an
+ * event never moves other records.
+ *
+ * Direct buffers are limited by -XX:MaxDirectMemorySize rather than by -Xmx, which should be raised accordingly for
+ * very large catalogs.
+ */
+public class EventTable {
+    public static final int NONE = -1;             // returned when an event cannot be found
+    public static final int NAME_WIDTH = 20;       // event names are padded to this width in the output files
+
+    private static final byte DELETED = 1;
+
+    private static final int DATE_BITS = 20;       // 999999, the largest YYMMDD date, is less than 2^20
+    private static final int RADIX_BITS = 10;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+    private NameDictionary names;
+    private IntBuffer name_column;
+    private IntBuffer date_column;
+    private IntBuffer ticket_column;
+    private IntBuffer next_column;
+    private ByteBuffer flag_column;
+    private LongBuffer source_column;
+    private int allocated;      // number of records the columns can hold
+    private IntBuffer heads;    // first live record for each name id, plus one (0 when there is none)
+    private int size;           // number of records, including deleted records
+    private int live;           // number of records that have not been deleted
+    private LineEncoder encoder; // formats output lines for the write and encode methods, one thread at a time
+
+    /**
+     * One parameter constructor for the event table. Creates an empty table with a small initial capacity.
+     *
+     * @param names_ - the dictionary the event names are stored in
+     */
+    public EventTable(NameDictionary names_) {
+        this(names_, 1024);
+    }
+
+    /**
+     * Two parameter constructor for the event table. Creates an empty table able to hold the given number of events
+     * before it has to grow.
+     *
+     * @param names_ - the dictionary the event names are stored in
+     * @param capacity - the expected number of events
+     */
+    public EventTable(NameDictionary names_, int capacity) {
+        names = names_;
+        allocate_columns(Math.max(capacity, 16), 0);
+        heads = allocate(Math.max(capacity, 16) * 4).asIntBuffer();
+        size = 0;
+        live = 0;
+        encoder = new LineEncoder();
+    }
+
+    /**
+     * Returns the dictionary the event names are stored in.
+     * @return the name dictionary
+     */
+    public NameDictionary get_names() {
+        return names;
+    }
+
+    /**
+     * Returns the number of records in the table, including deleted records. Record numbers range from 0 to size - 1.
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of events in the table that have not been deleted.
+     * @return the number of live events
+     */
+    public int live() {
+        return live;
+    }
+
+    /**
+     * Grows the table so that it can hold at least the given number of records without reallocating.
+     *
+     * @param capacity - the number of records
+     */
+    public void ensure_capacity(int capacity) {
+        if (capacity > allocated) {
+            allocate_columns(capacity, size);
+        }
+    }
+
+    /**
+     * Adds an event to the end of the table. If a live event with the same name already exists, the new event is
+     * chained behind it and will only be found once the earlier events have been deleted.
+     *
+     * @param name_id - the id of the event name
+     * @param event_date - the date of the event as a YYMMDD integer
+     * @param tickets - the number of tickets for the event
+     * @return the record number of the new event
+     */
+    public int add(int name_id, int event_date, int tickets) {
+        if (size == allocated) {
+            ensure_capacity(size * 2);
+        }
+        if (name_id >= heads.capacity()) {
+            IntBuffer grown = allocate(Math.max(heads.capacity() * 2, name_id + 1) * 4).asIntBuffer();
+            heads.clear();
+            grown.put(heads);
+            heads = grown.clear();
+        }
+
+        int record = size++;
+        name_column.put(record, name_id);
+        date_column.put(record, event_date);
+        ticket_column.put(record, tickets);
+        next_column.put(record, NONE);
+        flag_column.put(record, (byte) 0);
+        source_column.put(record, NONE);
+        ++live;
+
+        int head = heads.get(name_id) - 1;
+        if (head == NONE) {
+            heads.put(name_id, record + 1);
+        }
+        else {
+            // same name as an existing event, chain the record behind the last one with this name
+            while (next(head) != NONE) {
+                head = next(head);
+            }
+            next_column.put(head, record);
+        }
+        return record;
+    }
+
+    /**
+     * Finds the first live event with the given name.
+     *
+     * @param name_id - the id of the event name, or NameDictionary.NONE
+     * @return the record number of the event, or NONE if no such event exists
+     */
+    public int find(int name_id) {
+        if (name_id < 0 || name_id >= heads.capacity()) {
+            return NONE;
+        }
+        return heads.get(name_id) - 1;
+    }
+
+    /**
+     * Finds the live event with the same name that comes after an event, the one find would return once the event
+     * is deleted.
+     *
+     * @param record - the record number of a live event
+     * @return the record number of the next event with the name, or NONE if there is none
+     */
+    public int find_next(int record) {
+        return next(record);
+    }
+
+    /**
+     * Marks an event as deleted and removes it from the name index. Any later event with the same name takes its
+     * place in the index.
+     *
+     * @param record - the record number of the event
+     */
+    public void delete(int record) {
+        if (is_deleted(record)) {
+            return;
+        }
+        int name_id = get_name_id(record);
+        int head = heads.get(name_id) - 1;
+        if (head == record) {
+            heads.put(name_id, next(record) + 1);
+        }
+        else {
+            while (next(head) != record) {
+                head = next(head);
+            }
+            next_column.put(head, next(record));
+        }
+        flag_column.put(record, DELETED);
+        --live;
+    }
+
+    /**
+     * Sells tickets for an event, following the rules of Event.sell_tickets.
+     *
+     * @param record - the record number of the event
+     * @param tickets - the number of tickets to sell
+     */
+    public void sell_tickets(int record, int tickets) {
+        set_tickets(record, Event.sold_tickets(get_num_tickets(record), tickets));
+    }
+
+    /**
+     * Adds (or returns) tickets for an event, following the rules of Event.add_tickets.
+     *
+     * @param record - the record number of the event
+     * @param tickets - the number of tickets to add
+     */
+    public void add_tickets(int record, int tickets) {
+        set_tickets(record, Event.added_tickets(get_num_tickets(record), tickets));
+    }
+
+    /**
+     * Sets the number of tickets for an event. If the number changes, the event's master events line can no longer be
+     * copied from its source.
+     *
+     * @param record - the record number of the event
+     * @param tickets - the new number of tickets
+     */
+    public void set_tickets(int record, int tickets) {
+        if (ticket_column.get(record) != tickets) {
+            ticket_column.put(record, tickets);
+            source_column.put(record, NONE);
+        }
+    }
+
+    /**
+     * Records where the master events line of an unchanged event can be copied from.
+     *
+     * @param record - the record number of the event
+     * @param source - the source of the line, as made by EventWriter.source
+     */
+    public void set_source(int record, long source) {
+        source_column.put(record, source);
+    }
+
+    /**
+     * Gets where the master events line of an event can be copied from.
+     *
+     * @param record - the record number of the event
+     * @return the source of the line, or NONE if the line has to be formatted from the record
+     */
+    public long get_source(int record) {
+        return source_column.get(record);
+    }
+
+    public boolean is_deleted(int record) {
+        return flag_column.get(record) == DELETED;
+    }
+
+    public int get_name_id(int record) {
+        return name_column.get(record);
+    }
+
+    public int get_event_date(int record) {
+        return date_column.get(record);
+    }
+
+    public int get_num_tickets(int record) {
+        return ticket_column.get(record);
+    }
+
+    /**
+     * Gets the name of an event. This creates a new string, so it should not be used on hot paths.
+     *
+     * @param record - the record number of the event
+     * @return the event name
+     */
+    public String get_event_name(int record) {
+        return names.get_name(get_name_id(record));
+    }
+
+    /**
+     * Returns the number of deleted records, which stay in the table as tombstones until it is compacted.
+     * @return the number of deleted records
+     */
+    public int tombstones() {
+        return size - live;
+    }
+
+    /**
+     * Deletes every live event before a date, the events that reading the table back from a master events file on
+     * that date would leave out.
+     *
+     * @param first_date - the date, as a YYMMDD integer
+     * @return the number of events deleted
+     */
+    public int prune(int first_date) {
+        int pruned = 0;
+        for (int record = 0; record < size; ++record) {
+            if (!is_deleted(record) && get_event_date(record) < first_date) {
+                delete(record);
+                ++pruned;
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * Relinks the events with each name in date order, keeping the order of the records for events on the same date.
+     * This is the order compacted gives them, so a table that is pruned and relinked finds the same events as one
+     * that is compacted, and writes them in the same order, without being copied.
+     */
+    public void chain_by_date() {
+        long[] chain = new long[16];
+        for (int record = 0; record < size; ++record) {
+            int name_id = get_name_id(record);
+            if (next(record) == NONE || heads.get(name_id) - 1 != record) {
+                continue;
+            }
+            int length = 0;
+            boolean ordered = true;
+            for (int r = record; r != NONE; r = next(r)) {
+                if (length == chain.length) {
+                    chain = Arrays.copyOf(chain, length * 2);
+                }
+                chain[length] = (long) get_event_date(r) << 32 | r;
+                ordered &= length == 0 || chain[length - 1] < chain[length];
+                ++length;
+            }
+            if (ordered) {
+                continue;
+            }
+            Arrays.sort(chain, 0, length);
+            heads.put(name_id, (int) chain[0] + 1);
+            for (int i = 0; i < length; ++i) {
+                next_column.put((int) chain[i], i + 1 < length ? (int) chain[i + 1] : NONE);
+            }
+        }
+    }
+
+    /**
+     * Returns the record numbers of every live event ordered by date. Events on the same date keep the order in which
+     * they were added to the table, the same as a stable sort of the old list of events.
+     *
+     * Dates are six digit YYMMDD numbers, which fit in DATE_BITS bits, so the order is produced in linear time by a
+     * least significant digit radix sort: two stable counting sorts on RADIX_BITS bits of the date each.
+     *
+     * @return the record numbers of all live events in date order
+     */
+    public int[] sorted_by_date() {
+        int[] order = new int[live];
+        int[] dates = new int[live];
+        int k = 0;
+        for (int record = 0; record < size; ++record) {
+            if (!is_deleted(record)) {
+                order[k] = record;
+                dates[k++] = get_event_date(record);
+            }
+        }
+        return radix_sort(order, dates);
+    }
+
+    /**
+     * Sorts record numbers by their dates with the radix sort of sorted_by_date, keeping records with the same date in
+     * the order they are given. Both arrays are used as scratch space.
+     *
+     * @param order - the record numbers
+     * @param dates - the date of each record, as a YYMMDD integer
+     * @return the record numbers in date order
+     */
+    static int[] radix_sort(int[] order, int[] dates) {
+        int length = order.length;
+        int[] sorted = new int[length];
+        int[] sorted_dates = new int[length];
+        int[] counts = new int[1 << RADIX_BITS];
+        for (int shift = 0; shift < DATE_BITS; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < length; ++i) {
+                ++counts[(dates[i] >>> shift) & RADIX_MASK];
+            }
+            // turn the counts into the position of the first event with each digit
+            int position = 0;
+            for (int digit = 0; digit < counts.length; ++digit) {
+                int count = counts[digit];
+                counts[digit] = position;
+                position += count;
+            }
+            for (int i = 0; i < length; ++i) {
+                int to = counts[(dates[i] >>> shift) & RADIX_MASK]++;
+                sorted[to] = order[i];
+                sorted_dates[to] = dates[i];
+            }
+
+            int[] swap = order;
+            order = sorted;
+            sorted = swap;
+            swap = dates;
+            dates = sorted_dates;
+            sorted_dates = swap;
+        }
+        return order;
+    }
+
+    /**
+     * Returns a new table holding the given records of this table, in the given order, except for events before a
+     * date. This is the table the back end would have after writing the events in that order as a master events file
+     * and reading it back on that date: records are numbered in the new order, events with the same name are chained
+     * in that order, and no record has a source. The new table shares this table's name dictionary.
+     *
+     * @param order - record numbers of live events, such as the order from sorted_by_date
+     * @param first_date - events before this date, as a YYMMDD integer, are left out
+     * @return the new table
+     */
+    public EventTable compacted(int[] order, int first_date) {
+        EventTable table = new EventTable(names, Math.max(order.length, 16));
+        for (int record : order) {
+            int date = date_column.get(record);
+            if (date >= first_date) {
+                table.add(name_column.get(record), date, ticket_column.get(record));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns a copy of the table that shares no buffers with it, so the copy can be read by other threads while this
+     * table keeps changing.
+     *
+     * @param names_ - the dictionary of the copy, normally a copy of this table's dictionary
+     * @return the copy
+     */
+    public EventTable copy(NameDictionary names_) {
+        EventTable table = new EventTable(names_, size);
+        table.name_column.put(name_column.duplicate().limit(size));
+        table.date_column.put(date_column.duplicate().limit(size));
+        table.ticket_column.put(ticket_column.duplicate().limit(size));
+        table.next_column.put(next_column.duplicate().limit(size));
+        table.flag_column.put(flag_column.duplicate().limit(size));
+        table.source_column.put(source_column.duplicate().limit(size));
+        table.clear_columns();
+        table.heads = allocate(heads.capacity() * 4).asIntBuffer().put(heads.duplicate().clear()).clear();
+        table.size = size;
+        table.live = live;
+        return table;
+    }
+
+    /**
+     * Writes an event as a line of the master events file, in the same format as Event.to_master_event.
+     *
+     * @param record - the record number of the event
+     * @param w - the writer for the master events file
+     * @throws IOException - if the line cannot be written
+     */
+    public void write_master_event(int record, Writer w) throws IOException {
+        w.write(encoder.line, 0, encoder.format_master_event(record));
+    }
+
+    /**
+     * Writes an event as a line of the current events file, in the same format as Event.to_current_event.
+     *
+     * @param record - the record number of the event
+     * @param w - the writer for the current events file
+     * @throws IOException - if the line cannot be written
+     */
+    public void write_current_event(int record, Writer w) throws IOException {
+        w.write(encoder.line, 0, encoder.format_current_event(record));
+    }
+
+    /**
+     * Encodes an event as a line of the master events file into a buffer, as bytes in the platform's default charset
+     * (the same bytes write_master_event gives through a FileWriter).
+     *
+     * @param record - the record number of the event
+     * @param out - the buffer to encode into
+     * @return false if the line does not fit in the buffer, which is then left unchanged
+     */
+    public boolean encode_master_event(int record, ByteBuffer out) {
+        return encoder.encode_master_event(record, out);
+    }
+
+    /**
+     * Encodes an event as a line of the current events file into a buffer, as bytes in the platform's default
+     * charset.
+     *
+     * @param record - the record number of the event
+     * @param out - the buffer to encode into
+     * @return false if the line does not fit in the buffer, which is then left unchanged
+     */
+    public boolean encode_current_event(int record, ByteBuffer out) {
+        return encoder.encode_current_event(record, out);
+    }
+
+    /**
+     * Encodes events as output lines, with a line buffer of its own. The write and encode methods of the table share
+     * one encoder, so only one thread may use them at a time; threads that encode events at once each need their own
+     * encoder, and the table must not change while they do.
+     */
+    public class LineEncoder {
+        private char[] line = new char[64];
+        private byte[] bytes = new byte[64];   // the line narrowed to bytes, when it is ASCII
+
+        /**
+         * Encodes an event as a line of the master events file into a buffer, the same as
+         * EventTable.encode_master_event.
+         *
+         * @param record - the record number of the event
+         * @param out - the buffer to encode into
+         * @return false if the line does not fit in the buffer, which is then left unchanged
+         */
+        public boolean encode_master_event(int record, ByteBuffer out) {
+            return encode_line(format_master_event(record), out);
+        }
+
+        /**
+         * Encodes an event as a line of the current events file into a buffer, the same as
+         * EventTable.encode_current_event.
+         *
+         * @param record - the record number of the event
+         * @param out - the buffer to encode into
+         * @return false if the line does not fit in the buffer, which is then left unchanged
+         */
+        public boolean encode_current_event(int record, ByteBuffer out) {
+            return encode_line(format_current_event(record), out);
+        }
+
+        /**
+         * Formats the master events line of an event into the line buffer.
+         * @return the length of the line, including the newline
+         */
+        private int format_master_event(int record) {
+            int name_id = name_column.get(record);
+            fit_line(14 + names.length(name_id));
+            put_digits(line, 0, 6, date_column.get(record));
+            line[6] = ' ';
+            put_digits(line, 7, 5, ticket_column.get(record));
+            line[12] = ' ';
+            int end = put_name(name_id, line, 13);
+            line[end] = '\n';
+            return end + 1;
+        }
+
+        /**
+         * Formats the current events line of an event into the line buffer.
+         * @return the length of the line, including the newline
+         */
+        private int format_current_event(int record) {
+            int name_id = name_column.get(record);
+            fit_line(7 + names.length(name_id));
+            int end = put_name(name_id, line, 0);
+            line[end] = ' ';
+            put_digits(line, end + 1, 5, ticket_column.get(record));
+            line[end + 6] = '\n';
+            return end + 7;
+        }
+
+        /**
+         * Copies the first length characters of the line buffer into a byte buffer. ASCII lines are narrowed into a
+         * byte line and copied with one bulk put; any other line goes through the default charset.
+         */
+        private boolean encode_line(int length, ByteBuffer out) {
+            if (length > out.remaining()) {
+                return false;
+            }
+            if (bytes.length < line.length) {
+                bytes = new byte[line.length];
+            }
+            for (int i = 0; i < length; ++i) {
+                char c = line[i];
+                if (c >= 0x80) {
+                    byte[] encoded = new String(line, 0, length).getBytes();
+                    if (encoded.length > out.remaining()) {
+                        return false;
+                    }
+                    out.put(encoded);
+                    return true;
+                }
+                bytes[i] = (byte) c;
+            }
+            out.put(bytes, 0, length);
+            return true;
+        }
+
+        private void fit_line(int length) {
+            if (line.length < length + NAME_WIDTH) {
+                line = new char[length + NAME_WIDTH];
+            }
+        }
+    }
+
+    /**
+     * Returns a new line encoder for a thread that encodes events of this table alongside other threads.
+     * @return the encoder
+     */
+    public LineEncoder line_encoder() {
+        return new LineEncoder();
+    }
+
+    private int next(int record) {
+        return next_column.get(record);
+    }
+
+    /**
+     * Replaces the columns with columns able to hold a number of records, copying the first records across.
+     */
+    private void allocate_columns(int capacity, int records) {
+        IntBuffer ids = allocate(capacity * 4).asIntBuffer();
+        IntBuffer dates = allocate(capacity * 4).asIntBuffer();
+        IntBuffer tickets = allocate(capacity * 4).asIntBuffer();
+        IntBuffer nexts = allocate(capacity * 4).asIntBuffer();
+        ByteBuffer flags = allocate(capacity);
+        LongBuffer sources = allocate(capacity * 8).asLongBuffer();
+        if (records > 0) {
+            ids.put(name_column.duplicate().limit(records));
+            dates.put(date_column.duplicate().limit(records));
+            tickets.put(ticket_column.duplicate().limit(records));
+            nexts.put(next_column.duplicate().limit(records));
+            flags.put(flag_column.duplicate().limit(records));
+            sources.put(source_column.duplicate().limit(records));
+        }
+        name_column = ids;
+        date_column = dates;
+        ticket_column = tickets;
+        next_column = nexts;
+        flag_column = flags;
+        source_column = sources;
+        clear_columns();
+        allocated = capacity;
+    }
+
+    /**
+     * Resets the positions of the columns after bulk copies, since the columns are only read and written by index.
+     */
+    private void clear_columns() {
+        name_column.clear();
+        date_column.clear();
+        ticket_column.clear();
+        next_column.clear();
+        flag_column.clear();
+        source_column.clear();
+    }
+
+    /**
+     * Copies an event name into a line buffer, padded on the right with spaces to NAME_WIDTH characters (longer names
+     * are not cut off, the same as String.format("%-20s")).
+     * @return the position in the line after the name
+     */
+    private int put_name(int name_id, char[] line, int offset) {
+        int end = offset + names.get_chars(name_id, line, offset);
+        while (end < offset + NAME_WIDTH) {
+            line[end++] = ' ';
+        }
+        return end;
+    }
+
+    /**
+     * Writes a non-negative number into a line buffer, padded on the left with zeros to the given width.
+     */
+    private static void put_digits(char[] line, int offset, int width, int value) {
+        for (int i = offset + width - 1; i >= offset; --i) {
+            line[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
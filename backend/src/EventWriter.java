@@ -0,0 +1,521 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Writes the master events and current events files for the back end. Most events are not touched by a day's
+ * transactions, so instead of formatting every event again, the writer copies the original bytes of unchanged events
+ * from the file they were read from (their source):
+ *     master events  - runs of unchanged events that are next to each other in the source are copied with
+ *                      FileChannel.transferTo, without passing through the Java heap
+ *     current events - the line is cut out of the source master line (name field, a space, then the tickets field)
+ *                      instead of being formatted
+ *
+ * Every other line is encoded from the table. The lines are encoded in parallel: the events are split into chunks,
+ * each encoded by its own thread into a direct buffer of its own, and the buffers are then written in order with
+ * gathering FileChannel writes, so the output is the same as encoding on one thread. Each thread cuts current events
+ * lines out of a window of its own onto the sources.
+ *
+ * Only master lines that are exactly what EventTable would write are ever used as sources (see is_canonical), and a
+ * record loses its source when its tickets change, so the output is always the same as formatting every event.
+ *
+ * Sources are registered with add_source and stored in the event table as a single long: the number of the source
+ * file in the top bits and the byte offset of the line in the rest. Sources are opened when they are registered and
+ * stay open until close is called, so the outputs can replace them while they are still being copied from.
+ *
+ * For the pipelined back end, encode and write_chunks split writing into two stages: encode turns the events into
+ * chunks of bytes (and, for the master events file, runs to copy from a source), and write_chunks writes the chunks
+ * of one file, so the encode stage runs on one thread while the files are written by others.
+ */
+public class EventWriter {
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int WINDOW = 1 << 16;   // bytes in each chunk the pipelined encoder hands on, and bytes
+                                                 // read from a source at a time when cutting out lines
+    private static final int CHUNK = 4096;       // events encoded by one task when writing an output file
+    private static final int CHUNK_BYTES = CHUNK * 48;   // room for a chunk of lines with names up to 34 characters
+
+    /**
+     * A piece of an output file: either encoded bytes, or a run of bytes to copy from a source.
+     */
+    public static class Chunk {
+        public static final Chunk END = new Chunk(null, EventTable.NONE, 0);   // marks the end of a file
+
+        ByteBuffer bytes;   // bytes to write, or null for a copy
+        long source;        // start of the run to copy, as made by source
+        long length;        // number of bytes to copy
+
+        Chunk(ByteBuffer bytes_, long source_, long length_) {
+            bytes = bytes_;
+            source = source_;
+            length = length_;
+        }
+    }
+
+    /**
+     * The bytes of a source read at once, from which the current events lines of its unchanged events are cut out.
+     * Source lines are mostly read in order, so most lines are found in the window.
+     */
+    private static class SourceWindow {
+        final ByteBuffer bytes = ByteBuffer.allocate(WINDOW);
+        int file = EventTable.NONE;   // the number of the source file in the window, or NONE
+        long start;                   // the offset in the file of the first byte of the window
+    }
+
+    private EventTable events;
+    private ArrayList<File> sources;
+    private ArrayList<FileChannel> channels;     // open channel for each source
+    private int threads;                         // number of threads encoding chunks at once
+    private ByteBuffer[] buffers;                // buffer for each chunk of a round, kept for the next file
+    private SourceWindow[] windows;              // window onto the sources for each chunk of a round
+
+    /**
+     * One parameter constructor for the event writer.
+     *
+     * @param events_ - the table of events to write
+     */
+    public EventWriter(EventTable events_) {
+        events = events_;
+        sources = new ArrayList<>();
+        channels = new ArrayList<>();
+        threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the number of chunks of an output file encoded at once. By default there is one for each processor.
+     * @param threads_ - the number of threads, or 1 to encode on the calling thread alone
+     */
+    public void set_threads(int threads_) {
+        threads = Math.max(1, threads_);
+        buffers = null;
+    }
+
+    /**
+     * Registers a file that master events lines can be copied from.
+     *
+     * @param file - a master events file or segment
+     * @return the number of the source file, for use with source
+     * @throws IOException - if the file cannot be opened
+     */
+    public int add_source(File file) throws IOException {
+        channels.add(new FileInputStream(file).getChannel());
+        sources.add(file);
+        return sources.size() - 1;
+    }
+
+    /**
+     * Closes every source.
+     *
+     * @throws IOException - if a source cannot be closed
+     */
+    public void close() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        sources.clear();
+    }
+
+    /**
+     * Makes the source of a master events line from the number of the source file and the byte offset of the line.
+     *
+     * @param file - the number of the source file
+     * @param offset - the offset of the line in the file
+     * @return the source, to be stored with EventTable.set_source
+     */
+    public static long source(int file, long offset) {
+        return ((long) file << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Returns true if a master events line is exactly what EventTable.write_master_event would write for it, so that
+     * it can be copied instead of formatted: a six digit date, a five digit ticket count, and an ASCII name padded
+     * with spaces to EventTable.NAME_WIDTH characters, each separated by a single space.
+     *
+     * @param line - the bytes of the line, without the newline
+     * @param length - the number of bytes in the line
+     * @return true if the line can be copied
+     */
+    public static boolean is_canonical(byte[] line, int length) {
+        if (length < 14 || line[6] != ' ' || line[12] != ' ' || line[13] == ' ') {
+            return false;
+        }
+        for (int i = 0; i < 12; ++i) {
+            if (i != 6 && (line[i] < '0' || line[i] > '9')) {
+                return false;
+            }
+        }
+        int name_end = length;
+        while (name_end > 13 && line[name_end - 1] == ' ') {
+            --name_end;
+        }
+        for (int i = 13; i < name_end; ++i) {
+            // control characters would be trimmed, and other characters may be more than one byte
+            if ((line[i] < ' ') || (line[i] < 0)) {
+                return false;
+            }
+        }
+        return length == 13 + Math.max(EventTable.NAME_WIDTH, name_end - 13);
+    }
+
+    /**
+     * Writes a range of events as a master events file. Runs of unchanged events are copied from their source, and
+     * the other events are encoded in parallel (see write_encoded).
+     *
+     * @param file - the file to write
+     * @param order - record numbers of events in the order they should be written
+     * @param from - the first position in order to write
+     * @param to - the position in order after the last event to write
+     * @throws IOException - if the file cannot be written or a source cannot be read
+     */
+    public void write_master(File file, int[] order, int from, int to) throws IOException {
+        write_encoded(true, file, order, from, to, null);
+    }
+
+    /**
+     * Writes a range of events as a current events file, optionally followed by the END line. The lines of unchanged
+     * events are cut out of their source, and the other events are encoded in parallel (see write_encoded).
+     *
+     * @param file - the file to write
+     * @param order - record numbers of events in the order they should be written
+     * @param from - the first position in order to write
+     * @param to - the position in order after the last event to write
+     * @param end_line - the line that finishes the file, or null for none
+     * @throws IOException - if the file cannot be written or a source cannot be read
+     */
+    public void write_current(File file, int[] order, int from, int to, String end_line) throws IOException {
+        write_encoded(false, file, order, from, to, end_line);
+    }
+
+    /**
+     * Writes a range of events as an output file, a round of chunks at a time. The events of a round are split into
+     * chunks of CHUNK events, which are encoded at once, each by its own LineEncoder into a buffer of its own, and
+     * then written in order, the bytes of neighbouring chunks with one gathering write. The file is the same as if
+     * every event were encoded in order on one thread.
+     */
+    private void write_encoded(boolean master, File file, int[] order, int from, int to, String end_line)
+            throws IOException {
+        if (buffers == null) {
+            buffers = new ByteBuffer[threads * 2];
+            windows = new SourceWindow[buffers.length];
+            for (int i = 0; i < buffers.length; ++i) {
+                buffers[i] = ByteBuffer.allocateDirect(CHUNK_BYTES);
+                windows[i] = new SourceWindow();
+            }
+        }
+        for (SourceWindow window : windows) {
+            // the sources may have been closed and others added since the last file
+            window.file = EventTable.NONE;
+        }
+        try (FileChannel target = new FileOutputStream(file).getChannel()) {
+            for (int start = from; start < to; start += CHUNK * buffers.length) {
+                int round_start = start;
+                int chunks = (int) Math.min(buffers.length, ((long) to - start + CHUNK - 1) / CHUNK);
+                IntStream tasks = IntStream.range(0, chunks);
+                List<ArrayList<Chunk>> encoded;
+                try {
+                    encoded = (threads > 1 ? tasks.parallel() : tasks).mapToObj(c -> encode_chunk(master, order,
+                            round_start + c * CHUNK, Math.min(to, round_start + (c + 1) * CHUNK), buffers[c],
+                            windows[c])).collect(Collectors.toList());
+                }
+                catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                ArrayList<ByteBuffer> gather = new ArrayList<>();
+                for (ArrayList<Chunk> pieces : encoded) {
+                    for (Chunk piece : pieces) {
+                        if (piece.bytes != null) {
+                            gather.add(piece.bytes);
+                            continue;
+                        }
+                        write_fully(gather, target);
+                        transfer(file_of(piece.source), offset_of(piece.source),
+                                offset_of(piece.source) + piece.length, target);
+                    }
+                }
+                write_fully(gather, target);
+            }
+            if (end_line != null) {
+                write_fully(new ArrayList<>(List.of(ByteBuffer.wrap(end_line.getBytes()))), target);
+            }
+        }
+    }
+
+    /**
+     * Encodes a chunk of events into a buffer, as pieces of an output file in order: the bytes of encoded lines and,
+     * for the master events file, runs of unchanged lines to copy from their source. For the current events file, the
+     * lines of unchanged events are cut out of their source through a window instead of being encoded. Lines that do
+     * not fit in the buffer go on in new buffers. A source that cannot be read is reported as an UncheckedIOException.
+     */
+    private ArrayList<Chunk> encode_chunk(boolean master, int[] order, int from, int to, ByteBuffer buffer,
+                                          SourceWindow window) {
+        EventTable.LineEncoder encoder = events.line_encoder();
+        ArrayList<Chunk> pieces = new ArrayList<>();
+        buffer.clear();
+        int mark = 0;   // start of the bytes not yet in a piece
+        long run_start = EventTable.NONE;
+        long run_end = EventTable.NONE;
+        for (int i = from; i < to; ++i) {
+            int record = order[i];
+            long source = events.get_source(record);
+            if (!master) {
+                int length = source != EventTable.NONE ? master_length(record) : 0;
+                while (!(length > 0 && length <= WINDOW ? cut_current_event(source, length, window, buffer)
+                        : encoder.encode_current_event(record, buffer))) {
+                    // a line longer than a whole buffer needs a larger one
+                    int capacity = buffer.position() == mark ? buffer.capacity() * 2 : buffer.capacity();
+                    add_bytes(buffer, mark, pieces);
+                    buffer = ByteBuffer.allocate(capacity);
+                    mark = 0;
+                }
+                continue;
+            }
+            if (source != EventTable.NONE && source == run_end) {
+                run_end += master_length(record);
+                continue;
+            }
+            if (run_start != EventTable.NONE) {
+                pieces.add(new Chunk(null, run_start, run_end - run_start));
+                run_start = EventTable.NONE;
+                run_end = EventTable.NONE;
+            }
+            if (source != EventTable.NONE) {
+                mark = add_bytes(buffer, mark, pieces);
+                run_start = source;
+                run_end = source + master_length(record);
+                continue;
+            }
+            while (!encoder.encode_master_event(record, buffer)) {
+                // a line longer than a whole buffer needs a larger one
+                int capacity = buffer.position() == mark ? buffer.capacity() * 2 : buffer.capacity();
+                add_bytes(buffer, mark, pieces);
+                buffer = ByteBuffer.allocate(capacity);
+                mark = 0;
+            }
+        }
+        add_bytes(buffer, mark, pieces);
+        if (run_start != EventTable.NONE) {
+            pieces.add(new Chunk(null, run_start, run_end - run_start));
+        }
+        return pieces;
+    }
+
+    /**
+     * Cuts the current events line of an unchanged event out of its master events line, read through a window onto
+     * its source: "DDDDDD TTTTT NAME" becomes "NAME TTTTT". The window is filled again from the start of the line if
+     * the line is not in it.
+     *
+     * @return false, with nothing written, if the line does not fit in the buffer
+     */
+    private boolean cut_current_event(long source, int length, SourceWindow window, ByteBuffer buffer) {
+        if (buffer.remaining() < length - 7) {
+            return false;
+        }
+        int file = file_of(source);
+        long offset = offset_of(source);
+        ByteBuffer bytes = window.bytes;
+        // the newline after the last line of a source may be missing, and is not needed
+        if (file != window.file || offset < window.start || offset + length - 1 > window.start + bytes.limit()) {
+            window.file = file;
+            window.start = offset;
+            bytes.clear();
+            try {
+                // positional reads leave the channel's position alone, for the other threads
+                FileChannel channel = channels.get(file);
+                int read = 0;
+                while (bytes.hasRemaining() && read >= 0) {
+                    read = channel.read(bytes, offset + bytes.position());
+                }
+                if (bytes.position() < length - 1) {
+                    throw new EOFException(sources.get(file).getPath() + " is shorter than expected");
+                }
+            }
+            catch (IOException e) {
+                window.file = EventTable.NONE;
+                throw new UncheckedIOException(e);
+            }
+            bytes.flip();
+        }
+        int at = (int) (offset - window.start);
+        buffer.put(bytes.array(), at + 13, length - 14).put((byte) ' ').put(bytes.array(), at + 7, 5).put((byte) '\n');
+        return true;
+    }
+
+    /**
+     * Adds the bytes encoded into a buffer since a mark to the pieces of a chunk.
+     * @return the new mark, the position of the buffer
+     */
+    private static int add_bytes(ByteBuffer buffer, int mark, ArrayList<Chunk> pieces) {
+        if (buffer.position() > mark) {
+            pieces.add(new Chunk(buffer.duplicate().position(mark).limit(buffer.position()), EventTable.NONE, 0));
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Writes a list of buffers to a channel with gathering writes, and empties the list.
+     */
+    private static void write_fully(ArrayList<ByteBuffer> gather, FileChannel target) throws IOException {
+        ByteBuffer[] buffers = gather.toArray(new ByteBuffer[0]);
+        int first = 0;
+        while (first < buffers.length) {
+            target.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                ++first;
+            }
+        }
+        gather.clear();
+    }
+
+    /**
+     * Encodes a range of events as chunks of the master events file and of the current events file, followed by
+     * Chunk.END on each queue. The chunks give the same files as write_master and write_current.
+     *
+     * @param stage - the stage running the encoder, which waits on the queues
+     * @param order - record numbers of events in the order they should be written
+     * @param from - the first position in order to write
+     * @param to - the position in order after the last event to write
+     * @param end_line - the line that finishes the current events file, or null for none
+     * @param master - the queue for chunks of the master events file
+     * @param current - the queue for chunks of the current events file
+     * @throws InterruptedException - if the stage is interrupted while waiting on a queue
+     */
+    public void encode(Stage stage, int[] order, int from, int to, String end_line,
+                       BlockingQueue<Chunk> master, BlockingQueue<Chunk> current) throws InterruptedException {
+        ByteBuffer master_bytes = ByteBuffer.allocate(WINDOW);
+        ByteBuffer current_bytes = ByteBuffer.allocate(WINDOW);
+        long run_start = EventTable.NONE;
+        long run_end = EventTable.NONE;
+        for (int i = from; i < to; ++i) {
+            int record = order[i];
+            long source = events.get_source(record);
+            if (source != EventTable.NONE && source == run_end) {
+                run_end += master_length(record);
+            }
+            else if (source != EventTable.NONE) {
+                master_bytes = put_run(stage, master, master_bytes, run_start, run_end);
+                run_start = source;
+                run_end = source + master_length(record);
+            }
+            else {
+                master_bytes = put_run(stage, master, master_bytes, run_start, run_end);
+                run_start = EventTable.NONE;
+                run_end = EventTable.NONE;
+                while (!events.encode_master_event(record, master_bytes)) {
+                    master_bytes = put_bytes(stage, master, master_bytes);
+                }
+            }
+            while (!events.encode_current_event(record, current_bytes)) {
+                current_bytes = put_bytes(stage, current, current_bytes);
+            }
+        }
+        master_bytes = put_run(stage, master, master_bytes, run_start, run_end);
+        if (end_line != null) {
+            byte[] end = end_line.getBytes();
+            if (end.length > current_bytes.remaining()) {
+                current_bytes = put_bytes(stage, current, current_bytes);
+            }
+            current_bytes.put(end);
+        }
+        put_bytes(stage, master, master_bytes);
+        put_bytes(stage, current, current_bytes);
+        stage.put(master, Chunk.END);
+        stage.put(current, Chunk.END);
+    }
+
+    /**
+     * Writes the chunks from a queue to a file, until Chunk.END.
+     *
+     * @param stage - the stage running the writer, which waits on the queue
+     * @param chunks - the chunks of the file
+     * @param file - the file to write
+     * @throws IOException - if the file cannot be written or a source cannot be read
+     * @throws InterruptedException - if the stage is interrupted while waiting on the queue
+     */
+    public void write_chunks(Stage stage, BlockingQueue<Chunk> chunks, File file)
+            throws IOException, InterruptedException {
+        try (FileChannel target = new FileOutputStream(file).getChannel()) {
+            Chunk chunk;
+            while ((chunk = stage.take(chunks)) != Chunk.END) {
+                if (chunk.bytes == null) {
+                    transfer(file_of(chunk.source), offset_of(chunk.source), offset_of(chunk.source) + chunk.length,
+                            target);
+                    continue;
+                }
+                while (chunk.bytes.hasRemaining()) {
+                    target.write(chunk.bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the encoded bytes in a buffer to a queue, if there are any, and returns an empty buffer large enough for
+     * the next line.
+     */
+    private ByteBuffer put_bytes(Stage stage, BlockingQueue<Chunk> queue, ByteBuffer bytes)
+            throws InterruptedException {
+        if (bytes.position() == 0) {
+            // the line is larger than a whole buffer
+            return ByteBuffer.allocate(bytes.capacity() * 2);
+        }
+        bytes.flip();
+        stage.put(queue, new Chunk(bytes, EventTable.NONE, 0));
+        return ByteBuffer.allocate(WINDOW);
+    }
+
+    /**
+     * Hands a run of master events lines to copy to a queue, after the bytes encoded before it. Returns the buffer to
+     * encode into next.
+     */
+    private ByteBuffer put_run(Stage stage, BlockingQueue<Chunk> queue, ByteBuffer bytes, long start, long end)
+            throws InterruptedException {
+        if (start == EventTable.NONE || start == end) {
+            return bytes;
+        }
+        if (bytes.position() > 0) {
+            bytes = put_bytes(stage, queue, bytes);
+        }
+        stage.put(queue, new Chunk(null, start, end - start));
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes in the master events line of a record, including the newline. Only valid for
+     * records that have a source, since those names are ASCII.
+     */
+    private int master_length(int record) {
+        return 14 + Math.max(EventTable.NAME_WIDTH, events.get_names().length(events.get_name_id(record)));
+    }
+
+    /**
+     * Copies a run of bytes from a source to a channel. Sources are only read with positional reads, so several
+     * threads can copy from the same source at once.
+     */
+    private void transfer(int file, long start, long end, FileChannel target) throws IOException {
+        FileChannel channel = channels.get(file);
+        while (start < end) {
+            long copied = channel.transferTo(start, end - start, target);
+            if (copied <= 0) {
+                throw new EOFException(sources.get(file).getPath() + " is shorter than expected");
+            }
+            start += copied;
+        }
+    }
+
+    private static int file_of(long source) {
+        return (int) (source >>> OFFSET_BITS);
+    }
+
+    private static long offset_of(long source) {
+        return source & OFFSET_MASK;
+    }
+}
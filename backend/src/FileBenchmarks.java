@@ -0,0 +1,279 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Benchmarks of the files the back end writes: the current events name filter, the delta between two current events
+ * files, and encoding the output files. See Benchmark for how each is run.
+ */
+public class FileBenchmarks {
+    /**
+     * Measures the false positive rate of the name filter that the back end writes next to the current events file,
+     * for the names a front end actually misses on: real event names with one character mistyped. The filter is
+     * written by CurrentEventsIndex from a generated current events file and read back the way a front end reads it.
+     *
+     * @param catalog - the number of events in the current events file
+     * @param probes - the number of mistyped names to look up
+     */
+    static void bench_bloom(int catalog, int probes) {
+        try {
+            File dir = Files.createTempDirectory("quibble-bloom").toFile();
+            File current_events = new File(dir, "current-events");
+            String[] names = new String[catalog];
+            HashSet<String> known = new HashSet<>();
+            try (Writer out = new BufferedWriter(new FileWriter(current_events))) {
+                for (int i = 0; i < catalog; ++i) {
+                    names[i] = "event " + i;
+                    known.add(names[i]);
+                    out.write(String.format("%-20s %05d%n", names[i], i % 100000));
+                }
+                out.write(String.format("%-20s 00000", "END"));
+            }
+            long start = System.nanoTime();
+            CurrentEventsIndex.write(current_events);
+            long build = System.nanoTime() - start;
+
+            BloomFilter filter;
+            File filter_file = new File(current_events.getPath() + CurrentEventsIndex.FILTER_SUFFIX);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filter_file)))) {
+                if (!CurrentEventsStamp.of(current_events).matches(in)) {
+                    throw new IOException("the name filter was not written for " + current_events);
+                }
+                filter = BloomFilter.read(in);
+            }
+
+            int missing = 0;
+            for (String name : names) {
+                if (!filter.might_contain(name)) {
+                    ++missing;
+                }
+            }
+
+            Random random = new Random(Benchmark.SEED);
+            String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789 ";
+            String[] mistyped = new String[probes];
+            for (int i = 0; i < probes; ++i) {
+                String name;
+                do {
+                    char[] chars = names[random.nextInt(catalog)].toCharArray();
+                    chars[random.nextInt(chars.length)] = alphabet.charAt(random.nextInt(alphabet.length()));
+                    name = new String(chars).trim();
+                } while (known.contains(name));
+                mistyped[i] = name;
+            }
+            start = System.nanoTime();
+            int positives = 0;
+            for (String name : mistyped) {
+                if (filter.might_contain(name)) {
+                    ++positives;
+                }
+            }
+            long time = System.nanoTime() - start;
+
+            // with k hashes and m bits for n names, the expected rate is (1 - e^(-kn/m))^k
+            int k = (int) Math.round(BloomFilter.BITS_PER_NAME * Math.log(2));
+            double expected = Math.pow(1 - Math.exp(-(double) k / BloomFilter.BITS_PER_NAME), k);
+            System.out.printf("bloom: %,d events, %d bits per name, %,d bytes, written in %.1f ms%n",
+                    catalog, BloomFilter.BITS_PER_NAME, filter_file.length(), build / 1e6);
+            System.out.printf("    false negatives: %d%n", missing);
+            System.out.printf("    mistyped names: %,d, false positives: %,d (%.3f%%, expected %.3f%%), "
+                    + "%.0f ns per lookup%n",
+                    probes, positives, 100.0 * positives / probes, 100 * expected, (double) time / probes);
+
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to write benchmark files: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes a current events file, then a second one in which a number of events have been sold, deleted or created,
+     * and times writing the delta between them against the index the back end already writes. The delta is checked to
+     * hold one entry for each change.
+     *
+     * @param catalog - the number of events in the first file
+     * @param changes - the number of events changed in the second file
+     */
+    static void bench_delta(int catalog, int changes) {
+        try {
+            File dir = Files.createTempDirectory("quibble-delta").toFile();
+            File current_events = new File(dir, "current-events");
+            int[] tickets = new int[catalog + changes];
+            Random random = new Random(Benchmark.SEED);
+            for (int i = 0; i < catalog; ++i) {
+                tickets[i] = random.nextInt(100000);
+            }
+            write_current_events(current_events, tickets, catalog);
+            CurrentEventsDelta.write(current_events, CurrentEventsIndex.write(current_events));
+
+            // a tenth of the changes delete an event and a tenth create one, the rest sell tickets
+            int created = catalog;
+            HashSet<Integer> changed = new HashSet<>();
+            while (changed.size() < changes) {
+                int kind = random.nextInt(10);
+                if (kind == 0) {
+                    tickets[created] = random.nextInt(100000);
+                    changed.add(created++);
+                    continue;
+                }
+                int event = random.nextInt(catalog);
+                if (tickets[event] > 0 && changed.add(event)) {
+                    tickets[event] = kind == 1 ? -1 : tickets[event] - 1;
+                }
+            }
+            CurrentEventsDelta.keep_previous(current_events);
+            write_current_events(current_events, tickets, created);
+
+            long start = System.nanoTime();
+            CurrentEventsIndex index = CurrentEventsIndex.write(current_events);
+            long indexed = System.nanoTime();
+            CurrentEventsDelta.write(current_events, index);
+            long end = System.nanoTime();
+
+            File delta = new File(current_events.getPath() + CurrentEventsDelta.SUFFIX);
+            int entries;
+            try (DataInputStream in = new DataInputStream(new FileInputStream(delta))) {
+                in.readLong();
+                if (!CurrentEventsStamp.of(current_events).matches(in)) {
+                    throw new IOException("the delta was not written for " + current_events);
+                }
+                entries = in.readInt();
+            }
+            System.out.printf("delta: %,d events, %,d changes%n", catalog, changes);
+            System.out.printf("    current events %,d bytes, delta %,d bytes, %,d entries (%s)%n",
+                    current_events.length(), delta.length(), entries, entries == changes ? "correct" : "WRONG");
+            System.out.printf("    index and filter %.1f ms, delta %.1f ms%n", (indexed - start) / 1e6,
+                    (end - indexed) / 1e6);
+            Benchmark.delete_tree(dir);
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to write benchmark files: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes a current events file of events named by their position, leaving out events with -1 tickets.
+     */
+    private static void write_current_events(File file, int[] tickets, int count) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (int i = 0; i < count; ++i) {
+                if (tickets[i] >= 0) {
+                    out.write(String.format("%-20s %05d%n", "event " + i, tickets[i]));
+                }
+            }
+            out.write(String.format("%-20s 00000", "END"));
+        }
+    }
+
+    /**
+     * Times writing a catalog as a master events file and a current events file with EventWriter, encoding the lines
+     * of each round of chunks on each number of threads, against formatting every line with write_master_event and
+     * write_current_event through a BufferedWriter, a file at a time as the back end writes them. No event has a
+     * source, so every line is encoded, as for a master events file after a replay. Then the current events file
+     * alone is written with every event encoded, and with every event unchanged since it was read from the master
+     * events file just written, so that its lines are cut out of the master lines. Each way is run three times and
+     * the best time is kept, and every way has to write the same bytes.
+     *
+     * @param catalog - the number of events
+     * @param threads - comma separated list of thread counts
+     */
+    static void bench_encode(int catalog, String threads) {
+        try {
+            Random random = new Random(Benchmark.SEED);
+            EventTable events = new EventTable(new NameDictionary(), catalog);
+            for (int i = 0; i < catalog; ++i) {
+                int name_id = events.get_names().intern("EVENT" + i + "X".repeat(random.nextInt(8)));
+                events.add(name_id, Benchmark.random_date(random), random.nextInt(Event.MAX_TICKETS + 1));
+            }
+            int[] order = events.sorted_by_date();
+            String end_line = String.format("%-" + EventTable.NAME_WIDTH + "s %05d", "END", 0);
+            File dir = Files.createTempDirectory("quibble-encode").toFile();
+            System.out.printf("encode: %,d events, %d processors%n", catalog,
+                    Runtime.getRuntime().availableProcessors());
+
+            File[] expected = {new File(dir, "master-events.expected"), new File(dir, "current-events.expected")};
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 3; ++run) {
+                long start = System.nanoTime();
+                try (Writer master = new BufferedWriter(new FileWriter(expected[0]), 1 << 16)) {
+                    for (int record : order) {
+                        events.write_master_event(record, master);
+                    }
+                }
+                try (Writer current = new BufferedWriter(new FileWriter(expected[1]), 1 << 16)) {
+                    for (int record : order) {
+                        events.write_current_event(record, current);
+                    }
+                    current.write(end_line);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("    %-18s %8.1f ms%n", "buffered writer", best / 1e6);
+
+            File[] written = {new File(dir, "master-events"), new File(dir, "current-events")};
+            for (String count : threads.split(",")) {
+                EventWriter writer = new EventWriter(events);
+                writer.set_threads(Integer.parseInt(count));
+                long encoded = Long.MAX_VALUE;
+                for (int run = 0; run < 3; ++run) {
+                    long start = System.nanoTime();
+                    writer.write_master(written[0], order, 0, order.length);
+                    writer.write_current(written[1], order, 0, order.length, end_line);
+                    encoded = Math.min(encoded, System.nanoTime() - start);
+                }
+                writer.close();
+                boolean same = true;
+                for (int i = 0; i < written.length; ++i) {
+                    same &= Arrays.equals(Files.readAllBytes(expected[i].toPath()),
+                            Files.readAllBytes(written[i].toPath()));
+                }
+                System.out.printf("    %-18s %8.1f ms  (%.2fx)  same output: %b%n", count + " threads",
+                        encoded / 1e6, (double) best / encoded, same);
+            }
+
+            // the current events file alone, encoded, then cut out of the master events lines of unchanged events
+            File source = new File(dir, "master-events.source");
+            Files.copy(written[0].toPath(), source.toPath());
+            EventWriter writer = new EventWriter(events);
+            long[] times = {Long.MAX_VALUE, Long.MAX_VALUE};
+            boolean same = true;
+            for (int pass = 0; pass < 2; ++pass) {
+                if (pass == 1) {
+                    int file = writer.add_source(source);
+                    try (LineReader in = new LineReader(source)) {
+                        for (int record : order) {
+                            in.next();
+                            events.set_source(record, EventWriter.source(file, in.get_offset()));
+                        }
+                    }
+                }
+                for (int run = 0; run < 3; ++run) {
+                    long start = System.nanoTime();
+                    writer.write_current(written[1], order, 0, order.length, end_line);
+                    times[pass] = Math.min(times[pass], System.nanoTime() - start);
+                }
+                same &= Arrays.equals(Files.readAllBytes(expected[1].toPath()),
+                        Files.readAllBytes(written[1].toPath()));
+            }
+            writer.close();
+            System.out.printf("    current events encoded %.1f ms, cut out of the master lines %.1f ms  (%.2fx)  "
+                    + "same output: %b%n", times[0] / 1e6, times[1] / 1e6, (double) times[0] / times[1], same);
+            Benchmark.delete_tree(dir);
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to write the output files: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Benchmarks that load the front end's classes from a directory given on the command line: months of daily runs with
+ * a growing catalog, and searching by name prefix. See Benchmark for how each is run.
+ */
+public class FrontendBenchmarks {
+    /**
+     * Simulates months of operation, starting with no events. Every day creates a number of new events for the next
+     * six months, so the catalog keeps growing until the first of them pass, and the number of ticket transactions
+     * grows by the number of creates every ten days. Each day the back end runs as a separate process, as it does in
+     * production, and its running time (including starting the JVM) and the size of everything it writes are
+     * recorded. If the front end's class directory is given, the new current events file is then opened by a front
+     * end loaded in a class loader of its own, so that nothing is shared with the day before: once loading every
+     * event, recording the time and the heap the front end keeps, and once mapping the file.
+     *
+     * One line per day is written to a CSV file. At the end the cost of each added event or transaction is printed
+     * for each quarter of the run: a cost that rises from quarter to quarter is where the back end or the front end
+     * stops scaling linearly.
+     *
+     * @param days - the number of days to simulate
+     * @param creates - the number of events created each day
+     * @param frontend - the directory of the front end's classes, or null to leave the front end out
+     * @param csv - the file to write the results to
+     */
+    static void bench_months(int days, int creates, String frontend, String csv) {
+        try {
+            File dir = Files.createTempDirectory("quibble-months").toFile();
+            File current_events = new File(dir, "current-events");
+            URL[] frontend_path = frontend == null ? null : new URL[] {new File(frontend).toURI().toURL()};
+            new File(dir, "master-events").createNewFile();
+            System.out.printf("months: %d days, %,d events created a day, front end %s%n", days, creates,
+                    frontend == null ? "left out" : frontend);
+
+            Random random = new Random(Benchmark.SEED);
+            long[] work = new long[days];       // events and transactions in each run
+            long[][] costs = new long[3][days];  // backend ns, front end load ns and front end heap bytes, by day
+            int created = 0;
+            try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(csv)))) {
+                out.println("day,date,events,transactions,backend_ms,master_bytes,current_bytes,sidecar_bytes,"
+                        + "archive_bytes,snapshot_bytes,frontend_load_ms,frontend_map_ms,frontend_heap_bytes");
+                for (int day = 0; day < days; ++day) {
+                    int transactions = creates * (1 + day / 10);
+                    try (Writer merged = new BufferedWriter(new FileWriter(new File(dir, "merged-transactions")),
+                            1 << 16)) {
+                        for (int i = 0; i < creates; ++i) {
+                            merged.write(String.format("03 %-20s %06d %05d%n", "event " + created++,
+                                    Benchmark.day_date(day + 1 + random.nextInt(180)),
+                                    1 + random.nextInt(Event.MAX_TICKETS)));
+                        }
+                        for (int i = 0; i < transactions; ++i) {
+                            // mostly events created in the last six months, some of which will have passed
+                            String name = "event " + (created - 1 - random.nextInt(Math.min(created, creates * 180)));
+                            int kind = random.nextInt(100);
+                            String code = kind < 70 ? "01" : kind < 85 ? "02" : kind < 99 ? "04" : "05";
+                            merged.write(String.format("%s %-20s 000000 %05d%n", code, name, 1 + random.nextInt(20)));
+                        }
+                        merged.write(String.format("00 %-20s 000000 00000%n", ""));
+                    }
+
+                    String date = String.format("%06d", Benchmark.day_date(day));
+                    long start = System.nanoTime();
+                    Benchmark.run_backend(dir, "--date", date);
+                    costs[0][day] = System.nanoTime() - start;
+                    // every current events line is 27 bytes, and the END line is 26 without a newline
+                    long events = (current_events.length() - 26) / 27;
+                    work[day] = events + creates + transactions;
+                    long sidecars = 0;
+                    for (String suffix : new String[] {CurrentEventsIndex.SUFFIX, CurrentEventsIndex.FILTER_SUFFIX,
+                            CurrentEventsDelta.SUFFIX}) {
+                        sidecars += new File(current_events.getPath() + suffix).length();
+                    }
+                    long snapshots = 0;
+                    File[] taken = new File(dir, Snapshots.DIRECTORY).listFiles();
+                    for (File file : taken == null ? new File[0] : taken) {
+                        snapshots += file.length();
+                    }
+
+                    String load = "";
+                    String map = "";
+                    String heap = "";
+                    if (frontend_path != null) {
+                        long before = Benchmark.retained();
+                        start = System.nanoTime();
+                        Object fe = open_frontend(frontend_path, current_events, false);
+                        costs[1][day] = System.nanoTime() - start;
+                        costs[2][day] = Benchmark.retained() - before;
+                        Reference.reachabilityFence(fe);
+                        fe = null;
+                        start = System.nanoTime();
+                        open_frontend(frontend_path, current_events, true);
+                        long mapped = System.nanoTime() - start;
+                        load = String.format("%.1f", costs[1][day] / 1e6);
+                        map = String.format("%.1f", mapped / 1e6);
+                        heap = Long.toString(costs[2][day]);
+                    }
+                    out.printf("%d,%s,%d,%d,%.1f,%d,%d,%d,%d,%d,%s,%s,%s%n", day, date, events, creates + transactions,
+                            costs[0][day] / 1e6, new File(dir, "master-events").length(), current_events.length(),
+                            sidecars, new File(dir, TransactionArchive.FILE).length()
+                            + new File(dir, TransactionArchive.INDEX).length(), snapshots, load, map, heap);
+                    out.flush();
+                }
+            }
+            System.out.println("    wrote " + csv);
+
+            if (days >= 8) {
+                print_growth("backend", "us per event or transaction", work, costs[0], 1e3);
+                if (frontend_path != null) {
+                    print_growth("front end load", "us per event or transaction", work, costs[1], 1e3);
+                    print_growth("front end heap", "bytes per event or transaction", work, costs[2], 1);
+                }
+            }
+            Benchmark.delete_tree(dir);
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (ReflectiveOperationException e) {
+            System.err.println("[INTERNAL ERROR] Unable to start the front end from " + frontend + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Opens a current events file with a front end whose classes are loaded afresh from a class path, and returns the
+     * front end. The front end's classes share names with the back end's, so they are not loaded through the class
+     * path of the benchmark.
+     */
+    private static Object open_frontend(URL[] path, File current_events, boolean mapped)
+            throws IOException, ReflectiveOperationException {
+        try (URLClassLoader loader = new URLClassLoader(path, ClassLoader.getPlatformClassLoader())) {
+            return loader.loadClass("QuibbleFE").getConstructor(String.class, boolean.class)
+                    .newInstance(current_events.getPath(), mapped);
+        }
+    }
+
+    /**
+     * Prints the marginal cost of a measurement between consecutive quarters of a run: the growth of the mean
+     * measurement over the growth of the mean amount of work. Constant costs, such as starting a JVM, cancel out, so
+     * a cost that keeps rising means the measurement grows faster than the work.
+     *
+     * @param name - the name of the measurement
+     * @param unit - the unit of the cost, after scaling
+     * @param work - the amount of work on each day
+     * @param measured - the measurement on each day
+     * @param scale - the measurement units in one unit of cost
+     */
+    private static void print_growth(String name, String unit, long[] work, long[] measured, double scale) {
+        double[] means = new double[4];
+        double[] amounts = new double[4];
+        for (int q = 0; q < 4; ++q) {
+            int from = work.length * q / 4;
+            int to = work.length * (q + 1) / 4;
+            for (int day = from; day < to; ++day) {
+                means[q] += (double) measured[day] / (to - from);
+                amounts[q] += (double) work[day] / (to - from);
+            }
+        }
+        StringBuilder line = new StringBuilder(String.format("    %-15s", name + ":"));
+        double[] slopes = new double[3];
+        for (int q = 0; q < 3; ++q) {
+            slopes[q] = (means[q + 1] - means[q]) / (amounts[q + 1] - amounts[q]) / scale;
+            line.append(String.format(" %8.3f", slopes[q]));
+        }
+        line.append(String.format(" %s between quarters (%.2fx)", unit, slopes[2] / slopes[0]));
+        System.out.println(line);
+    }
+
+    /**
+     * Searches a catalog by name prefix with the front end's search command, with the events loaded and mapped, against
+     * a scan of every name, which is what a search costs without the names in order. Names are two words and a number,
+     * and the prefixes are the starts of random names, so short prefixes find many events and long prefixes few. The
+     * cost of a search should follow the number of events it finds, not the size of the catalog. The first search with
+     * the events loaded puts their names in order, and is timed on its own, with and without the name index. Every
+     * search is checked to find the same number of events with the events loaded and mapped, and the scans to find as
+     * many.
+     *
+     * @param frontend - the directory of the front end's classes
+     * @param catalog - the number of events
+     * @param prefixes - the number of prefixes of each length to search for
+     */
+    static void bench_search(String frontend, int catalog, int prefixes) {
+        String[] words = {"rock", "jazz", "opera", "ballet", "comedy", "concert", "circus", "choir", "derby", "drama",
+                "expo", "fair", "festival", "film", "folk", "gala", "game", "hockey", "jam", "lecture", "market",
+                "match", "musical", "orchestra", "parade", "play", "poetry", "quiz", "race", "recital", "show", "tour"};
+        try {
+            File dir = Files.createTempDirectory("quibble-search").toFile();
+            File current_events = new File(dir, "current-events");
+            Random random = new Random(Benchmark.SEED);
+            String[] names = new String[catalog];
+            try (Writer out = new BufferedWriter(new FileWriter(current_events), 1 << 16)) {
+                for (int i = 0; i < catalog; ++i) {
+                    String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " "
+                            + random.nextInt(10000);
+                    // the name field of a line is 20 characters
+                    names[i] = name.substring(0, Math.min(name.length(), 20)).trim();
+                    out.write(String.format("%-20s %05d%n", names[i], random.nextInt(Event.MAX_TICKETS + 1)));
+                }
+                out.write(String.format("%-20s 00000", "END"));
+            }
+            CurrentEventsIndex.write(current_events);
+            System.out.printf("search: %,d events, %,d prefixes of each length%n", catalog, prefixes);
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[] {new File(frontend).toURI().toURL()},
+                    ClassLoader.getPlatformClassLoader())) {
+                Method search = loader.loadClass("EventCatalog").getMethod("search", String.class, Consumer.class);
+                Object[] catalogs = {open_catalog(loader, current_events, false),
+                        open_catalog(loader, current_events, true)};
+                long[] found = new long[1];
+                Consumer<Object> count = event -> ++found[0];
+                // the loaded catalog puts its names in order on the first search, which is timed with a prefix no name
+                // has, from the back end's name index and then by sorting the names without it
+                long start = System.nanoTime();
+                search.invoke(catalogs[0], "~", count);
+                long ordered = System.nanoTime() - start;
+                new File(current_events.getPath() + CurrentEventsIndex.SUFFIX).delete();
+                Object unindexed = open_catalog(loader, current_events, false);
+                start = System.nanoTime();
+                search.invoke(unindexed, "~", count);
+                long sorted = System.nanoTime() - start;
+                System.out.printf("    loaded names put in order by the first search in %.1f ms from the name index, "
+                        + "%.1f ms by sorting them%n", ordered / 1e6, sorted / 1e6);
+
+                boolean same = true;
+                for (int length : new int[] {3, 6, 9, 12}) {
+                    String[] starts = new String[prefixes];
+                    for (int i = 0; i < prefixes; ++i) {
+                        String name = names[random.nextInt(catalog)];
+                        starts[i] = name.substring(0, Math.min(length, name.length()));
+                    }
+                    long[][] results = new long[2][prefixes];
+                    long[] times = new long[2];
+                    for (int c = 0; c < catalogs.length; ++c) {
+                        start = System.nanoTime();
+                        for (int i = 0; i < prefixes; ++i) {
+                            found[0] = 0;
+                            search.invoke(catalogs[c], starts[i], count);
+                            results[c][i] = found[0];
+                        }
+                        times[c] = System.nanoTime() - start;
+                    }
+                    same &= Arrays.equals(results[0], results[1]);
+
+                    // scanning every name is slow, so only a few prefixes are scanned
+                    int scanned = Math.min(prefixes, 20);
+                    start = System.nanoTime();
+                    for (int i = 0; i < scanned; ++i) {
+                        HashSet<String> matches = new HashSet<>();
+                        for (String name : names) {
+                            if (name.startsWith(starts[i])) {
+                                matches.add(name);
+                            }
+                        }
+                        same &= matches.size() == results[0][i];
+                    }
+                    long scan = System.nanoTime() - start;
+
+                    long total = Arrays.stream(results[0]).sum();
+                    System.out.printf("    prefix of %2d: %,10.1f events found, loaded %,9.1f us, mapped %,9.1f us, "
+                            + "scan %,9.1f us a search%n", length, (double) total / prefixes,
+                            times[0] / 1e3 / prefixes, times[1] / 1e3 / prefixes, scan / 1e3 / scanned);
+                    System.out.printf("                  loaded %,6.0f ns, mapped %,6.0f ns an event found%n",
+                            (double) times[0] / Math.max(1, total), (double) times[1] / Math.max(1, total));
+                }
+                System.out.println("    same events found: " + same);
+            }
+            Benchmark.delete_tree(dir);
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to write benchmark files: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (ReflectiveOperationException e) {
+            System.err.println("[INTERNAL ERROR] Unable to start the front end from " + frontend + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Opens a current events file with a front end loaded through a class loader, and returns its event catalog.
+     */
+    private static Object open_catalog(ClassLoader loader, File current_events, boolean mapped)
+            throws ReflectiveOperationException {
+        Class<?> fe = loader.loadClass("QuibbleFE");
+        Field events = fe.getDeclaredField("current_events");
+        events.setAccessible(true);
+        return events.get(fe.getConstructor(String.class, boolean.class).newInstance(current_events.getPath(), mapped));
+    }
+}
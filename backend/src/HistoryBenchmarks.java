@@ -0,0 +1,251 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks of the transaction history the back end keeps: the size of the archive, replaying a year of daily runs
+ * and rebuilding a past day from the nearest snapshot. See Benchmark for how each is run.
+ */
+public class HistoryBenchmarks {
+    /**
+     * Archives a number of days of hot-event-skewed transactions over 100,000 events, then reads back the history of
+     * a hot event and of a cold event, over every day and over a single day. Reports the archive size against the raw
+     * transaction files, and how many blocks each history had to decompress. Each history is checked against a scan
+     * of the raw files.
+     *
+     * @param days - the number of days to archive
+     * @param transactions - the number of transactions on each day
+     */
+    static void bench_archive(int days, int transactions) {
+        try {
+            File dir = Files.createTempDirectory("quibble-archive").toFile();
+            File merged = new File(dir, "merged-transactions");
+            TransactionArchive archive = new TransactionArchive(dir);
+            Random random = new Random(Benchmark.SEED);
+            int catalog = 100000;
+            ArrayList<String[]> all = new ArrayList<>();
+            long raw = 0;
+            long start = System.nanoTime();
+            long writing = 0;
+            for (int day = 0; day < days; ++day) {
+                String[] lines = Benchmark.skewed_transactions(transactions, catalog, random);
+                all.add(lines);
+                try (Writer out = new BufferedWriter(new FileWriter(merged), 1 << 16)) {
+                    for (String line : lines) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                }
+                raw += merged.length();
+                start = System.nanoTime();
+                archive.append(merged, Benchmark.day_date(day));
+                writing += System.nanoTime() - start;
+            }
+            long archived = new File(dir, TransactionArchive.FILE).length()
+                    + new File(dir, TransactionArchive.INDEX).length();
+            System.out.printf("archive: %d days of %,d transactions, %,d raw bytes, %,d archived bytes (%.1fx), "
+                    + "%,d blocks, %.1f ms per day%n", days, transactions, raw, archived, (double) raw / archived,
+                    archive.get_block_count(), writing / 1e6 / days);
+
+            String[][] queries = {{"hot", "event 0"}, {"cold", "event " + (catalog - 1)}};
+            for (String[] query : queries) {
+                int middle = Benchmark.day_date(days / 2);
+                int[][] ranges = {{Benchmark.day_date(0), Benchmark.day_date(days - 1)}, {middle, middle}};
+                for (int[] range : ranges) {
+                    TransactionArchive reader = new TransactionArchive(dir);
+                    start = System.nanoTime();
+                    ArrayList<String> history = reader.history(query[1], range[0], range[1]);
+                    long time = System.nanoTime() - start;
+                    int expected = 0;
+                    for (int day = 0; day < days; ++day) {
+                        if (Benchmark.day_date(day) < range[0] || Benchmark.day_date(day) > range[1]) {
+                            continue;
+                        }
+                        for (String line : all.get(day)) {
+                            if (line.substring(3, 23).trim().equals(query[1])) {
+                                ++expected;
+                            }
+                        }
+                    }
+                    System.out.printf("    %-4s event, %s: %,d transactions (expected %,d), %,d of %,d blocks "
+                            + "decompressed, %.1f ms%n", query[0], range[0] == range[1] ? "one day " : "all days",
+                            history.size(), expected, reader.get_blocks_read(), reader.get_block_count(), time / 1e6);
+                }
+            }
+
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to write benchmark files: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the back end every day for a number of days, starting with no events, then deletes the master events and
+     * current events files and rebuilds them with --replay: first from the newest snapshot, then with every snapshot
+     * deleted, so the whole history is replayed (see run_days for the daily transactions). Both rebuilds are checked
+     * against the files written by the last day's run. With more than one run a day, the newest snapshot is taken
+     * after the first run on its day, and the runs after it on the same day must be replayed as well.
+     *
+     * @param days - the number of days to run
+     * @param transactions - the number of transactions on each day
+     * @param runs - the number of runs on each day
+     */
+    static void bench_replay(int days, int transactions, int runs) {
+        try {
+            File dir = Files.createTempDirectory("quibble-replay").toFile();
+            long start = System.nanoTime();
+            run_days(dir, days, transactions, runs, null);
+            System.out.printf("replay: %d days of %,d transactions in %d runs, %d snapshots, %.1f s of daily runs%n",
+                    days, transactions, runs, new File(dir, Snapshots.DIRECTORY).list((parent, name) ->
+                    name.endsWith(".gz")).length, (System.nanoTime() - start) / 1e9);
+
+            byte[] master = Files.readAllBytes(new File(dir, "master-events").toPath());
+            byte[] current = Files.readAllBytes(new File(dir, "current-events").toPath());
+            for (String from : new String[] {"the newest snapshot", "the start of the history"}) {
+                if (from.startsWith("the start")) {
+                    for (File file : new File(dir, Snapshots.DIRECTORY).listFiles()) {
+                        file.delete();
+                    }
+                }
+                new File(dir, "master-events").delete();
+                new File(dir, "current-events").delete();
+                System.out.println("    from " + from + ":");
+                start = System.nanoTime();
+                Benchmark.run_backend(dir, "--replay", "--stats");
+                long time = System.nanoTime() - start;
+                boolean same = Arrays.equals(master, Files.readAllBytes(new File(dir, "master-events").toPath()))
+                        && Arrays.equals(current, Files.readAllBytes(new File(dir, "current-events").toPath()));
+                System.out.printf("    process total %.1f ms, same output: %b%n", time / 1e6, same);
+            }
+
+            Benchmark.delete_tree(dir);
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the back end every day for a number of days, as bench_replay does, then asks for the events with a name on
+     * a past day, for 1,000 random names and days, and checks each answer against the current events file written by
+     * the last run on that day. About one name in ten has no event on that day. Reports the time of each query
+     * against the time of a full replay up to the middle day.
+     *
+     * @param days - the number of days to run
+     * @param transactions - the number of transactions on each day
+     * @param runs - the number of runs on each day, each answer being the events after the last of them
+     */
+    static void bench_availability(int days, int transactions, int runs) {
+        try {
+            File dir = Files.createTempDirectory("quibble-availability").toFile();
+            File outputs = new File(dir, "days");
+            run_days(dir, days, transactions, runs, outputs);
+            System.out.printf("availability: %d days of %,d transactions in %d runs, %d snapshots%n", days,
+                    transactions, runs, new File(dir, Snapshots.DIRECTORY).list((parent, name) ->
+                    name.endsWith(".gz")).length);
+
+            Random random = new Random(Benchmark.SEED);
+            int queries = 1000;
+            int present = 0;
+            int wrong = 0;
+            long[] times = new long[queries];
+            for (int q = 0; q < queries; ++q) {
+                int date = Benchmark.day_date(random.nextInt(days));
+                ArrayList<String> lines = new ArrayList<>(Files.readAllLines(
+                        new File(outputs, String.format("%06d", date)).toPath()));
+                lines.remove(lines.size() - 1);   // the END line
+                String line = lines.get(random.nextInt(lines.size()));
+                String name = random.nextInt(10) == 0 ? "event " + random.nextInt(days * transactions / 20)
+                        : line.substring(0, line.length() - 6).trim();
+                ArrayList<String> expected = new ArrayList<>();
+                for (String l : lines) {
+                    if (l.substring(0, l.length() - 6).trim().equals(name)) {
+                        expected.add(l);
+                    }
+                }
+
+                long start = System.nanoTime();
+                ArrayList<String> found = new QuibbleBE().availability(dir, name, date);
+                times[q] = System.nanoTime() - start;
+                present += expected.isEmpty() ? 0 : 1;
+                wrong += found.equals(expected) ? 0 : 1;
+            }
+            Arrays.sort(times);
+            long total = 0;
+            for (long time : times) {
+                total += time;
+            }
+            System.out.printf("    %,d queries (%,d with events), %d wrong: mean %.2f ms, median %.2f ms, "
+                    + "99th percentile %.2f ms%n", queries, present, wrong, total / 1e6 / queries,
+                    times[queries / 2] / 1e6, times[queries * 99 / 100] / 1e6);
+
+            long start = System.nanoTime();
+            Benchmark.run_backend(dir, "--replay", String.format("%06d", Benchmark.day_date(days / 2)));
+            System.out.printf("    full replay to day %d: %.1f ms%n", days / 2, (System.nanoTime() - start) / 1e6);
+
+            Benchmark.delete_tree(dir);
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the back end in a directory every day for a number of days, starting with no events. Each day creates new
+     * events for the next three months and sells, returns, adds and deletes tickets for the events already created,
+     * mostly those created in the last month or so. The transactions of a day are split between a number of runs on
+     * that day.
+     *
+     * @param dir - the directory to run in
+     * @param days - the number of days to run
+     * @param transactions - the number of transactions on each day
+     * @param runs - the number of runs on each day
+     * @param outputs - a directory to copy the current events file of each day's last run to, named after the day, or
+     *                  null
+     */
+    private static void run_days(File dir, int days, int transactions, int runs, File outputs)
+            throws IOException, InterruptedException {
+        new File(dir, "master-events").createNewFile();
+        if (outputs != null) {
+            outputs.mkdirs();
+        }
+        Random random = new Random(Benchmark.SEED);
+        int created = 0;
+        for (int day = 0; day < days; ++day) {
+            String date = String.format("%06d", Benchmark.day_date(day));
+            for (int run = 0; run < runs; ++run) {
+                try (Writer out = new BufferedWriter(new FileWriter(new File(dir, "merged-transactions")), 1 << 16)) {
+                    for (int i = transactions * run / runs; i < transactions * (run + 1) / runs; ++i) {
+                        int kind = random.nextInt(100);
+                        if (kind < 5 || created == 0) {
+                            out.write(String.format("03 %-20s %06d %05d%n", "event " + created++,
+                                    Benchmark.day_date(day + 1 + random.nextInt(90)),
+                                    1 + random.nextInt(Event.MAX_TICKETS)));
+                            continue;
+                        }
+                        String name = "event " + Math.max(0, created - 1 - random.nextInt(transactions * 3 / 2));
+                        String code = kind < 70 ? "01" : kind < 85 ? "02" : kind < 99 ? "04" : "05";
+                        out.write(String.format("%s %-20s 000000 %05d%n", code, name, 1 + random.nextInt(20)));
+                    }
+                    out.write(String.format("00 %-20s 000000 00000%n", ""));
+                }
+                Benchmark.run_backend(dir, "--date", date);
+            }
+            if (outputs != null) {
+                Files.copy(new File(dir, "current-events").toPath(), new File(outputs, date).toPath());
+            }
+        }
+    }
+}
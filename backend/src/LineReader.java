@@ -0,0 +1,109 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+
+/**
+ * Reads a file as lines of bytes, keeping track of the byte offset where each line starts, so that the back end can
+ * tell EventWriter where each master events line came from. The file is read in large blocks and searched for
+ * newlines, instead of one byte at a time.
+ */
+public class LineReader implements Closeable {
+    private static final int BLOCK = 1 << 16;
+
+    private InputStream in;
+    private byte[] block;
+    private int position;      // next unread byte in block
+    private int limit;         // number of bytes in block
+    private byte[] line;       // the current line, without its newline
+    private int length;        // number of bytes in the current line
+    private long offset;       // offset of the current line in the file
+    private long next_offset;  // offset of the line after the current line
+    private boolean terminated; // true if the current line ended with a newline
+
+    /**
+     * One parameter constructor for the line reader. Opens the file.
+     *
+     * @param file - the file to read
+     * @throws FileNotFoundException - if the file does not exist
+     */
+    public LineReader(File file) throws FileNotFoundException {
+        in = new FileInputStream(file);
+        block = new byte[BLOCK];
+        line = new byte[64];
+    }
+
+    /**
+     * Moves to the next line of the file.
+     *
+     * @return false if there are no more lines
+     * @throws IOException - if the file cannot be read
+     */
+    public boolean next() throws IOException {
+        offset = next_offset;
+        length = 0;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(block);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    // the last line has no newline
+                    terminated = false;
+                    next_offset += length;
+                    return length > 0;
+                }
+            }
+            int end = position;
+            while (end < limit && block[end] != '\n') {
+                ++end;
+            }
+            if (length + end - position > line.length) {
+                byte[] grown = new byte[Math.max(line.length * 2, length + end - position)];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            System.arraycopy(block, position, line, length, end - position);
+            length += end - position;
+            if (end < limit) {
+                position = end + 1;
+                terminated = true;
+                next_offset += length + 1;
+                return true;
+            }
+            position = limit;
+        }
+    }
+
+    /**
+     * Returns the bytes of the current line, without the newline. The array is reused for the next line.
+     * @return the bytes of the line, of which the first get_length() are valid
+     */
+    public byte[] get_line() {
+        return line;
+    }
+
+    public int get_length() {
+        return length;
+    }
+
+    /**
+     * Returns the offset in the file where the current line starts.
+     * @return the offset of the line
+     */
+    public long get_offset() {
+        return offset;
+    }
+
+    /**
+     * Returns true if the current line ended with a newline; only the last line of a file may not.
+     * @return true if the line ended with a newline
+     */
+    public boolean is_terminated() {
+        return terminated;
+    }
+
+    @Override public void close() throws IOException {
+        in.close();
+    }
+}
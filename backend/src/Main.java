@@ -1,15 +1,115 @@
 /**
  * @author Dan Lawrence, Jerry Mak
  */
+import java.io.File;
+import java.io.IOException;
 
 /**
- * Starts and runs the Quibble front end. Accepts the current events file as a string argument. If this file is not
- * specified, the Quibble front end will start without parsing the events file.
+ * Starts and runs the Quibble back end in the current directory. Accepts the following options:
+ *     --partitioned   - keep the master events as date-partitioned segments (see MasterSegments)
+ *     --pipelined     - read, apply and write in concurrent stages
+ *     --stats         - print the time taken by each phase or stage
+ *     --date YYMMDD   - run as if today were the given date
+ *     --serve PORT    - answer availability queries on localhost:PORT while running (see EventServer)
+ *     --shards N      - run N worker processes, each on the events in one shard (see ShardCoordinator)
+ *
+ * With --history NAME the back end does not run; instead every archived transaction for the event NAME is printed,
+ * each preceded by the date of the run that processed it (see TransactionArchive).
+ *
+ * With --availability NAME YYMMDD the back end does not run; instead the events named NAME are printed as they were
+ * in the current events file after the last run on or before the date (see QuibbleBE.availability).
+ *
+ * With --replay the back end does not process new transactions; instead the master events and current events files
+ * are rebuilt from the newest snapshot and the archived transactions (see QuibbleBE.start_replay). --replay YYMMDD
+ * rebuilds the files as they were after the run on that date.
+ *
+ * With --catch-up the back end processes the runs it missed, such as over a long weekend, in one pass instead of one
+ * run per day: each missed run's merged transaction file is named merged-transactions.YYMMDD after its date, and the
+ * outputs are written once, as they would be after the last run (see QuibbleBE.start_catch_up). The processed files
+ * are renamed with a .done suffix.
  */
 public class Main {
     public static void main(String[] args) {
+        if (args.length == 2 && args[0].equals("--history")) {
+            print_history(args[1]);
+            return;
+        }
+        if (args.length == 3 && args[0].equals("--availability") && args[2].matches("\\d{6}")) {
+            for (String line : new QuibbleBE().availability(new File("."), args[1], Integer.parseInt(args[2]))) {
+                System.out.println(line);
+            }
+            return;
+        }
         QuibbleBE be = new QuibbleBE();
-        be.start();
+        int replay = -1;
+        boolean catch_up = false;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--partitioned")) {
+                be.set_partitioned(true);
+            }
+            else if (args[i].equals("--pipelined")) {
+                be.set_pipelined(true);
+            }
+            else if (args[i].equals("--stats")) {
+                be.set_stats(true);
+            }
+            else if (args[i].equals("--date") && i + 1 < args.length && args[i + 1].matches("\\d{6}")) {
+                be.set_current_date(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--serve") && i + 1 < args.length && args[i + 1].matches("\\d{1,5}")) {
+                be.set_serve_port(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--shards") && i + 1 < args.length && args[i + 1].matches("[1-9]\\d{0,2}")) {
+                be.set_shards(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--shard-worker")) {
+                // started by ShardCoordinator, not by hand
+                be.set_shard_worker(true);
+            }
+            else if (args[i].equals("--replay")) {
+                replay = 999999;
+                if (i + 1 < args.length && args[i + 1].matches("\\d{6}")) {
+                    replay = Integer.parseInt(args[++i]);
+                }
+            }
+            else if (args[i].equals("--catch-up")) {
+                catch_up = true;
+            }
+            else {
+                System.err.println("Usage: java Main [--partitioned] [--pipelined] [--stats] [--date YYMMDD] "
+                        + "[--serve PORT] [--shards N]");
+                System.err.println("       java Main --history NAME");
+                System.err.println("       java Main --availability NAME YYMMDD");
+                System.err.println("       java Main --replay [YYMMDD] [--stats]");
+                System.err.println("       java Main --catch-up [--stats]");
+                System.exit(2);
+            }
+        }
+        if (replay >= 0) {
+            be.start_replay(replay);
+        }
+        else if (catch_up) {
+            be.start_catch_up();
+        }
+        else {
+            be.start();
+        }
+    }
+
+    /**
+     * Prints the archived transactions for an event.
+     * @param name - the event name
+     */
+    private static void print_history(String name) {
+        try {
+            for (String t : new TransactionArchive(new File(".")).history(name, 0, 999999)) {
+                System.out.println(t);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to read " + TransactionArchive.FILE + ": " + e.getMessage());
+            System.exit(1);
+        }
     }
 
 }
@@ -0,0 +1,237 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * The master events catalog stored as date-partitioned segments, one per month, in the directory master-events.d.
+ * Each segment holds the events of one month in three files:
+ *     YYMM          - the events in the master events format, in date order
+ *     YYMM.current  - the same events in the current events format, in the same order
+ *     YYMM.names    - a BloomFilter of the event names in the segment
+ *
+ * The manifest file lists each segment on its own line as "YYMM first_date last_date count", in month order. From
+ * the manifest alone the back end can drop segments whose events have all passed, and from the name filters it can
+ * tell which segments a day's transactions might touch. Only those segments are read and rewritten; every other
+ * segment is left alone, and its current events file is copied into the full current events file as is.
+ */
+public class MasterSegments {
+    public static final String DIRECTORY = "master-events.d";
+
+    private File dir;
+    private TreeMap<Integer, Segment> segments;   // segments by month, as YYMM
+
+    /**
+     * Entry in the manifest for one segment.
+     */
+    private static class Segment {
+        int first_date;
+        int last_date;
+        int count;
+        BloomFilter names;   // read the first time it is needed
+    }
+
+    /**
+     * Default constructor for the master segments. Uses the segment directory in the current directory.
+     */
+    public MasterSegments() {
+        dir = new File(DIRECTORY);
+        segments = new TreeMap<>();
+    }
+
+    /**
+     * Returns true if the catalog has been stored as segments.
+     * @return true if the segment directory exists
+     */
+    public boolean exists() {
+        return dir.isDirectory();
+    }
+
+    /**
+     * Returns the month (YYMM) of a date (YYMMDD).
+     *
+     * @param date - a date as a YYMMDD integer
+     * @return the month of the date
+     */
+    public static int month_of(int date) {
+        return date / 100;
+    }
+
+    /**
+     * Returns the months of every segment, in order.
+     * @return the months of the segments
+     */
+    public ArrayList<Integer> months() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    public int get_first_date(int month) {
+        return segments.get(month).first_date;
+    }
+
+    public int get_last_date(int month) {
+        return segments.get(month).last_date;
+    }
+
+    public File master_file(int month) {
+        return new File(dir, String.format("%04d", month));
+    }
+
+    private File current_file(int month) {
+        return new File(dir, String.format("%04d", month) + ".current");
+    }
+
+    private File names_file(int month) {
+        return new File(dir, String.format("%04d", month) + ".names");
+    }
+
+    /**
+     * Reads the manifest. The segment directory is created if it does not exist yet, with no segments.
+     *
+     * @throws IOException - if the manifest cannot be read
+     */
+    public void read_manifest() throws IOException {
+        segments.clear();
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            throw new IOException("unable to create directory " + DIRECTORY);
+        }
+        File manifest = new File(dir, "manifest");
+        if (!manifest.exists()) {
+            return;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.trim().split(" +");
+                Segment segment = new Segment();
+                segment.first_date = Integer.parseInt(fields[1]);
+                segment.last_date = Integer.parseInt(fields[2]);
+                segment.count = Integer.parseInt(fields[3]);
+                segments.put(Integer.parseInt(fields[0]), segment);
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest, replacing the previous one.
+     *
+     * @throws IOException - if the manifest cannot be written
+     */
+    public void write_manifest() throws IOException {
+        File manifest = new File(dir, "manifest");
+        File temp = new File(dir, "manifest.tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(temp))) {
+            for (int month : segments.keySet()) {
+                Segment segment = segments.get(month);
+                bw.write(String.format("%04d %06d %06d %d\n", month, segment.first_date, segment.last_date,
+                        segment.count));
+            }
+        }
+        Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns false if a name given as a range of characters is definitely not in a segment.
+     *
+     * @param month - the month of the segment
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     * @return true if the segment may contain an event with the name
+     * @throws IOException - if the name filter of the segment cannot be read
+     */
+    public boolean might_contain(int month, CharSequence text, int start, int end) throws IOException {
+        Segment segment = segments.get(month);
+        if (segment.names == null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(names_file(month))))) {
+                segment.names = BloomFilter.read(in);
+            }
+        }
+        return segment.names.might_contain(text, start, end);
+    }
+
+    /**
+     * Removes a segment and its files without reading them.
+     *
+     * @param month - the month of the segment
+     */
+    public void drop(int month) {
+        master_file(month).delete();
+        current_file(month).delete();
+        names_file(month).delete();
+        segments.remove(month);
+    }
+
+    /**
+     * Writes (or rewrites) the segment for a month from a range of events in the table. The events must all be in the
+     * month and in date order. A segment with no events is dropped.
+     *
+     * @param month - the month of the segment
+     * @param writer - the writer for the events in the event table
+     * @param events - the event table
+     * @param order - record numbers of events in date order
+     * @param from - the first position in order to write
+     * @param to - the position in order after the last event to write
+     * @throws IOException - if the segment cannot be written
+     */
+    public void write_segment(int month, EventWriter writer, EventTable events, int[] order, int from, int to)
+            throws IOException {
+        if (from == to) {
+            drop(month);
+            return;
+        }
+        File master = new File(dir, "segment.tmp");
+        File current = new File(dir, "segment.current.tmp");
+        writer.write_master(master, order, from, to);
+        writer.write_current(current, order, from, to, null);
+        BloomFilter names = new BloomFilter(to - from, BloomFilter.BITS_PER_NAME);
+        for (int i = from; i < to; ++i) {
+            names.add(events.get_event_name(order[i]));
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(names_file(month))))) {
+            names.write(out);
+        }
+        Files.move(master.toPath(), master_file(month).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(current.toPath(), current_file(month).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Segment segment = new Segment();
+        segment.first_date = events.get_event_date(order[from]);
+        segment.last_date = events.get_event_date(order[to - 1]);
+        segment.count = to - from;
+        segment.names = names;
+        segments.put(month, segment);
+    }
+
+    /**
+     * Writes the full current events file by copying the current events file of every segment, in month order,
+     * followed by the END line.
+     *
+     * @param current_events - the current events file to write
+     * @param end_line - the END line that finishes the file
+     * @throws IOException - if the file cannot be written
+     */
+    public void write_current_events(File current_events, String end_line) throws IOException {
+        try (FileChannel out = new FileOutputStream(current_events).getChannel()) {
+            for (int month : segments.keySet()) {
+                try (FileChannel in = new FileInputStream(current_file(month)).getChannel()) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            Writer w = new OutputStreamWriter(Channels.newOutputStream(out));
+            w.write(end_line);
+            w.flush();
+        }
+    }
+}
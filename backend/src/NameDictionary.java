@@ -0,0 +1,292 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Dictionary of event names for the back end. Maps every distinct event name to a compact integer id, starting at 0,
+ * so that the event table and the transaction handling work with ids and each name is stored only once no matter how
+ * often it appears in the master events file and the merged transaction file.
+ *
+ * Names are looked up directly from a range of characters in a line, so parsing a line does not create a new string
+ * for the name. The characters of every name are kept back to back in a direct buffer and found through an
+ * open-addressing (linear probing) index, so like EventTable the dictionary does not grow the Java heap.
+ *
+ * Names are never removed from the dictionary; the id of a deleted event stays valid and is reused if an event with
+ * the same name is created again.
+ */
+public class NameDictionary {
+    public static final int NONE = -1;   // returned when a name is not in the dictionary
+
+    private CharBuffer chars;   // characters of every name, back to back
+    private IntBuffer starts;   // start of each name in chars, plus the end of the last name
+    private IntBuffer index;    // open-addressing index, each slot holds an id plus one (0 is empty)
+    private int size;           // number of names
+
+    /**
+     * Default constructor for the name dictionary. Creates an empty dictionary with a small initial capacity.
+     */
+    public NameDictionary() {
+        this(1024);
+    }
+
+    /**
+     * One parameter constructor for the name dictionary. Creates an empty dictionary able to hold the given number of
+     * names before it has to grow.
+     *
+     * @param capacity - the expected number of names
+     */
+    public NameDictionary(int capacity) {
+        capacity = Math.max(capacity, 16);
+        chars = allocate(capacity * 16 * 2).asCharBuffer();
+        starts = allocate((capacity + 1) * 4).asIntBuffer();
+        index = allocate(slots_for(capacity) * 4).asIntBuffer();
+        size = 0;
+        starts.put(0, 0);
+    }
+
+    /**
+     * Returns the number of names in the dictionary. Ids range from 0 to size - 1.
+     * @return the number of names
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Grows the dictionary so that it can hold at least the given number of names without reallocating its index.
+     *
+     * @param capacity - the number of names
+     */
+    public void ensure_capacity(int capacity) {
+        if (capacity + 1 > starts.capacity()) {
+            starts = grow(starts, capacity + 1, size + 1);
+        }
+        if (slots_for(capacity) > index.capacity()) {
+            rehash(slots_for(capacity));
+        }
+    }
+
+    /**
+     * Looks up a name given as a range of characters. The range is used as is, so callers should trim it first.
+     *
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     * @return the id of the name, or NONE if the name is not in the dictionary
+     */
+    public int lookup(CharSequence text, int start, int end) {
+        int entry = index.get(probe(text, start, end));
+        return entry - 1;
+    }
+
+    /**
+     * Looks up a name.
+     *
+     * @param name - the name
+     * @return the id of the name, or NONE if the name is not in the dictionary
+     */
+    public int lookup(CharSequence name) {
+        return lookup(name, 0, name.length());
+    }
+
+    /**
+     * Returns the id of a name given as a range of characters, adding the name to the dictionary if it is not
+     * already there.
+     *
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     * @return the id of the name
+     */
+    public int intern(CharSequence text, int start, int end) {
+        int slot = probe(text, start, end);
+        if (index.get(slot) != 0) {
+            return index.get(slot) - 1;
+        }
+        if ((size + 1) * 2 > index.capacity()) {
+            rehash(index.capacity() * 2);
+            slot = probe(text, start, end);
+        }
+        if (size + 2 > starts.capacity()) {
+            starts = grow(starts, starts.capacity() * 2, size + 1);
+        }
+
+        int offset = starts.get(size);
+        int length = end - start;
+        if (offset + length > chars.capacity()) {
+            CharBuffer grown = allocate(Math.max(chars.capacity() * 2, offset + length) * 2).asCharBuffer();
+            chars.position(0).limit(offset);
+            grown.put(chars);
+            chars = grown.clear();
+        }
+        for (int i = 0; i < length; ++i) {
+            chars.put(offset + i, text.charAt(start + i));
+        }
+
+        int id = size++;
+        starts.put(size, offset + length);
+        index.put(slot, id + 1);
+        return id;
+    }
+
+    /**
+     * Returns the id of a name, adding the name to the dictionary if it is not already there.
+     *
+     * @param name - the name
+     * @return the id of the name
+     */
+    public int intern(CharSequence name) {
+        return intern(name, 0, name.length());
+    }
+
+    /**
+     * Returns the number of characters in a name.
+     *
+     * @param id - the id of the name
+     * @return the length of the name
+     */
+    public int length(int id) {
+        return starts.get(id + 1) - starts.get(id);
+    }
+
+    /**
+     * Copies the characters of a name into a buffer.
+     *
+     * @param id - the id of the name
+     * @param dst - the buffer to copy into, which must have room for length(id) characters
+     * @param offset - the position in the buffer to copy to
+     * @return the number of characters copied
+     */
+    public int get_chars(int id, char[] dst, int offset) {
+        int start = starts.get(id);
+        int length = starts.get(id + 1) - start;
+        for (int i = 0; i < length; ++i) {
+            dst[offset + i] = chars.get(start + i);
+        }
+        return length;
+    }
+
+    /**
+     * Gets a name as a string. This creates a new string, so it should not be used on hot paths.
+     *
+     * @param id - the id of the name
+     * @return the name
+     */
+    public String get_name(int id) {
+        char[] name = new char[length(id)];
+        get_chars(id, name, 0);
+        return new String(name);
+    }
+
+    /**
+     * Returns a copy of the dictionary that shares no buffers with it, so the copy can be read by other threads while
+     * this dictionary keeps changing.
+     * @return the copy
+     */
+    public NameDictionary copy() {
+        NameDictionary copy = new NameDictionary(16);
+        copy.chars = allocate(chars.capacity() * 2).asCharBuffer().put(chars.clear()).clear();
+        copy.starts = allocate(starts.capacity() * 4).asIntBuffer().put(starts.clear()).clear();
+        copy.index = allocate(index.capacity() * 4).asIntBuffer().put(index.clear()).clear();
+        chars.clear();
+        starts.clear();
+        index.clear();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Returns the number of bytes of memory used by the dictionary, for reporting.
+     * @return the size of the dictionary's buffers in bytes
+     */
+    public long memory_used() {
+        return chars.capacity() * 2L + starts.capacity() * 4L + index.capacity() * 4L;
+    }
+
+    /**
+     * Returns the index slot holding a name, or the empty slot where the name should be inserted.
+     */
+    private int probe(CharSequence text, int start, int end) {
+        int mask = index.capacity() - 1;
+        int slot = hash(text, start, end) & mask;
+        while (true) {
+            int entry = index.get(slot);
+            if (entry == 0 || name_equals(entry - 1, text, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean name_equals(int id, CharSequence text, int start, int end) {
+        int offset = starts.get(id);
+        if (starts.get(id + 1) - offset != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; ++i) {
+            if (chars.get(offset++) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a range of characters the same way as String.hashCode, with the high bits spread into the low bits.
+     */
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int slots) {
+        IntBuffer old = index;
+        index = allocate(slots * 4).asIntBuffer();
+        int mask = slots - 1;
+        for (int i = 0; i < old.capacity(); ++i) {
+            int entry = old.get(i);
+            if (entry == 0) {
+                continue;
+            }
+            int start = starts.get(entry - 1);
+            int h = 0;
+            for (int c = start; c < starts.get(entry); ++c) {
+                h = 31 * h + chars.get(c);
+            }
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (index.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index.put(slot, entry);
+        }
+    }
+
+    /**
+     * Returns the number of index slots needed to hold the given number of names at a load factor of one half.
+     */
+    private static int slots_for(int capacity) {
+        int slots = 16;
+        while (slots < capacity * 2) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    private static IntBuffer grow(IntBuffer buffer, int capacity, int used) {
+        IntBuffer grown = allocate(capacity * 4).asIntBuffer();
+        buffer.position(0).limit(used);
+        grown.put(buffer);
+        return grown.clear();
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event for one phase of a back end run, such as reading the master events or writing the current
+ * events file, or for one stage of a pipelined run (see Stage). The event's duration is the time the phase took, and
+ * the phases of a run give the same breakdown as --stats, in a recording that can be lined up with the garbage
+ * collector and the rest of the JVM.
+ *
+ * The event is disabled unless a recording enables it, for example with
+ *     java -XX:StartFlightRecording:+quibble.Phase#enabled=true,filename=run.jfr Main
+ * While it is disabled, beginning and committing it costs a check of a flag.
+ */
+@Name("quibble.Phase")
+@Label("Back End Phase")
+@Category({"Quibble", "Back End"})
+@Description("A phase of a back end run, or a stage of a pipelined run")
+@Enabled(false)
+public class PhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    public String phase;
+
+    @Label("Waiting")
+    @Description("Time a pipelined stage spent blocked on its queues")
+    @Timespan(Timespan.NANOSECONDS)
+    public long waiting;
+
+    /**
+     * Begins timing a phase.
+     * @param phase - the name of the phase
+     * @return the event, to be committed when the phase ends
+     */
+    public static PhaseEvent begin(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The front end sessions the back end has applied, kept next to the current events file in current-events.sessions,
+ * so that a running front end can tell which of the sessions it wrote are in the current events file it reads. Until
+ * then it applies them again to the events it reads (see the front end's QuibbleFE.refresh_events).
+ *
+ * A front end writes each session to its own transaction file, ending with the logout line, and the files are merged
+ * as they are. A session is therefore the lines of a merged transaction file up to and including each logout line,
+ * and is known by the CRC32 of those lines, each followed by a newline. A session with nothing but the logout line
+ * changes no event, and is left out. Two sessions with the same lines have the same checksum, but each has its own
+ * entry, so a front end can count them (see the front end's PendingSessions).
+ *
+ * Each entry gives the generation of the current events file (see CurrentEventsDelta) that first had the session. The
+ * sessions of the last RUNS generations are kept, and the file is written with a DataOutputStream as:
+ *     long - the first generation whose sessions are all in the file
+ *     int  - the number of entries
+ *     then for each entry: the generation (long) and the checksum (int)
+ */
+public class ProcessedSessions {
+    public static final String SUFFIX = ".sessions";
+    private static final int RUNS = 16;   // generations whose sessions are kept
+
+    /**
+     * Records the sessions of the merged transaction files applied to a current events file of a generation. This is
+     * done before the delta of that generation is written, so a front end that reads the generation finds them.
+     *
+     * @param current_events - the current events file
+     * @param generation - the generation of the current events file
+     * @param merged - the merged transaction files applied to it
+     * @throws IOException - if a file cannot be read or the sessions cannot be written
+     */
+    public static void write(File current_events, long generation, List<File> merged) throws IOException {
+        File sessions = new File(current_events.getPath() + SUFFIX);
+        long first = generation;
+        ArrayList<long[]> kept = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sessions)))) {
+            long read_first = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                long entry_generation = in.readLong();
+                int checksum = in.readInt();
+                if (entry_generation > generation - RUNS && entry_generation < generation) {
+                    kept.add(new long[] {entry_generation, checksum});
+                }
+            }
+            // generations start again if the delta was lost, and then nothing before is known
+            if (read_first < generation) {
+                first = Math.max(read_first, generation - RUNS + 1);
+            }
+            else {
+                kept.clear();
+            }
+        }
+        catch (FileNotFoundException e) {
+            // the first run to record its sessions
+        }
+        catch (IOException e) {
+            kept.clear();
+        }
+
+        for (File file : merged) {
+            try (LineReader in = new LineReader(file)) {
+                CRC32 crc = new CRC32();
+                int lines = 0;
+                while (in.next()) {
+                    byte[] line = in.get_line();
+                    crc.update(line, 0, in.get_length());
+                    crc.update('\n');
+                    ++lines;
+                    if (in.get_length() >= 2 && line[0] == '0' && line[1] == '0') {
+                        if (lines > 1) {
+                            kept.add(new long[] {generation, (int) crc.getValue()});
+                        }
+                        crc.reset();
+                        lines = 0;
+                    }
+                }
+            }
+        }
+
+        File temp = new File(sessions.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeLong(first);
+            out.writeInt(kept.size());
+            for (long[] entry : kept) {
+                out.writeLong(entry[0]);
+                out.writeInt((int) entry[1]);
+            }
+        }
+        Files.move(temp.toPath(), sessions.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
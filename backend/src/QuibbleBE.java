@@ -2,20 +2,58 @@
  * @author Dan Lawrence, Jerry Mak
  */
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
- * Class for the quibble backend. Contains one public method, start, which runs the backend.
- * The backend will attempt to read in the master events file (with the name master-events in the current directory)
- * if one exists, and will then prune events that have already passed. The backend also expects a merged transaction
- * file, with the name "merged-transactions" to be present in the current directory.
+ * Class for the quibble backend. start runs the backend once: it reads the master events file (master-events in the
+ * current directory) if one exists, prunes events that have already passed, and applies the merged transaction file
+ * ("merged-transactions"). start_replay rebuilds lost master events from the snapshots and the transaction archive,
+ * start_catch_up applies several missed days of transactions in one run, and availability answers what was on sale
+ * for an event name on a past date.
+ *
+ * A run can keep the master events partitioned by month, pipeline reading, applying and writing, shard the events over
+ * worker processes, or serve availability queries while it runs. Every run writes the master events and current
+ * events files, with sidecars next to current events (an index, a name filter, a delta, dates and the sessions
+ * applied) for the front end, and archives its transactions, taking a weekly snapshot of the master events.
  */
 public class QuibbleBE {
-    private String current_date;
-    private ArrayList<Event> events; // list of events from the master events file
+    private int current_date;  // the current date as a YYMMDD integer
+    private NameDictionary names; // the name of every event, shared by the event table and the transactions
+    private EventTable events; // table of events from the master events file
+    private EventWriter writer; // writes the output files, copying unchanged events from the master events
+    private int[] order;       // record numbers of the live events in date order, set before writing the outputs
+    private boolean partitioned; // true if the master events are kept as date-partitioned segments
+    private boolean aggregating; // true if ticket transactions are folded per event before they are applied
+    private boolean pipelined; // true if reading, applying and writing run as concurrent stages
+    private boolean stats;     // true if the time taken by each phase or stage is printed
+    private int serve_port;    // port to answer availability queries on while running, or -1 for none
+    private int shards;        // number of worker processes to shard the events over, or 0 to run in this process
+    private boolean shard_worker; // true if this process runs one shard for a ShardCoordinator
+    private int[] master_lines; // for a shard worker, the master events line each record read from it came from
+    private int master_records; // for a shard worker, the number of records read from the master events file
+    private EventServer server; // answers availability queries while running, when serve_port is set
+    private TransactionCountsEvent counts; // transactions of the run by code, or null unless a recording wants them
+    private List<File> merged; // the merged transaction files applied by the run (see ProcessedSessions)
+
+    private static final int BATCH = 4096;   // lines in each batch handed from the read stage to the apply stage
+    private static final int QUEUE = 16;     // batches or chunks that may wait between two stages
+    private static final String CATCH_UP_PREFIX = "merged-transactions.";   // then the date of a missed run
+    private static final String CATCH_UP_DONE = ".done";   // added to a missed run's file once it has been processed
+
+    // line written at the end of the current events file
+    private static final String END_LINE = String.format("%-20s", "END") + " "
+            + String.format("%5s", "0").replace(" ", "0");
 
     /**
      * Default constructor for the quibble backend. Instantiates all attributes and gets the current date.
@@ -23,32 +61,969 @@ public class QuibbleBE {
     public QuibbleBE() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyMMdd");
         Date now = new Date();
-        current_date = sdf.format(now);
-        events = new ArrayList<>();
+        current_date = Integer.parseInt(sdf.format(now));
+        names = new NameDictionary();
+        events = new EventTable(names);
+        writer = new EventWriter(events);
+        partitioned = false;
+        aggregating = true;
+        pipelined = false;
+        stats = false;
+        serve_port = -1;
+        merged = Arrays.asList(new File("merged-transactions"));
+    }
+
+    /**
+     * Sets the date the backend runs as, instead of today. Events before this date are pruned, and the run is archived
+     * under this date.
+     * @param current_date_ - the date as a YYMMDD integer
+     */
+    public void set_current_date(int current_date_) {
+        current_date = current_date_;
     }
 
+    /**
+     * Sets whether the master events are kept as date-partitioned segments. Partitioned mode is also used whenever
+     * the segment directory already exists.
+     * @param partitioned_ - true to keep the master events as segments
+     */
+    public void set_partitioned(boolean partitioned_) {
+        partitioned = partitioned_;
+    }
+
+    /**
+     * Sets whether ticket transactions are folded per event before they are applied (see TransactionAggregator).
+     * Aggregation is on by default.
+     * @param aggregating_ - false to apply every transaction on its own
+     */
+    public void set_aggregating(boolean aggregating_) {
+        aggregating = aggregating_;
+    }
+
+    /**
+     * Sets whether reading, applying and writing run as concurrent stages. Only the flat master events file is read
+     * this way; partitioned mode is not pipelined.
+     * @param pipelined_ - true to run the stages concurrently
+     */
+    public void set_pipelined(boolean pipelined_) {
+        pipelined = pipelined_;
+    }
+
+    /**
+     * Sets whether the time taken by each phase (or, when pipelined, each stage) is printed when the backend finishes.
+     * @param stats_ - true to print the times
+     */
+    public void set_stats(boolean stats_) {
+        stats = stats_;
+    }
+
+    /**
+     * Sets the number of worker processes the events are sharded over (see ShardCoordinator). Not supported for
+     * partitioned master events.
+     * @param shards_ - the number of workers, or 0 to run in this process
+     */
+    public void set_shards(int shards_) {
+        shards = shards_;
+    }
+
+    /**
+     * Sets whether this process runs one shard for a ShardCoordinator, in the shard's directory. A worker runs
+     * sequentially, writes master-events.origins next to its outputs, and does not archive its transactions or take
+     * snapshots, which the coordinator does for the whole run.
+     * @param shard_worker_ - true to run as a worker
+     */
+    public void set_shard_worker(boolean shard_worker_) {
+        shard_worker = shard_worker_;
+    }
+
+    /**
+     * Sets the port on which availability queries are answered while the backend runs (see EventServer). Not
+     * supported for partitioned master events, since only some segments are ever read.
+     * @param serve_port_ - the port, or -1 to not answer queries
+     */
+    public void set_serve_port(int serve_port_) {
+        serve_port = serve_port_;
+    }
+
+    /**
+     * Returns the table of events known to the backend.
+     * @return the event table
+     */
+    public EventTable get_events() {
+        return events;
+    }
 
     /**
      * Runs the quibble backend, which will read in the master events file, modify each event with the contents
      * of the merged transaction file, and generate both the new master events file and current events file.
      */
     public void start() {
-        read_master();
+        if (!shard_worker) {
+            check_archive_order(current_date);
+        }
+        counts = TransactionCountsEvent.begin(current_date);
+        run();
+        if (counts != null) {
+            counts.commit();
+        }
+    }
+
+    /**
+     * Runs the backend in the mode it has been set to.
+     */
+    private void run() {
+        if (partitioned || new File(MasterSegments.DIRECTORY).isDirectory()) {
+            if (serve_port >= 0 || shards > 0) {
+                System.err.println("[BACKEND ERROR] Partitioned master events cannot be served or sharded");
+                System.exit(1);
+            }
+            start_partitioned();
+            return;
+        }
+        if (shards > 0) {
+            start_sharded();
+            return;
+        }
+        start_server();
+        if (pipelined && !shard_worker) {
+            start_pipelined();
+            stop_server();
+            return;
+        }
+        long start = System.nanoTime();
+        PhaseEvent phase = PhaseEvent.begin("read master");
+        read_master(new File("master-events"));
+        if (server != null) {
+            server.publish_base(events);
+        }
+        phase.commit();
+        long read = System.nanoTime();
+        phase = PhaseEvent.begin("apply and sort");
         read_merged();
-        Collections.sort(events);
+        order = events.sorted_by_date();
+        if (server != null) {
+            server.set_phase("writing");
+        }
+        phase.commit();
+        long applied = System.nanoTime();
+        phase = PhaseEvent.begin("write master");
         create_master();
+        phase.commit();
+        long master = System.nanoTime();
+        phase = PhaseEvent.begin("write current");
         create_events();
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to close master-events file: " + e.getMessage());
+            System.exit(1);
+        }
+        phase.commit();
+        long current = System.nanoTime();
+        if (shard_worker) {
+            write_origins();
+            return;
+        }
+        archive_transactions();
+        take_snapshot(new ArrayList<>(Arrays.asList(new File("master-events"))));
+        stop_server();
+        if (stats) {
+            long end = System.nanoTime();
+            System.out.printf("sequential: %.1f ms%n", (end - start) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "read master", (read - start) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "apply and sort", (applied - read) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "write master", (master - applied) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "write current", (current - master) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "archive", (end - current) / 1e6);
+        }
+    }
+
+    /**
+     * Runs the backend as worker processes on shards of the events (see ShardCoordinator), then archives the
+     * transactions and takes a snapshot as a single backend would.
+     */
+    private void start_sharded() {
+        long start = System.nanoTime();
+        ShardCoordinator coordinator = new ShardCoordinator(shards, current_date);
+        PhaseEvent phase = PhaseEvent.begin("run shards");
+        try {
+            coordinator.run();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to run sharded backend: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (InterruptedException e) {
+            System.err.println("[INTERNAL ERROR] The backend was interrupted");
+            System.exit(1);
+        }
+        phase.commit();
+        long merged = System.nanoTime();
+        archive_transactions();
+        take_snapshot(new ArrayList<>(Arrays.asList(new File("master-events"))));
+        if (stats) {
+            long end = System.nanoTime();
+            System.out.printf("sharded: %.1f ms%n", (end - start) / 1e6);
+            System.out.println(coordinator.report());
+            System.out.printf("    %-14s %9.1f ms%n", "archive", (end - merged) / 1e6);
+        }
+    }
+
+    /**
+     * Writes master-events.origins for a shard worker: for each event in the order of the outputs, the line of the
+     * master events file it was read from, or for a created event -1 for the first create, -2 for the second, and so
+     * on. Every create adds a record after those read from the master events file, so the records are numbered in
+     * that order.
+     */
+    private void write_origins() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(ShardCoordinator.ORIGINS), 1 << 16))) {
+            for (int record : order) {
+                out.writeInt(record < master_records ? master_lines[record] : master_records - record - 1);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to create " + ShardCoordinator.ORIGINS + " file: "
+                    + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A batch of lines handed from the read stage to the apply stage.
+     */
+    private static class Batch {
+        static final Batch END = new Batch(false);   // marks the end of the input
+
+        boolean master;   // true for master events lines, false for merged transaction lines
+        String[] lines = new String[BATCH];
+        long[] sources;   // source of each master events line, or EventTable.NONE if it cannot be copied
+        int count;
+
+        Batch(boolean master_) {
+            master = master_;
+            sources = master ? new long[BATCH] : null;
+        }
+    }
+
+    /**
+     * Runs the quibble backend with reading, applying and writing as concurrent stages:
+     *     read          - reads and decodes the master events file and then the merged transaction file, in batches
+     *     apply         - adds the master events and applies the transactions as their batches arrive, then sorts
+     *     encode        - encodes both output files into chunks, once every transaction has been applied
+     *     write master  - writes the chunks of the master events file, copying unchanged runs from their source
+     *     write current - writes the chunks of the current events file
+     * The outputs are the same as those of the sequential run.
+     */
+    private void start_pipelined() {
+        long start = System.nanoTime();
+        File master = new File("master-events");
+        File temp = new File("master-events.tmp");
+        File current_events = new File("current-events");
+        int expected = (int) Math.min(master.length() / 34 + 1, Integer.MAX_VALUE / 64);
+        names.ensure_capacity(expected);
+        events.ensure_capacity(expected);
+
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUE);
+        BlockingQueue<EventWriter.Chunk> master_chunks = new ArrayBlockingQueue<>(QUEUE);
+        BlockingQueue<EventWriter.Chunk> current_chunks = new ArrayBlockingQueue<>(QUEUE);
+        Stage read = new Stage("read") {
+            @Override protected void process() throws IOException, InterruptedException {
+                read_batches(this, master, batches);
+            }
+        };
+        Stage apply = new Stage("apply") {
+            @Override protected void process() throws InterruptedException {
+                apply_batches(this, batches);
+                order = events.sorted_by_date();
+            }
+        };
+        Stage encode = new Stage("encode") {
+            @Override protected void process() throws InterruptedException {
+                writer.encode(this, order, 0, order.length, END_LINE, master_chunks, current_chunks);
+            }
+        };
+        Stage write_master = new Stage("write master") {
+            @Override protected void process() throws IOException, InterruptedException {
+                writer.write_chunks(this, master_chunks, temp);
+            }
+        };
+        Stage write_current = new Stage("write current") {
+            @Override protected void process() throws IOException, InterruptedException {
+                writer.write_chunks(this, current_chunks, current_events);
+            }
+        };
+
+        try {
+            read.start();
+            apply.run();
+            read.join();
+            if (server != null) {
+                server.set_phase("writing");
+            }
+
+            CurrentEventsDelta.keep_previous(current_events);
+            new File(current_events.getPath() + CurrentEventsIndex.SUFFIX).delete();
+            new File(current_events.getPath() + CurrentEventsIndex.FILTER_SUFFIX).delete();
+            new File(current_events.getPath() + CurrentEventsDates.SUFFIX).delete();
+            write_master.start();
+            write_current.start();
+            encode.run();
+            write_master.join();
+            write_current.join();
+
+            Files.move(temp.toPath(), master.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            CurrentEventsDelta.write(current_events, CurrentEventsIndex.write(current_events), merged);
+            CurrentEventsDates.write(current_events, Arrays.asList(master));
+            writer.close();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to create master-events and current-events files: "
+                    + e.getMessage());
+            System.exit(1);
+        }
+        catch (InterruptedException e) {
+            System.err.println("[INTERNAL ERROR] The backend was interrupted");
+            System.exit(1);
+        }
+        archive_transactions();
+        take_snapshot(new ArrayList<>(Arrays.asList(master)));
+
+        if (stats) {
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("pipelined: %.1f ms%n", elapsed / 1e6);
+            for (Stage stage : new Stage[] {read, apply, encode, write_master, write_current}) {
+                System.out.println(stage.report(elapsed));
+            }
+        }
+    }
+
+    /**
+     * The read stage. Reads the master events file (if there is one) and then the merged transaction file, and hands
+     * their lines to the apply stage in batches, followed by Batch.END. Master events lines are decoded and checked
+     * the same way as by read_master.
+     * @param stage - the read stage
+     * @param master - the master events file
+     * @param batches - the queue to the apply stage
+     * @throws IOException - if the merged transaction file cannot be read
+     * @throws InterruptedException - if the stage is interrupted while waiting on the queue
+     */
+    private void read_batches(Stage stage, File master, BlockingQueue<Batch> batches)
+            throws IOException, InterruptedException {
+        Batch batch = new Batch(true);
+        if (master.isFile()) {
+            try (LineReader in = new LineReader(master)) {
+                int source = writer.add_source(master);
+                while (in.next()) {
+                    byte[] line = in.get_line();
+                    int length = in.get_length();
+                    batch.lines[batch.count] = decode_line(line, length);
+                    // the last line has no newline, so it is never copied
+                    batch.sources[batch.count] = in.is_terminated() && EventWriter.is_canonical(line, length)
+                            ? EventWriter.source(source, in.get_offset()) : EventTable.NONE;
+                    if (++batch.count == BATCH) {
+                        stage.put(batches, batch);
+                        batch = new Batch(true);
+                    }
+                }
+            }
+        }
+        if (batch.count > 0) {
+            stage.put(batches, batch);
+        }
+
+        batch = new Batch(false);
+        try (BufferedReader br = new BufferedReader(new FileReader("merged-transactions"))) {
+            String t;
+            while ((t = br.readLine()) != null) {
+                batch.lines[batch.count] = t;
+                if (++batch.count == BATCH) {
+                    stage.put(batches, batch);
+                    batch = new Batch(false);
+                }
+            }
+        }
+        if (batch.count > 0) {
+            stage.put(batches, batch);
+        }
+        stage.put(batches, Batch.END);
     }
 
     /**
-     * Reads in the master events file (if one is present) and populates the list of known events.
+     * The apply stage. Adds the events from master events batches and applies the transactions from merged
+     * transaction batches, in the order the batches arrive, until Batch.END.
+     * @param stage - the apply stage
+     * @param batches - the queue from the read stage
+     * @throws InterruptedException - if the stage is interrupted while waiting on the queue
      */
-    private void read_master() {
-        try (BufferedReader br = new BufferedReader(new FileReader("master-events"))) {
-            String m;
-            while ((m = br.readLine()) != null) {
+    private void apply_batches(Stage stage, BlockingQueue<Batch> batches) throws InterruptedException {
+        TransactionAggregator aggregator = new TransactionAggregator(names, events);
+        boolean published = server == null;   // true once the base view has been published, if serving
+        long applied = 0;
+        Batch batch;
+        while ((batch = stage.take(batches)) != Batch.END) {
+            if (!batch.master && !published) {
+                // every master events batch comes before the first merged transaction batch
+                server.publish_base(events);
+                published = true;
+            }
+            for (int i = 0; i < batch.count; ++i) {
+                String line = batch.lines[i];
+                if (batch.master) {
+                    int record = add_from_master(line);
+                    if (record != EventTable.NONE && batch.sources[i] != EventTable.NONE) {
+                        events.set_source(record, batch.sources[i]);
+                    }
+                    continue;
+                }
+                if (counts != null) {
+                    counts.count(line);
+                }
+                if (!aggregating || !aggregator.fold(line)) {
+                    handle_transaction(line);
+                }
+                if (server != null) {
+                    server.changed(changed_name(line));
+                }
+            }
+            if (!batch.master) {
+                applied += batch.count;
+                if (server != null && server.due()) {
+                    aggregator.flush();
+                    server.publish(events, applied);
+                }
+            }
+        }
+        aggregator.flush();
+        if (server != null) {
+            if (!published) {
+                server.publish_base(events);
+            }
+            server.publish(events, applied);
+        }
+    }
+
+    /**
+     * Runs the quibble backend in partitioned mode. Segments whose events have all passed are dropped without being
+     * read, and only the segments that have passed events or that the merged transactions might touch are read into
+     * the event table, updated, and written back. The current events file is then copied together from every segment.
+     */
+    private void start_partitioned() {
+        MasterSegments segments = new MasterSegments();
+        ArrayList<File> masters = new ArrayList<>();   // the segments written, in date order
+        try {
+            PhaseEvent phase = PhaseEvent.begin("read segments");
+            segments.read_manifest();
+            TreeSet<Integer> touched = new TreeSet<>();
+            for (int month : segments.months()) {
+                if (segments.get_last_date(month) < current_date) {
+                    // every event in the segment has passed
+                    segments.drop(month);
+                }
+                else if (segments.get_first_date(month) < current_date) {
+                    // some events in the segment have passed, so it has to be rewritten without them
+                    touched.add(month);
+                }
+            }
+            find_touched(segments, touched);
+
+            ArrayList<Integer> months = segments.months();
+            for (int month : touched) {
+                if (months.contains(month)) {
+                    read_master(segments.master_file(month));
+                }
+            }
+            // a master events file left from before the catalog was partitioned is split into segments
+            File master = new File("master-events");
+            boolean converting = months.isEmpty() && master.isFile();
+            if (converting) {
+                read_master(master);
+            }
+            phase.commit();
+
+            phase = PhaseEvent.begin("apply and sort");
+            read_merged();
+            order = events.sorted_by_date();
+            phase.commit();
+
+            phase = PhaseEvent.begin("write segments");
+
+            // events are in date order, so each month is a run of consecutive events
+            int from = 0;
+            while (from < order.length) {
+                int month = MasterSegments.month_of(events.get_event_date(order[from]));
+                int to = from;
+                while (to < order.length && MasterSegments.month_of(events.get_event_date(order[to])) == month) {
+                    ++to;
+                }
+                segments.write_segment(month, writer, events, order, from, to);
+                touched.remove(month);
+                from = to;
+            }
+            // touched segments with no events left
+            for (int month : touched) {
+                if (months.contains(month)) {
+                    segments.drop(month);
+                }
+            }
+            segments.write_manifest();
+            if (converting) {
+                master.delete();
+            }
+            phase.commit();
+
+            phase = PhaseEvent.begin("write current");
+            File current_events = new File("current-events");
+            CurrentEventsDelta.keep_previous(current_events);
+            new File(current_events.getPath() + CurrentEventsIndex.SUFFIX).delete();
+            new File(current_events.getPath() + CurrentEventsIndex.FILTER_SUFFIX).delete();
+            new File(current_events.getPath() + CurrentEventsDates.SUFFIX).delete();
+            segments.write_current_events(current_events, END_LINE);
+            CurrentEventsDelta.write(current_events, CurrentEventsIndex.write(current_events), merged);
+            for (int month : segments.months()) {
+                masters.add(segments.master_file(month));
+            }
+            CurrentEventsDates.write(current_events, masters);
+            writer.close();
+            phase.commit();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to update " + MasterSegments.DIRECTORY + ": " + e.getMessage());
+            System.exit(1);
+        }
+        archive_transactions();
+        take_snapshot(masters);
+    }
+
+    /**
+     * Appends the merged transaction file to the transaction archive in the current directory, once the outputs have
+     * been written (see TransactionArchive).
+     */
+    private void archive_transactions() {
+        archive_transactions(new File("merged-transactions"), current_date);
+    }
+
+    /**
+     * Stops the run before anything is written if a later run has already been archived, since the archive is kept in
+     * date order (see TransactionArchive).
+     *
+     * @param date - the date of the first run to be archived, as a YYMMDD integer
+     */
+    private void check_archive_order(int date) {
+        try {
+            int last = new TransactionArchive(new File(".")).last_date();
+            if (date < last) {
+                System.err.println(String.format("[BACKEND ERROR] Cannot run on %06d, a run on %06d has already "
+                        + "been archived", date, last));
+                System.exit(1);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to read " + TransactionArchive.INDEX + " file: "
+                    + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Appends a merged transaction file to the transaction archive as the run on a date.
+     *
+     * @param merged - the merged transaction file
+     * @param date - the date of the run, as a YYMMDD integer
+     */
+    private void archive_transactions(File merged, int date) {
+        PhaseEvent phase = PhaseEvent.begin("archive");
+        try {
+            new TransactionArchive(new File(".")).append(merged, date);
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to archive " + merged.getName() + " file: " + e.getMessage());
+            System.exit(1);
+        }
+        phase.commit();
+    }
+
+    /**
+     * Starts answering availability queries, if a port has been set.
+     */
+    private void start_server() {
+        if (serve_port < 0) {
+            return;
+        }
+        try {
+            server = new EventServer(serve_port);
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to answer queries on port " + serve_port + ": "
+                    + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the id of the name whose events a transaction may have changed, once it has been handled.
+     * @return the name id, or NameDictionary.NONE for a logout or an unknown name
+     */
+    private int changed_name(String t) {
+        if (t.startsWith("00")) {
+            return NameDictionary.NONE;
+        }
+        return names.lookup(t, trim_start(t, 3, 23), trim_end(t, 3, 23));
+    }
+
+    /**
+     * Stops answering availability queries, once the outputs have been written.
+     */
+    private void stop_server() {
+        if (server != null) {
+            server.set_phase("done");
+            server.stop();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the master events just written, if one is due (see Snapshots).
+     * @param masters - the master events file, or the master events segments in date order
+     */
+    private void take_snapshot(ArrayList<File> masters) {
+        Snapshots snapshots = new Snapshots(new File("."));
+        if (!snapshots.due(current_date)) {
+            return;
+        }
+        PhaseEvent phase = PhaseEvent.begin("snapshot");
+        try {
+            snapshots.write(current_date, masters, new TransactionArchive(new File(".")).get_run_count());
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to write snapshot: " + e.getMessage());
+            System.exit(1);
+        }
+        phase.commit();
+    }
+
+    /**
+     * Rebuilds the master events and current events files from the newest snapshot taken on or before a date and the
+     * runs archived after it, for when the master events have been lost. Each archived run is replayed the way the
+     * backend ran it, runs on the same date one after the other: the events left by the run before are put in date
+     * order and the events that had passed on the day of the run are dropped, as they are when a master events file
+     * is read, and then the run's transactions are applied with handle_transaction semantics. The files written are
+     * those the last replayed run wrote (as a flat master events file, even if the catalog was partitioned).
+     *
+     * @param until - the date of the last run to replay, as a YYMMDD integer
+     */
+    public void start_replay(int until) {
+        long start = System.nanoTime();
+        Snapshots snapshots = new Snapshots(new File("."));
+        TransactionArchive archive = new TransactionArchive(new File("."));
+        int from = snapshots.latest(until);
+        int days = 0;
+        merged = new ArrayList<>();   // the archived runs were all applied before
+        long transactions = 0;
+        try {
+            if (from != Snapshots.NONE) {
+                // the snapshot is read as it was written, so nothing is pruned until the next run is replayed
+                current_date = 0;
+                try (BufferedReader snapshot = snapshots.open(from)) {
+                    String m;
+                    while ((m = snapshot.readLine()) != null) {
+                        add_from_master(m);
+                    }
+                }
+            }
+            int end = archive.runs_until(until);
+            for (int run = first_run_after(snapshots, archive, from); run < end; ++run) {
+                ArrayList<String> lines = archive.read_run(run);
+                apply_run("replay run", archive.get_run_date(run), lines);
+                ++days;
+                transactions += lines.size();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to replay transaction history: " + e.getMessage());
+            System.exit(1);
+        }
+
+        PhaseEvent phase = PhaseEvent.begin("write replayed");
+        order = events.sorted_by_date();
+        create_master();
+        create_events();
+        phase.commit();
+        if (stats) {
+            System.out.printf("replay: snapshot %s, %d runs, %,d transactions, %,d events, %.1f ms%n",
+                    from == Snapshots.NONE ? "none" : String.format("%06d", from), days, transactions, order.length,
+                    (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    /**
+     * Returns the number of the first archived run that a snapshot does not hold: the number of runs recorded with it,
+     * or for a snapshot without one, the first run after its date.
+     *
+     * @param snapshots - the snapshots
+     * @param archive - the transaction archive
+     * @param from - the date of the snapshot, or Snapshots.NONE to start from the first run
+     * @return the number of the run
+     * @throws IOException - if the archive index cannot be read
+     */
+    private static int first_run_after(Snapshots snapshots, TransactionArchive archive, int from) throws IOException {
+        if (from == Snapshots.NONE) {
+            return 0;
+        }
+        int runs = snapshots.runs(from);
+        return runs != Snapshots.NONE ? runs : archive.runs_until(from);
+    }
+
+    /**
+     * Catches up on runs that were missed, such as after an outage, in one pass. The merged transaction file of each
+     * missed run is named merged-transactions.YYMMDD after the date the run should have had, and the runs are applied
+     * in date order to the master events file the way start_replay applies archived runs, each after the events that
+     * had passed by its date are dropped. The output files are written once, after the last run, and are the same as
+     * those of running the backend with --date on each missed date in turn; each run is archived under its own date,
+     * and a snapshot is taken after the last run if one is due. The files of the missed runs are then renamed with a
+     * .done suffix, so that catching up again does not apply them twice. With no such files, a notice is printed and
+     * nothing is changed.
+     */
+    public void start_catch_up() {
+        if (partitioned || pipelined || shards > 0 || serve_port >= 0
+                || new File(MasterSegments.DIRECTORY).isDirectory()) {
+            System.err.println("[BACKEND ERROR] Catch-up runs only on a flat master events file, in one process");
+            System.exit(1);
+        }
+        TreeMap<Integer, File> runs = new TreeMap<>();
+        File[] files = new File(".").listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(CATCH_UP_PREFIX) && name.substring(CATCH_UP_PREFIX.length()).matches("\\d{6}")) {
+                runs.put(Integer.parseInt(name.substring(CATCH_UP_PREFIX.length())), file);
+            }
+        }
+        if (runs.isEmpty()) {
+            // nothing was missed, or it has been caught up on already, so there is nothing to do
+            System.out.println("No " + CATCH_UP_PREFIX + "YYMMDD files to catch up on");
+            return;
+        }
+        merged = new ArrayList<>(runs.values());
+        check_archive_order(runs.firstKey());
+
+        long start = System.nanoTime();
+        PhaseEvent phase = PhaseEvent.begin("read master");
+        current_date = runs.firstKey();
+        read_master(new File("master-events"));
+        phase.commit();
+        long read = System.nanoTime();
+        long transactions = 0;
+        for (Map.Entry<Integer, File> run : runs.entrySet()) {
+            ArrayList<String> lines = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new FileReader(run.getValue()))) {
+                String t;
+                while ((t = br.readLine()) != null) {
+                    lines.add(t);
+                }
+            }
+            catch (IOException e) {
+                System.err.println("[BACKEND ERROR] Unable to read " + run.getValue().getName() + " file: "
+                        + e.getMessage());
+                System.exit(1);
+            }
+            apply_run("catch-up run", run.getKey(), lines);
+            transactions += lines.size();
+        }
+        long applied = System.nanoTime();
+
+        phase = PhaseEvent.begin("write master");
+        order = events.sorted_by_date();
+        create_master();
+        phase.commit();
+        phase = PhaseEvent.begin("write current");
+        create_events();
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to close master-events file: " + e.getMessage());
+            System.exit(1);
+        }
+        phase.commit();
+        long written = System.nanoTime();
+        for (Map.Entry<Integer, File> run : runs.entrySet()) {
+            archive_transactions(run.getValue(), run.getKey());
+        }
+        take_snapshot(new ArrayList<>(Arrays.asList(new File("master-events"))));
+        for (File run : runs.values()) {
+            if (!run.renameTo(new File(run.getPath() + CATCH_UP_DONE))) {
+                System.err.println("[BACKEND ERROR] Unable to rename processed " + run.getName() + " file");
+                System.exit(1);
+            }
+        }
+        if (stats) {
+            long end = System.nanoTime();
+            System.out.printf("catch-up: %d runs, %06d to %06d, %,d transactions, %,d events, %.1f ms%n",
+                    runs.size(), runs.firstKey(), runs.lastKey(), transactions, order.length, (end - start) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "read master", (read - start) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "apply runs", (applied - read) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "write outputs", (written - applied) / 1e6);
+            System.out.printf("    %-14s %9.1f ms%n", "archive", (end - written) / 1e6);
+        }
+    }
+
+    /**
+     * Applies the transactions of one run to the events left by the run before, as the backend would have on the date
+     * of the run. Passed and deleted events are left as tombstones, and the table is only copied without them once
+     * they outnumber the live events, so each run costs a scan of the table rather than a copy of it.
+     *
+     * @param phase_name - the name of the phase recorded for the run (see PhaseEvent)
+     * @param date - the date of the run, as a YYMMDD integer
+     * @param run - the lines of the run's merged transaction file
+     */
+    private void apply_run(String phase_name, int date, ArrayList<String> run) {
+        events.prune(date);
+        if (events.tombstones() > events.live()) {
+            // the copy has no sources, so the writer of the old table is no longer needed
+            events = events.compacted(events.sorted_by_date(), date);
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                System.err.println("[BACKEND ERROR] Unable to close master-events file: " + e.getMessage());
+                System.exit(1);
+            }
+            writer = new EventWriter(events);
+        }
+        else {
+            events.chain_by_date();
+        }
+        current_date = date;
+        PhaseEvent phase = PhaseEvent.begin(phase_name);
+        counts = TransactionCountsEvent.begin(date);
+        handle_transactions(run);
+        if (counts != null) {
+            counts.commit();
+            counts = null;
+        }
+        phase.commit();
+    }
+
+    /**
+     * Returns the events with a name as they were in the current events file written by the last run on or before a
+     * date. Only the events with that name are rebuilt: they are read from the checkpoint of the newest snapshot
+     * taken on or before the date (see Snapshots), and the archived transactions for the name since the snapshot are
+     * applied to them as start_replay would, run by run from the first run the snapshot does not hold, with events
+     * that had passed dropped before each run. No other event can affect them, so the answer is the same as a full
+     * replay, in time that depends on the number of runs since the snapshot rather than the length of the history.
+     *
+     * @param dir - the directory holding the snapshots and the transaction archive
+     * @param name - the trimmed event name
+     * @param date - the date, as a YYMMDD integer
+     * @return the events as lines of the current events file, in the order of the file; none if there was no event
+     */
+    public ArrayList<String> availability(File dir, String name, int date) {
+        ArrayList<String> found = new ArrayList<>();
+        try {
+            Snapshots snapshots = new Snapshots(dir);
+            TransactionArchive archive = new TransactionArchive(dir);
+            int from = snapshots.latest(date);
+            int name_id = names.intern(name);
+            if (from != Snapshots.NONE) {
+                for (int[] event : snapshots.read_events(from, name)) {
+                    events.add(name_id, event[0], event[1]);
+                }
+            }
+
+            int first = first_run_after(snapshots, archive, from);
+            int end = archive.runs_until(date);
+            ArrayList<ArrayList<String>> history = archive.history_by_run(name, first, end);
+            for (int run = first; run < end; ++run) {
+                ArrayList<String> transactions = history.get(run - first);
+                // runs without transactions for the name only drop passed events, which the next run does as well
+                if (transactions.isEmpty() && run < end - 1) {
+                    continue;
+                }
+                int run_date = archive.get_run_date(run);
+                events = events.compacted(events.sorted_by_date(), run_date);
+                current_date = run_date;
+                handle_transactions(transactions);
+            }
+
+            StringWriter line = new StringWriter();
+            for (int record : events.sorted_by_date()) {
+                line.getBuffer().setLength(0);
+                events.write_current_event(record, line);
+                found.add(line.getBuffer().substring(0, line.getBuffer().length() - 1));
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] Unable to read transaction history: " + e.getMessage());
+            System.exit(1);
+        }
+        return found;
+    }
+
+    /**
+     * Finds the segments that the merged transactions might touch: the month of every created event, and every
+     * segment whose name filter may contain the name of a transaction.
+     * @param segments - the master segments
+     * @param touched - the set of touched months to add to
+     * @throws IOException - if the merged transaction file or a name filter cannot be read
+     */
+    private void find_touched(MasterSegments segments, TreeSet<Integer> touched) throws IOException {
+        ArrayList<Integer> months = segments.months();
+        try (BufferedReader br = new BufferedReader(new FileReader("merged-transactions"))) {
+            String t;
+            while ((t = br.readLine()) != null) {
+                int t_code = Integer.parseInt(t, 0, 2, 10);
+                if (t_code == 0) {
+                    continue;
+                }
+                if (t_code == 3) {
+                    touched.add(MasterSegments.month_of(
+                            Integer.parseInt(t, trim_start(t, 24, 30), trim_end(t, 24, 30), 10)));
+                    continue;
+                }
+                int name_start = trim_start(t, 3, 23);
+                int name_end = trim_end(t, 3, 23);
+                for (int month : months) {
+                    if (!touched.contains(month) && segments.might_contain(month, t, name_start, name_end)) {
+                        touched.add(month);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads in a master events file (if one is present) and populates the list of known events. The file is read as
+     * bytes so that the offset of every line is known, and lines that can be copied to the outputs unchanged are
+     * registered as the source of their event.
+     * @param master - the master events file, or a master events segment
+     */
+    private void read_master(File master) {
+        // master lines are 34 characters long for names of up to 20 characters
+        int expected = (int) Math.min(master.length() / 34 + 1, Integer.MAX_VALUE / 64);
+        names.ensure_capacity(events.size() + expected);
+        events.ensure_capacity(events.size() + expected);
+
+        if (shard_worker) {
+            master_lines = new int[expected];
+        }
+        try (LineReader in = new LineReader(master)) {
+            int source = writer.add_source(master);
+            for (int line_number = 0; in.next(); ++line_number) {
                 // parse each line from the master file and populate the events
-                add_from_master(m);
+                byte[] line = in.get_line();
+                int length = in.get_length();
+                int record = add_from_master(decode_line(line, length));
+                if (shard_worker && record != EventTable.NONE) {
+                    if (record == master_lines.length) {
+                        master_lines = Arrays.copyOf(master_lines, record * 2 + 1);
+                    }
+                    master_lines[record] = line_number;
+                    master_records = record + 1;
+                }
+                // the last line has no newline, so it is never copied
+                if (record != EventTable.NONE && in.is_terminated() && EventWriter.is_canonical(line, length)) {
+                    events.set_source(record, EventWriter.source(source, in.get_offset()));
+                }
             }
         }
         // If we haven't created a master events file, then we don't need to do anything.
@@ -56,7 +1031,7 @@ public class QuibbleBE {
             return;
         }
         catch (IOException e) {
-            System.err.println("[BACKEND ERROR] Unable to read master-events file: " + e.getMessage());
+            System.err.println("[BACKEND ERROR] Unable to read " + master.getPath() + " file: " + e.getMessage());
             System.exit(1);
         }
     }
@@ -66,13 +1041,31 @@ public class QuibbleBE {
      */
      private void read_merged() {
         try (BufferedReader br = new BufferedReader(new FileReader("merged-transactions"))) {
+            if (server == null) {
+                handle_transactions(br.lines()::iterator);
+                return;
+            }
+            // when serving, a view is published between batches of transactions, once folded transactions are applied
+            TransactionAggregator aggregator = new TransactionAggregator(names, events);
+            long applied = 0;
             String t;
             while ((t = br.readLine()) != null) {
-                // modify an event based on the transaction code
-                handle_transaction(t);
+                if (counts != null) {
+                    counts.count(t);
+                }
+                if (!aggregating || !aggregator.fold(t)) {
+                    handle_transaction(t);
+                }
+                server.changed(changed_name(t));
+                if (++applied % BATCH == 0 && server.due()) {
+                    aggregator.flush();
+                    server.publish(events, applied);
+                }
             }
+            aggregator.flush();
+            server.publish(events, applied);
         }
-        catch (IOException e) {
+        catch (IOException | UncheckedIOException e) {
             System.err.println("[BACKEND ERROR] Unable to read merged-transactions file: " + e.getMessage());
             System.exit(1);
         }
@@ -84,17 +1077,12 @@ public class QuibbleBE {
      */
     private void create_master() {
         File master = new File("master-events");
-        if (master.exists()) {
-            master.delete();
-        }
+        // the previous master events file is still being copied from, so it is replaced once the new one is written
+        File temp = new File("master-events.tmp");
 
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(master))) {
-            for (Event event : events) {
-                // write the event as a master event
-                bw.write(event.to_master_event());
-                bw.write("\n");
-            }
-            bw.close();
+        try {
+            writer.write_master(temp, order, 0, order.length);
+            Files.move(temp.toPath(), master.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
         catch (IOException e) {
             System.err.println("[BACKEND ERROR] Unable to create master-events file: " + e.getMessage());
@@ -104,24 +1092,27 @@ public class QuibbleBE {
     }
 
     /**
-     * Creates the current events file based on the current state of the events in the backend. Overwrites the
-     * previous current events file.
+     * Creates the current events file based on the current state of the events in the backend. Replaces the
+     * previous current events file, and writes its sidecar name index and filter (see CurrentEventsIndex) and the
+     * delta from the previous file (see CurrentEventsDelta). A shard worker writes no delta, since the coordinator
+     * writes one for the merged file.
      */
     private void create_events() {
         File current_events = new File("current-events");
-        if (current_events.exists()) {
-            current_events.delete();
-        }
+        try {
+            CurrentEventsDelta.keep_previous(current_events);
+            // an index and filter left from the previous run no longer match
+            new File(current_events.getPath() + CurrentEventsIndex.SUFFIX).delete();
+            new File(current_events.getPath() + CurrentEventsIndex.FILTER_SUFFIX).delete();
+            new File(current_events.getPath() + CurrentEventsDates.SUFFIX).delete();
 
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(current_events))) {
-            for (Event event : events) {
-                // write the event as a current event
-                bw.write(event.to_current_event());
-                bw.write("\n");
+            // write every event as a current event, followed by the END transaction
+            writer.write_current(current_events, order, 0, order.length, END_LINE);
+            CurrentEventsIndex index = CurrentEventsIndex.write(current_events);
+            if (!shard_worker) {
+                CurrentEventsDelta.write(current_events, index, merged);
+                CurrentEventsDates.write(current_events, Arrays.asList(new File("master-events")));
             }
-            // write the END transaction to the file
-            bw.write(String.format("%-20s", "END") + " " + String.format("%5s", "0").replace(" ", "0"));
-            bw.close();
         }
         catch (IOException e) {
             System.err.println("[BACKEND ERROR] Unable to create current-events file: " + e.getMessage());
@@ -134,18 +1125,59 @@ public class QuibbleBE {
      * line adds the event based on the event name and number of tickets remaining. If the event date has already
      * passed, the event is not added to the event list.
      * @param m - the line from the master events file to be parsed
+     * @return the record number of the event, or EventTable.NONE if the event has passed
      */
-    private void add_from_master(String m) {
-        String event_date = m.substring(0, 6).trim();
-        int tickets = Integer.parseInt(m.substring(7, 12));
-        String event_name = m.substring(13).trim();
+    private int add_from_master(String m) {
+        int event_date = Integer.parseInt(m, trim_start(m, 0, 6), trim_end(m, 0, 6), 10);
+        int tickets = Integer.parseInt(m, 7, 12, 10);
 
         // don't add the event if the day has already passed
-        if (Integer.parseInt(event_date) < Integer.parseInt(current_date)) {
-            return;
+        if (event_date < current_date) {
+            return EventTable.NONE;
+        }
+
+        int name_id = names.intern(m, trim_start(m, 13, m.length()), trim_end(m, 13, m.length()));
+        return events.add(name_id, event_date, tickets);
+    }
+
+    /**
+     * Decodes a line read as bytes the same way BufferedReader.readLine would, dropping a carriage return before the
+     * newline.
+     */
+    private static String decode_line(byte[] line, int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            --length;
         }
+        return new String(line, 0, length);
+    }
 
-        events.add(new Event(event_name, event_date, tickets));
+    /**
+     * Modifies the events based on a sequence of lines from the merged transaction file, in order. Unless aggregation
+     * has been turned off, ticket transactions are folded per event by a TransactionAggregator and each event is
+     * updated once, with the same result as handling every transaction on its own.
+     *
+     * @param transactions - the lines from the merged transaction file
+     */
+    public void handle_transactions(Iterable<String> transactions) {
+        if (!aggregating) {
+            for (String t : transactions) {
+                if (counts != null) {
+                    counts.count(t);
+                }
+                handle_transaction(t);
+            }
+            return;
+        }
+        TransactionAggregator aggregator = new TransactionAggregator(names, events);
+        for (String t : transactions) {
+            if (counts != null) {
+                counts.count(t);
+            }
+            if (!aggregator.fold(t)) {
+                handle_transaction(t);
+            }
+        }
+        aggregator.flush();
     }
 
     /**
@@ -156,42 +1188,62 @@ public class QuibbleBE {
      * @param t - the line from the merged transaction file to be parsed
      */
     public void handle_transaction(String t) {
-        int t_code = Integer.parseInt(t.substring(0, 2));
-        String event_name = t.substring(3,23).trim();
-        String event_date = t.substring(24, 30).trim();
-        int tickets = Integer.parseInt(t.substring(31));
+        int t_code = Integer.parseInt(t, 0, 2, 10);
+        int name_start = trim_start(t, 3, 23);
+        int name_end = trim_end(t, 3, 23);
+        int tickets = Integer.parseInt(t, 31, t.length(), 10);
 
         // command is logout, nothing to do!
         if (t_code == 0) {
             return;
         }
 
-        Event event = new Event(event_name, event_date, tickets);
-
         // command is create
         if (t_code == 3) {
-            events.add(event);
+            int event_date = Integer.parseInt(t, trim_start(t, 24, 30), trim_end(t, 24, 30), 10);
+            events.add(names.intern(t, name_start, name_end), event_date, tickets);
+            return;
         }
 
-        int event_index = events.indexOf(event);
+        // names that were never interned cannot belong to any event
+        int found_event = events.find(names.lookup(t, name_start, name_end));
         // the event must have been deleted by another terminal, just exit out of the method
-        if (event_index == -1) {
+        if (found_event == EventTable.NONE) {
             return;
         }
 
-        Event found_event = events.get(event_index);
-
         // command is sell
         if (t_code == 1) {
-            found_event.sell_tickets(tickets);
+            events.sell_tickets(found_event, tickets);
         }
         // command is return or add
         if (t_code == 2 || t_code == 4) {
-            found_event.add_tickets(tickets);
+            events.add_tickets(found_event, tickets);
         }
         // command is delete
         if (t_code == 5) {
-            events.remove(found_event);
+            events.delete(found_event);
+        }
+    }
+
+    /**
+     * Returns the index of the first character in a range of a line that is not whitespace, the same characters
+     * String.trim removes. Used to parse fields without creating substrings.
+     */
+    static int trim_start(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            ++start;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the index after the last character in a range of a line that is not whitespace.
+     */
+    static int trim_end(String line, int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            --end;
         }
+        return end;
     }
 }
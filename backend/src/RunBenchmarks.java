@@ -0,0 +1,379 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Benchmarks of whole back end runs in separate processes: sequential against pipelined, answering availability
+ * queries while running, sharding over worker processes and catching up on missed days. See Benchmark for how each
+ * is run.
+ */
+public class RunBenchmarks {
+    /**
+     * Runs the whole back end on a generated master events file and merged transaction file, once sequentially and
+     * once pipelined, and prints the time each phase or stage took. Each run is a separate process started in a
+     * temporary directory (see run_backend). The outputs of the two runs are compared.
+     *
+     * @param catalog - the number of events in the master events file
+     * @param transactions - the number of transactions in the merged transaction file
+     */
+    static void bench_pipeline(int catalog, int transactions) {
+        try {
+            File input = Files.createTempDirectory("quibble-pipeline").toFile();
+            write_inputs(input, catalog, transactions);
+            System.out.printf("pipeline: %,d events, %,d transactions%n", catalog, transactions);
+
+            File[] outputs = new File[2];
+            String[] modes = {"--stats", "--pipelined --stats"};
+            for (int i = 0; i < modes.length; ++i) {
+                outputs[i] = Files.createTempDirectory("quibble-pipeline").toFile();
+                for (File file : input.listFiles()) {
+                    Files.copy(file.toPath(), new File(outputs[i], file.getName()).toPath());
+                }
+                long start = System.nanoTime();
+                Benchmark.run_backend(outputs[i], modes[i].split(" "));
+                System.out.printf("    process total %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            }
+
+            boolean same = true;
+            for (String name : new String[] {"master-events", "current-events"}) {
+                same &= Arrays.equals(Files.readAllBytes(new File(outputs[0], name).toPath()),
+                        Files.readAllBytes(new File(outputs[1], name).toPath()));
+            }
+            System.out.println("    same output: " + same);
+
+            for (File dir : new File[] {input, outputs[0], outputs[1]}) {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the whole back end on a generated master events file and merged transaction file with --serve, once
+     * sequentially and once pipelined, while this process keeps asking it for the events of hot and cold events over
+     * HTTP until it finishes, a query at a time with a millisecond between them. Reports the latency of the queries,
+     * how many views were published, and the running time of the back end against a run that does not serve queries.
+     * Answers must never come from an older view than an earlier answer, and the answers from the last view must match
+     * the current events file.
+     *
+     * @param catalog - the number of events in the master events file
+     * @param transactions - the number of transactions in the merged transaction file
+     */
+    static void bench_serve(int catalog, int transactions) {
+        try {
+            File input = Files.createTempDirectory("quibble-serve").toFile();
+            write_inputs(input, catalog, transactions);
+            System.out.printf("serve: %,d events, %,d transactions%n", catalog, transactions);
+            HttpClient client = HttpClient.newHttpClient();
+            Random random = new Random(Benchmark.SEED);
+            int hot = Math.max(1, catalog / 100);
+
+            for (String mode : new String[] {"sequential", "pipelined"}) {
+                File dir = Files.createTempDirectory("quibble-serve").toFile();
+                for (File file : input.listFiles()) {
+                    Files.copy(file.toPath(), new File(dir, file.getName()).toPath());
+                }
+                ArrayList<String> args = new ArrayList<>();
+                if (mode.equals("pipelined")) {
+                    args.add("--pipelined");
+                }
+                long start = System.nanoTime();
+                Benchmark.run_backend(dir, args.toArray(new String[0]));
+                long plain = System.nanoTime() - start;
+                for (File file : input.listFiles()) {
+                    Files.copy(file.toPath(), new File(dir, file.getName()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                int port;
+                try (ServerSocket socket = new ServerSocket(0)) {
+                    port = socket.getLocalPort();
+                }
+                args.add("--serve");
+                args.add(Integer.toString(port));
+                start = System.nanoTime();
+                Process process = Benchmark.start_backend(dir, args.toArray(new String[0]));
+                ArrayList<Long> latencies = new ArrayList<>();
+                HashMap<String, String> last = new HashMap<>();   // answers from the newest view seen, by name
+                HashSet<Long> versions = new HashSet<>();
+                long newest = 0;
+                int unavailable = 0;
+                int stale = 0;
+                String phase = "none";
+                while (process.isAlive()) {
+                    // at most about a thousand queries a second, so the client does not take over the processors
+                    Thread.sleep(1);
+                    String name = "event " + (random.nextInt(10) < 9 ? random.nextInt(hot) : random.nextInt(catalog));
+                    URI uri = URI.create("http://localhost:" + port + "/events?name="
+                            + URLEncoder.encode(name, StandardCharsets.UTF_8));
+                    long sent = System.nanoTime();
+                    HttpResponse<String> response;
+                    try {
+                        response = client.send(HttpRequest.newBuilder(uri).build(),
+                                HttpResponse.BodyHandlers.ofString());
+                    }
+                    catch (IOException e) {
+                        // not listening yet, or already stopped
+                        continue;
+                    }
+                    latencies.add(System.nanoTime() - sent);
+                    if (response.statusCode() == 503) {
+                        ++unavailable;
+                        continue;
+                    }
+                    long version = Long.parseLong(response.headers().firstValue("Quibble-Version").orElse("0"));
+                    stale += version < newest ? 1 : 0;
+                    newest = Math.max(newest, version);
+                    versions.add(version);
+                    last.put(name, version + " " + (response.statusCode() == 200 ? response.body() : ""));
+                    if (random.nextInt(100) == 0) {
+                        String status = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port
+                                + "/status")).build(), HttpResponse.BodyHandlers.ofString()).body();
+                        phase = status.substring(6, status.indexOf('\n'));
+                    }
+                }
+                if (process.waitFor() != 0) {
+                    System.err.println("[BACKEND ERROR] The back end failed in " + dir);
+                    System.exit(1);
+                }
+                long served = System.nanoTime() - start;
+
+                // answers from the last view must match the file written from it
+                HashMap<String, String> expected = new HashMap<>();
+                for (String line : Files.readAllLines(new File(dir, "current-events").toPath())) {
+                    String name = line.substring(0, line.length() - 6).trim();
+                    expected.merge(name, line + "\n", String::concat);
+                }
+                int checked = 0;
+                int wrong = 0;
+                for (String name : last.keySet()) {
+                    String answer = last.get(name);
+                    if (Long.parseLong(answer.substring(0, answer.indexOf(' '))) == newest) {
+                        ++checked;
+                        wrong += answer.substring(answer.indexOf(' ') + 1).equals(expected.getOrDefault(name, ""))
+                                ? 0 : 1;
+                    }
+                }
+
+                Collections.sort(latencies);
+                System.out.printf("    %-10s %,d queries (%d before the base view), %d views seen, %d stale answers, "
+                        + "last phase seen %s%n", mode, latencies.size(), unavailable, versions.size(), stale, phase);
+                if (!latencies.isEmpty()) {
+                    System.out.printf("               latency median %.2f ms, 99th percentile %.2f ms; %d answers from "
+                            + "the last view, %d wrong%n", latencies.get(latencies.size() / 2) / 1e6,
+                            latencies.get(latencies.size() * 99 / 100) / 1e6, checked, wrong);
+                }
+                System.out.printf("               back end %.1f ms serving, %.1f ms not serving%n", served / 1e6,
+                        plain / 1e6);
+                Benchmark.delete_tree(dir);
+            }
+            Benchmark.delete_tree(input);
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the whole back end on a generated master events file and merged transaction file, in one process and then
+     * sharded over each given number of worker processes, printing the time each phase took and checking that every
+     * sharded run writes the same files as the single process.
+     *
+     * @param catalog - the number of events in the master events file
+     * @param transactions - the number of transactions in the merged transaction file
+     * @param counts - the numbers of shards to run, as a comma separated list
+     */
+    static void bench_shards(int catalog, int transactions, String counts) {
+        try {
+            File input = Files.createTempDirectory("quibble-shards").toFile();
+            write_inputs(input, catalog, transactions);
+            System.out.printf("shards: %,d events, %,d transactions, %d processors%n", catalog, transactions,
+                    Runtime.getRuntime().availableProcessors());
+
+            ArrayList<String> modes = new ArrayList<>();
+            modes.add("");
+            for (String count : counts.split(",")) {
+                modes.add(count);
+            }
+            byte[][] expected = null;
+            for (String mode : modes) {
+                File dir = Files.createTempDirectory("quibble-shards").toFile();
+                for (File file : input.listFiles()) {
+                    Files.copy(file.toPath(), new File(dir, file.getName()).toPath());
+                }
+                long start = System.nanoTime();
+                if (mode.isEmpty()) {
+                    Benchmark.run_backend(dir, "--stats");
+                }
+                else {
+                    Benchmark.run_backend(dir, "--stats", "--shards", mode);
+                }
+                System.out.printf("    process total %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+                byte[][] outputs = {Files.readAllBytes(new File(dir, "master-events").toPath()),
+                        Files.readAllBytes(new File(dir, "current-events").toPath())};
+                if (expected == null) {
+                    expected = outputs;
+                }
+                else {
+                    System.out.println("    same output: " + (Arrays.equals(expected[0], outputs[0])
+                            && Arrays.equals(expected[1], outputs[1])));
+                }
+                Benchmark.delete_tree(dir);
+            }
+            Benchmark.delete_tree(input);
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes a master events file, in date order as the back end always writes it, and a merged transaction file of
+     * hot-event-skewed sells to a directory.
+     */
+    private static void write_inputs(File dir, int catalog, int transactions) throws IOException {
+        Random random = new Random(Benchmark.SEED);
+        int[] dates = new int[catalog];
+        for (int i = 0; i < catalog; ++i) {
+            dates[i] = Benchmark.random_date(random);
+        }
+        Arrays.sort(dates);
+        try (Writer out = new BufferedWriter(new FileWriter(new File(dir, "master-events")), 1 << 16)) {
+            for (int i = 0; i < catalog; ++i) {
+                out.write(String.format("%06d %05d %-20s%n", dates[i], random.nextInt(100000), "event " + i));
+            }
+        }
+        try (Writer out = new BufferedWriter(new FileWriter(new File(dir, "merged-transactions")), 1 << 16)) {
+            for (String line : Benchmark.skewed_transactions(transactions, catalog, random)) {
+                out.write(line);
+                out.write('\n');
+            }
+            out.write(String.format("00 %-20s 000000 00000%n", ""));
+        }
+    }
+
+    /**
+     * Catches up on a number of missed days over a generated master events file, once with a back end run for each
+     * day (with --date) and once with a single --catch-up run, and times a run for the first day alone for reference.
+     * Each day's transactions are hot-event-skewed sells with a new event created every twentieth transaction; the
+     * days start on the first of January 2027, so the first day drops the events of 2026. Both ways have to leave the
+     * same master events file, current events file and transaction archive.
+     *
+     * @param catalog - the number of events in the master events file
+     * @param days - the number of missed days
+     * @param transactions - the number of transactions on each day
+     */
+    static void bench_catchup(int catalog, int days, int transactions) {
+        try {
+            File input = Files.createTempDirectory("quibble-catchup").toFile();
+            write_inputs(input, catalog, 0);
+            Random random = new Random(Benchmark.SEED);
+            for (int day = 0; day < days; ++day) {
+                File file = new File(input, String.format("merged-transactions.%06d", Benchmark.day_date(day)));
+                try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+                    String[] sells = Benchmark.skewed_transactions(transactions, catalog, random);
+                    for (int i = 0; i < transactions; ++i) {
+                        if (i % 20 == 19) {
+                            out.write(String.format("03 %-20s %06d %05d%n", "new " + day + " " + i,
+                                    Benchmark.day_date(day + 1 + random.nextInt(180)),
+                                    1 + random.nextInt(Event.MAX_TICKETS)));
+                        }
+                        else {
+                            out.write(sells[i]);
+                            out.write('\n');
+                        }
+                    }
+                    out.write(String.format("00 %-20s 000000 00000%n", ""));
+                }
+            }
+            new File(input, "merged-transactions").delete();
+            System.out.printf("catchup: %,d events, %d days of %,d transactions%n", catalog, days, transactions);
+
+            File[] outputs = new File[3];
+            for (int i = 0; i < outputs.length; ++i) {
+                outputs[i] = Files.createTempDirectory("quibble-catchup").toFile();
+                for (File file : input.listFiles()) {
+                    Files.copy(file.toPath(), new File(outputs[i], file.getName()).toPath());
+                }
+            }
+
+            long start = System.nanoTime();
+            for (int day = 0; day < days; ++day) {
+                String date = String.format("%06d", Benchmark.day_date(day));
+                Files.move(new File(outputs[0], "merged-transactions." + date).toPath(),
+                        new File(outputs[0], "merged-transactions").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Benchmark.run_backend(outputs[0], "--date", date);
+            }
+            long daily = System.nanoTime() - start;
+            start = System.nanoTime();
+            Benchmark.run_backend(outputs[1], "--catch-up");
+            long catch_up = System.nanoTime() - start;
+            String first = String.format("%06d", Benchmark.day_date(0));
+            Files.move(new File(outputs[2], "merged-transactions." + first).toPath(),
+                    new File(outputs[2], "merged-transactions").toPath());
+            start = System.nanoTime();
+            Benchmark.run_backend(outputs[2], "--date", first);
+            long single = System.nanoTime() - start;
+
+            System.out.printf("    %-18s %9.1f ms%n", "one run", single / 1e6);
+            System.out.printf("    %-18s %9.1f ms  (%.2fx one run)%n", "a run per day", daily / 1e6,
+                    (double) daily / single);
+            System.out.printf("    %-18s %9.1f ms  (%.2fx one run)%n", "catch-up", catch_up / 1e6,
+                    (double) catch_up / single);
+            boolean same = true;
+            for (String name : new String[] {"master-events", "current-events", TransactionArchive.FILE}) {
+                same &= Arrays.equals(Files.readAllBytes(new File(outputs[0], name).toPath()),
+                        Files.readAllBytes(new File(outputs[1], name).toPath()));
+            }
+            System.out.println("    same output: " + same);
+
+            // the processed files are renamed, so catching up again finds nothing to apply and changes nothing
+            String[] checked = {"master-events", "current-events", TransactionArchive.FILE,
+                    TransactionArchive.INDEX};
+            byte[][] before = new byte[checked.length][];
+            for (int i = 0; i < checked.length; ++i) {
+                before[i] = Files.readAllBytes(new File(outputs[1], checked[i]).toPath());
+            }
+            boolean succeeded = Benchmark.start_backend(outputs[1], "--catch-up").waitFor() == 0;
+            boolean unchanged = true;
+            for (int i = 0; i < checked.length; ++i) {
+                unchanged &= Arrays.equals(before[i], Files.readAllBytes(new File(outputs[1], checked[i]).toPath()));
+            }
+            System.out.println("    catch-up again: succeeded " + succeeded + ", unchanged " + unchanged);
+
+            Benchmark.delete_tree(input);
+            for (File dir : outputs) {
+                Benchmark.delete_tree(dir);
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("[BACKEND ERROR] Unable to run the back end: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Runs the back end as a number of worker processes, each on a shard of the events. The coordinator splits the master
+ * events file and the merged transaction file by a hash of the event name, so every event with a name and every
+ * transaction for it go to the same shard, runs a back end on each shard in a directory of its own, and merges their
+ * outputs into one master events file and one current events file, the same as those of a single back end.
+ *
+ * A single back end writes its events by date, and events on the same date in the order they were added: the events
+ * of the master events file in the order of their lines, then the created events in the order of their transactions.
+ * A worker keeps that order within its shard, and also writes master-events.origins, giving for each event it writes
+ * the line of its master events file or the create transaction the event came from. The coordinator turns that into
+ * the position of the line or transaction in the files it split, and merges the shards by date and that position.
+ *
+ * The shards are kept in the directory DIRECTORY while the workers run, and deleted once the outputs are merged.
+ */
+public class ShardCoordinator {
+    public static final String DIRECTORY = "master-events.shards";
+    public static final String ORIGINS = "master-events.origins";
+
+    private int shards;
+    private int current_date;
+    private File dir;
+    private Ints[] master_lines;   // for each shard, the line of the master events file each of its lines came from
+    private Ints[] creates;        // for each shard, the line of the merged transaction file of each of its creates
+    private int master_count;      // number of lines in the master events file
+    private long split_time;       // nanoseconds spent in each phase, for reporting
+    private long run_time;
+    private long merge_time;
+
+    /**
+     * A growable list of ints.
+     */
+    private static class Ints {
+        int[] values = new int[1024];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * The next line of a shard's outputs, while merging.
+     */
+    private static class Head {
+        int shard;
+        int date;
+        long position;   // position of the line or transaction the event came from, creates after every line
+
+        Head(int shard_) {
+            shard = shard_;
+        }
+    }
+
+    /**
+     * Two parameter constructor for the coordinator.
+     *
+     * @param shards_ - the number of shards, and of worker processes
+     * @param current_date_ - the date the workers run as, as a YYMMDD integer
+     */
+    public ShardCoordinator(int shards_, int current_date_) {
+        shards = shards_;
+        current_date = current_date_;
+        dir = new File(DIRECTORY);
+    }
+
+    /**
+     * Splits the inputs in the current directory, runs the workers and writes the merged master events and current
+     * events files.
+     *
+     * @throws IOException - if a file cannot be read or written, or a worker cannot be started
+     * @throws InterruptedException - if interrupted while waiting for the workers
+     */
+    public void run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        split();
+        long split = System.nanoTime();
+        run_workers();
+        long ran = System.nanoTime();
+        merge();
+        delete_tree(dir);
+        merge_time = System.nanoTime() - ran;
+        run_time = ran - split;
+        split_time = split - start;
+    }
+
+    /**
+     * Returns the time taken by each phase of the last run, as lines for the --stats report.
+     * @return the report
+     */
+    public String report() {
+        return String.format("    %-14s %9.1f ms%n    %-14s %9.1f ms%n    %-14s %9.1f ms", "split", split_time / 1e6,
+                "run " + shards + " workers", run_time / 1e6, "merge", merge_time / 1e6);
+    }
+
+    /**
+     * Writes each shard's master events file and merged transaction file. Logouts belong to no event and are left out.
+     */
+    private void split() throws IOException {
+        delete_tree(dir);
+        master_lines = new Ints[shards];
+        creates = new Ints[shards];
+        OutputStream[] masters = new OutputStream[shards];
+        Writer[] transactions = new Writer[shards];
+        try {
+            for (int s = 0; s < shards; ++s) {
+                File shard = new File(dir, Integer.toString(s));
+                shard.mkdirs();
+                master_lines[s] = new Ints();
+                creates[s] = new Ints();
+                masters[s] = new BufferedOutputStream(new FileOutputStream(new File(shard, "master-events")), 1 << 16);
+                transactions[s] = new BufferedWriter(new FileWriter(new File(shard, "merged-transactions")), 1 << 16);
+            }
+
+            // split the master events the way the back end reads them, so each shard line is the same as the original
+            File master = new File("master-events");
+            if (master.isFile()) {
+                try (LineReader in = new LineReader(master)) {
+                    while (in.next()) {
+                        byte[] line = in.get_line();
+                        int length = in.get_length();
+                        String m = new String(line, 0, length > 0 && line[length - 1] == '\r' ? length - 1 : length);
+                        int s = shard_of(m.length() > 13 ? m.substring(13).trim() : "");
+                        masters[s].write(line, 0, length);
+                        masters[s].write('\n');
+                        master_lines[s].add(master_count++);
+                    }
+                }
+            }
+
+            try (BufferedReader in = new BufferedReader(new FileReader("merged-transactions"))) {
+                String t;
+                for (int position = 0; (t = in.readLine()) != null; ++position) {
+                    if (t.startsWith("00")) {
+                        continue;
+                    }
+                    int s = shard_of(t.length() > 3 ? t.substring(3, Math.min(t.length(), 23)).trim() : "");
+                    transactions[s].write(t);
+                    transactions[s].write('\n');
+                    if (t.startsWith("03")) {
+                        creates[s].add(position);
+                    }
+                }
+            }
+        }
+        finally {
+            for (int s = 0; s < shards; ++s) {
+                if (masters[s] != null) {
+                    masters[s].close();
+                }
+                if (transactions[s] != null) {
+                    transactions[s].close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a back end on every shard at once, as a separate java process with the same class path and heap settings
+     * as this one, and waits for them all.
+     */
+    private void run_workers() throws IOException, InterruptedException {
+        Process[] workers = new Process[shards];
+        for (int s = 0; s < shards; ++s) {
+            ArrayList<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("Main");
+            command.add("--shard-worker");
+            command.add("--date");
+            command.add(String.format("%06d", current_date));
+            workers[s] = new ProcessBuilder(command).directory(new File(dir, Integer.toString(s))).inheritIO().start();
+        }
+        for (int s = 0; s < shards; ++s) {
+            if (workers[s].waitFor() != 0) {
+                throw new IOException("the worker for shard " + s + " failed");
+            }
+        }
+    }
+
+    /**
+     * Merges the shards' outputs by date, then by the position each event came from.
+     */
+    private void merge() throws IOException {
+        File master = new File("master-events");
+        File temp = new File("master-events.tmp");
+        File current_events = new File("current-events");
+        CurrentEventsDelta.keep_previous(current_events);
+        new File(current_events.getPath() + CurrentEventsIndex.SUFFIX).delete();
+        new File(current_events.getPath() + CurrentEventsIndex.FILTER_SUFFIX).delete();
+        new File(current_events.getPath() + CurrentEventsDates.SUFFIX).delete();
+
+        LineReader[] masters = new LineReader[shards];
+        LineReader[] currents = new LineReader[shards];
+        DataInputStream[] origins = new DataInputStream[shards];
+        try (OutputStream master_out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16);
+             OutputStream current_out = new BufferedOutputStream(new FileOutputStream(current_events), 1 << 16)) {
+            PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> a.date != b.date
+                    ? Integer.compare(a.date, b.date) : Long.compare(a.position, b.position));
+            for (int s = 0; s < shards; ++s) {
+                File shard = new File(dir, Integer.toString(s));
+                masters[s] = new LineReader(new File(shard, "master-events"));
+                currents[s] = new LineReader(new File(shard, "current-events"));
+                origins[s] = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                        new File(shard, ORIGINS))));
+                Head head = new Head(s);
+                if (advance(head, masters[s], origins[s])) {
+                    heads.add(head);
+                }
+            }
+
+            while (!heads.isEmpty()) {
+                Head head = heads.poll();
+                int s = head.shard;
+                master_out.write(masters[s].get_line(), 0, masters[s].get_length());
+                master_out.write('\n');
+                if (!currents[s].next()) {
+                    throw new EOFException("the current events of shard " + s + " end before its master events");
+                }
+                current_out.write(currents[s].get_line(), 0, currents[s].get_length());
+                current_out.write('\n');
+                if (advance(head, masters[s], origins[s])) {
+                    heads.add(head);
+                }
+            }
+
+            // every worker ends its current events with the same END line, without a newline
+            if (!currents[0].next()) {
+                throw new EOFException("the current events of shard 0 have no END line");
+            }
+            current_out.write(currents[0].get_line(), 0, currents[0].get_length());
+        }
+        finally {
+            for (int s = 0; s < shards; ++s) {
+                for (Closeable in : new Closeable[] {masters[s], currents[s], origins[s]}) {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            }
+        }
+        Files.move(temp.toPath(), master.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        CurrentEventsDelta.write(current_events, CurrentEventsIndex.write(current_events),
+                Arrays.asList(new File("merged-transactions")));
+        CurrentEventsDates.write(current_events, Arrays.asList(master));
+    }
+
+    /**
+     * Moves a shard to its next master events line, and works out the date and position of its event.
+     * @return false if the shard has no more lines
+     */
+    private boolean advance(Head head, LineReader master, DataInputStream origins) throws IOException {
+        if (!master.next()) {
+            return false;
+        }
+        byte[] line = master.get_line();
+        int date = 0;
+        for (int i = 0; i < 6; ++i) {
+            date = date * 10 + line[i] - '0';
+        }
+        int origin = origins.readInt();
+        head.date = date;
+        head.position = origin >= 0 ? master_lines[head.shard].values[origin]
+                : (long) master_count + creates[head.shard].values[-origin - 1];
+        return true;
+    }
+
+    private int shard_of(String name) {
+        return Math.floorMod(name.hashCode(), shards);
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    private static void delete_tree(File file) {
+        File[] files = file.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            delete_tree(f);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodic snapshots of the master events, kept in the directory snapshots. A snapshot is the master events file
+ * written by one run of the back end, compressed with gzip and named after the date of the run (YYMMDD.gz). Together
+ * with the transaction archive, a snapshot lets the back end rebuild the master events of any later day (see
+ * QuibbleBE.start_replay) without replaying the whole history.
+ *
+ * A snapshot is taken after a run when the newest snapshot is INTERVAL days or more older than the run.
+ *
+ * The back end may run more than once on a date, so the date alone does not say which archived runs a snapshot holds.
+ * Next to each snapshot is the number of runs that had been archived when it was taken (YYMMDD.runs, one int written
+ * with a DataOutputStream), and a replay from the snapshot starts at the run with that number (see TransactionArchive).
+ *
+ * Next to each snapshot is a checkpoint of the events it holds, grouped by name (YYMMDD.names), so the events with
+ * one name can be found without reading the whole snapshot. It holds, written with a DataOutputStream:
+ *     for each distinct name, in String order: the name (writeUTF), the number of events, then the date and tickets
+ *                                               of each event, in the order of the snapshot
+ *     the offset of each name's entry, as an int, in the same order
+ *     the number of names, as an int
+ * Checkpoints larger than 2GB are not written, and a snapshot without one is searched line by line.
+ */
+public class Snapshots {
+    public static final String DIRECTORY = "snapshots";
+    public static final int INTERVAL = 7;   // days between snapshots
+    public static final int NONE = -1;
+
+    private File dir;
+    private TreeSet<Integer> dates;   // dates of the snapshots, read the first time they are needed
+
+    /**
+     * One parameter constructor for the snapshots.
+     * @param parent - the directory holding the snapshot directory
+     */
+    public Snapshots(File parent) {
+        dir = new File(parent, DIRECTORY);
+    }
+
+    /**
+     * Returns true if a snapshot should be taken after a run on the given date.
+     *
+     * @param date - the date of the run, as a YYMMDD integer
+     * @return true if there is no snapshot from the INTERVAL days before the date
+     */
+    public boolean due(int date) {
+        Integer newest = get_dates().floor(date);
+        return newest == null || ChronoUnit.DAYS.between(to_local_date(newest), to_local_date(date)) >= INTERVAL;
+    }
+
+    /**
+     * Returns the date of the newest snapshot taken on or before a date.
+     *
+     * @param date - a date as a YYMMDD integer
+     * @return the date of the snapshot, or NONE if there is none
+     */
+    public int latest(int date) {
+        Integer newest = get_dates().floor(date);
+        return newest == null ? NONE : newest;
+    }
+
+    /**
+     * Takes a snapshot from the files holding the master events, concatenated in the order given. The snapshot is
+     * written to a temporary file first, so a snapshot is either complete or missing.
+     *
+     * @param date - the date of the run, as a YYMMDD integer
+     * @param masters - the master events file, or the master events segments in date order
+     * @param runs - the number of runs archived, including the run the snapshot is taken after
+     * @throws IOException - if a file cannot be read or the snapshot cannot be written
+     */
+    public void write(int date, List<File> masters, int runs) throws IOException {
+        dir.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(runs_file(date)))) {
+            out.writeInt(runs);
+        }
+        File snapshot = file(date);
+        File temp = new File(snapshot.getPath() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 1 << 16)) {
+            for (File master : masters) {
+                Files.copy(master.toPath(), out);
+            }
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        get_dates().add(date);
+        write_checkpoint(date, masters);
+    }
+
+    /**
+     * Returns the number of archived runs a snapshot holds the changes of.
+     *
+     * @param date - the date of the snapshot
+     * @return the number of runs, or NONE if it was not recorded
+     */
+    public int runs(int date) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(runs_file(date)))) {
+            return in.readInt();
+        }
+        catch (IOException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Returns the events with a name in a snapshot, in the order of the snapshot, from its checkpoint if it has one.
+     *
+     * @param date - the date of the snapshot
+     * @param name - the trimmed event name
+     * @return the date and tickets of each event
+     * @throws IOException - if the snapshot or its checkpoint cannot be read
+     */
+    public ArrayList<int[]> read_events(int date, String name) throws IOException {
+        ArrayList<int[]> found = new ArrayList<>();
+        File checkpoint = checkpoint_file(date);
+        if (!checkpoint.isFile()) {
+            try (BufferedReader in = open(date)) {
+                String m;
+                while ((m = in.readLine()) != null) {
+                    if (m.length() > 13 && m.substring(13).trim().equals(name)) {
+                        found.add(new int[] {Integer.parseInt(m.substring(0, 6).trim()),
+                                Integer.parseInt(m.substring(7, 12))});
+                    }
+                }
+            }
+            return found;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(checkpoint, "r")) {
+            in.seek(in.length() - 4);
+            int count = in.readInt();
+            long table = in.length() - 4 - 4L * count;
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                in.seek(table + 4L * middle);
+                in.seek(in.readInt());
+                int c = in.readUTF().compareTo(name);
+                if (c == 0) {
+                    int events = in.readInt();
+                    for (int i = 0; i < events; ++i) {
+                        found.add(new int[] {in.readInt(), in.readInt()});
+                    }
+                    break;
+                }
+                else if (c < 0) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Opens a snapshot for reading, as lines of the master events file.
+     *
+     * @param date - the date of the snapshot
+     * @return a reader for the snapshot
+     * @throws IOException - if the snapshot cannot be opened
+     */
+    public BufferedReader open(int date) throws IOException {
+        return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file(date)), 1 << 16)));
+    }
+
+    /**
+     * Converts a YYMMDD date to a LocalDate in the 2000s.
+     *
+     * @param date - a date as a YYMMDD integer
+     * @return the date
+     */
+    public static LocalDate to_local_date(int date) {
+        return LocalDate.of(2000 + date / 10000, date / 100 % 100, date % 100);
+    }
+
+    private File file(int date) {
+        return new File(dir, String.format("%06d.gz", date));
+    }
+
+    private File checkpoint_file(int date) {
+        return new File(dir, String.format("%06d.names", date));
+    }
+
+    private File runs_file(int date) {
+        return new File(dir, String.format("%06d.runs", date));
+    }
+
+    /**
+     * Writes the checkpoint of a snapshot from the files it was taken from. Events with the same name keep their
+     * order, since the sort is stable.
+     */
+    private void write_checkpoint(int date, List<File> masters) throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<int[]> events = new ArrayList<>();
+        for (File master : masters) {
+            try (BufferedReader in = new BufferedReader(new FileReader(master), 1 << 16)) {
+                String m;
+                while ((m = in.readLine()) != null) {
+                    names.add(m.substring(13).trim());
+                    events.add(new int[] {Integer.parseInt(m.substring(0, 6).trim()),
+                            Integer.parseInt(m.substring(7, 12))});
+                }
+            }
+        }
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> names.get(a).compareTo(names.get(b)));
+
+        File checkpoint = checkpoint_file(date);
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        ArrayList<Integer> offsets = new ArrayList<>();
+        boolean too_large;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                1 << 16))) {
+            for (int i = 0; i < order.length; ) {
+                String name = names.get(order[i]);
+                int end = i;
+                while (end < order.length && names.get(order[end]).equals(name)) {
+                    ++end;
+                }
+                offsets.add(out.size());
+                out.writeUTF(name);
+                out.writeInt(end - i);
+                for (; i < end; ++i) {
+                    out.writeInt(events.get(order[i])[0]);
+                    out.writeInt(events.get(order[i])[1]);
+                }
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.writeInt(offsets.size());
+            too_large = out.size() == Integer.MAX_VALUE;
+        }
+        if (too_large) {
+            // the offsets would not fit in an int, so the snapshot is searched line by line instead
+            temp.delete();
+            return;
+        }
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private TreeSet<Integer> get_dates() {
+        if (dates == null) {
+            dates = new TreeSet<>();
+            File[] files = dir.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                String name = file.getName();
+                if (name.matches("\\d{6}\\.gz")) {
+                    dates.add(Integer.parseInt(name.substring(0, 6)));
+                }
+            }
+        }
+        return dates;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One stage of the pipelined back end (see QuibbleBE). A stage takes its input from the stage before it and hands its
+ * output to the stage after it through bounded queues, so that a fast stage waits for a slow one instead of filling
+ * memory. Each stage records how long it spends blocked on its queues and how much CPU time its thread uses, so its
+ * utilisation (the share of the run it spent working) can be reported even when there are fewer processors than
+ * stages. Each stage is also recorded as a PhaseEvent for Java Flight Recorder.
+ *
+ * A stage either runs on a thread of its own (start and join) or on the calling thread (run). A stage that fails stops
+ * the back end, as every other back end error does, rather than leaving the other stages waiting on their queues.
+ */
+public abstract class Stage implements Runnable {
+    private String name;
+    private Thread thread;
+    private long started;    // System.nanoTime when the stage started
+    private long finished;   // System.nanoTime when the stage finished
+    private long waiting;    // nanoseconds spent blocked on a queue
+    private long cpu;        // CPU time used by the stage's thread, in nanoseconds
+
+    /**
+     * One parameter constructor for a stage.
+     * @param name_ - the name of the stage, used in reports and errors
+     */
+    public Stage(String name_) {
+        name = name_;
+    }
+
+    /**
+     * The work of the stage.
+     *
+     * @throws IOException - if a file cannot be read or written
+     * @throws InterruptedException - if the stage is interrupted while waiting on a queue
+     */
+    protected abstract void process() throws IOException, InterruptedException;
+
+    /**
+     * Starts the stage on a new thread.
+     */
+    public void start() {
+        thread = new Thread(this, "quibble " + name);
+        thread.start();
+    }
+
+    /**
+     * Waits for a stage started with start to finish.
+     * @throws InterruptedException - if the calling thread is interrupted
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    /**
+     * Runs the stage on the calling thread.
+     */
+    @Override public void run() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        PhaseEvent event = PhaseEvent.begin(name);
+        started = System.nanoTime();
+        cpu = -threads.getCurrentThreadCpuTime();
+        try {
+            process();
+        }
+        catch (IOException e) {
+            System.err.println("[BACKEND ERROR] The " + name + " stage failed: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (InterruptedException | RuntimeException e) {
+            System.err.println("[INTERNAL ERROR] The " + name + " stage failed: " + e);
+            System.exit(1);
+        }
+        finished = System.nanoTime();
+        cpu += threads.getCurrentThreadCpuTime();
+        event.waiting = waiting;
+        event.commit();
+    }
+
+    /**
+     * Takes the next item from a queue, waiting for one if the queue is empty.
+     *
+     * @param queue - the queue to take from
+     * @return the item
+     * @throws InterruptedException - if the stage is interrupted while waiting
+     */
+    public <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T item = queue.poll();
+        if (item == null) {
+            long start = System.nanoTime();
+            item = queue.take();
+            waiting += System.nanoTime() - start;
+        }
+        return item;
+    }
+
+    /**
+     * Puts an item on a queue, waiting for room if the queue is full.
+     *
+     * @param queue - the queue to put to
+     * @param item - the item
+     * @throws InterruptedException - if the stage is interrupted while waiting
+     */
+    public <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        if (!queue.offer(item)) {
+            long start = System.nanoTime();
+            queue.put(item);
+            waiting += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns a line reporting how the stage spent its time: its running time, the time it was blocked on a queue, and
+     * the CPU time it used, which is also given as a share of the whole pipeline's running time.
+     *
+     * @param elapsed - the running time of the whole pipeline, in nanoseconds
+     * @return the report
+     */
+    public String report(long elapsed) {
+        return String.format("    %-14s %9.1f ms running %9.1f ms waiting %9.1f ms cpu %6.1f%% utilised",
+                name, (finished - started) / 1e6, waiting / 1e6, cpu / 1e6, 100.0 * cpu / elapsed);
+    }
+}
@@ -0,0 +1,551 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Benchmarks of the back end's event table and the transactions applied to it in memory: decoding names, ordering
+ * events by date, folding transactions, pruning deleted events and the table's column layout. See Benchmark for how
+ * each is run.
+ */
+public class TableBenchmarks {
+    /**
+     * Compares decoding the event names of a transaction stream into one string per occurrence (as the back end
+     * used to with substring(...).trim()) against decoding them into ids through a NameDictionary. Nine out of ten
+     * transactions are for one percent of the events, which is what a busy day looks like.
+     *
+     * The strings and the ids are both kept until the end, so each heap reading after a full collection counts only
+     * what was added since the one before. The dictionary keeps its characters off the heap, and those bytes are
+     * reported apart from the heap it keeps.
+     *
+     * @param transactions - the number of transactions to decode
+     * @param catalog - the number of distinct events
+     */
+    static void bench_names(int transactions, int catalog) {
+        String[] lines = Benchmark.skewed_transactions(transactions, catalog, new Random(Benchmark.SEED));
+        System.out.println("names: " + transactions + " transactions over " + catalog + " events");
+
+        long before = Benchmark.retained();
+        long allocated = allocated();
+        long start = System.nanoTime();
+        String[] strings = new String[transactions];
+        for (int i = 0; i < transactions; ++i) {
+            strings[i] = lines[i].substring(3, 23).trim();
+        }
+        long time = System.nanoTime() - start;
+        allocated = allocated() - allocated;
+        long kept = Benchmark.retained() - before;
+        report("strings", time, allocated, kept, strings.length);
+
+        before = Benchmark.retained();
+        allocated = allocated();
+        start = System.nanoTime();
+        NameDictionary names = new NameDictionary();
+        int[] ids = new int[transactions];
+        for (int i = 0; i < transactions; ++i) {
+            String t = lines[i];
+            int end = 23;
+            while (end > 3 && t.charAt(end - 1) == ' ') {
+                --end;
+            }
+            ids[i] = names.intern(t, 3, end);
+        }
+        time = System.nanoTime() - start;
+        allocated = allocated() - allocated;
+        kept = Benchmark.retained() - before;
+        report("dictionary", time, allocated, kept, ids.length);
+        System.out.printf("    %-12s %10d bytes off-heap (%.1f per transaction), %d distinct names%n", "",
+                names.memory_used(), (double) names.memory_used() / ids.length, names.size());
+
+        // both results stay reachable until every reading has been taken
+        Reference.reachabilityFence(strings);
+        Reference.reachabilityFence(ids);
+        Reference.reachabilityFence(names);
+    }
+
+    /**
+     * Compares the old ordering stage, Collections.sort on a list of Event objects (which parses both date strings on
+     * every comparison), against the radix sort in EventTable.sorted_by_date. The radix sort's order is checked
+     * against a comparison sort on (date, record number) keys, which is stable by construction. The ten million event
+     * run needs a large heap for the Event list (-Xmx4g) and matching direct memory.
+     *
+     * @param sizes - comma separated list of catalog sizes
+     */
+    static void bench_sort(String sizes) {
+        for (String size_arg : sizes.split(",")) {
+            int size = Integer.parseInt(size_arg);
+            Random random = new Random(Benchmark.SEED);
+            EventTable table = new EventTable(new NameDictionary(size), size);
+            ArrayList<Event> list = new ArrayList<>(size);
+            String[] date_strings = new String[1000000];
+            for (int i = 0; i < size; ++i) {
+                int date = Benchmark.random_date(random);
+                if (date_strings[date] == null) {
+                    date_strings[date] = String.format("%06d", date);
+                }
+                table.add(table.get_names().intern(Integer.toString(i)), date, 0);
+                list.add(new Event("", date_strings[date], 0));
+            }
+
+            long best_list = Long.MAX_VALUE;
+            long best_table = Long.MAX_VALUE;
+            int[] order = null;
+            ArrayList<Event> sorted = null;
+            for (int run = 0; run < 3; ++run) {
+                sorted = new ArrayList<>(list);
+                long start = System.nanoTime();
+                Collections.sort(sorted);
+                best_list = Math.min(best_list, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                order = table.sorted_by_date();
+                best_table = Math.min(best_table, System.nanoTime() - start);
+            }
+
+            long[] keys = new long[size];
+            for (int record = 0; record < size; ++record) {
+                keys[record] = ((long) table.get_event_date(record) << 32) | record;
+            }
+            Arrays.sort(keys);
+            boolean same = true;
+            for (int i = 0; i < size; ++i) {
+                same &= order[i] == (int) keys[i]
+                        && Integer.parseInt(sorted.get(i).get_event_date()) == table.get_event_date(order[i]);
+            }
+            System.out.printf("sort %,d events: Collections.sort %.1f ms, radix sort %.1f ms, same order: %s%n",
+                    size, best_list / 1e6, best_table / 1e6, same);
+        }
+    }
+
+    /**
+     * Checks that folding ticket transactions with a TransactionAggregator leaves every event exactly as handling each
+     * transaction on its own does, over many small random streams that keep hitting both ticket limits and mix in
+     * creates (including duplicate names), deletes, and names that do not exist. Then times both on one large
+     * hot-event-skewed stream. Exits with status 1 if folding changes the result of any stream, so that a script can
+     * run it as a check.
+     *
+     * @param transactions - the number of transactions in the timed stream
+     * @param catalog - the number of events in the timed stream
+     */
+    static void bench_aggregate(int transactions, int catalog) {
+        Random random = new Random(Benchmark.SEED);
+        int rounds = 2000;
+        int mismatches = 0;
+        for (int round = 0; round < rounds; ++round) {
+            String[] lines = random_transactions(10 + random.nextInt(500), 1 + random.nextInt(8), random);
+            if (!same_events(run_transactions(lines, false), run_transactions(lines, true))) {
+                ++mismatches;
+            }
+        }
+        System.out.printf("aggregate: %d random streams, %d with a different result%n", rounds, mismatches);
+        if (mismatches > 0) {
+            System.err.println("[BACKEND ERROR] Folding transactions changed the result of " + mismatches
+                    + " random streams");
+            System.exit(1);
+        }
+
+        String[] lines = random_transactions(transactions, catalog, random);
+        long best_single = Long.MAX_VALUE;
+        long best_folded = Long.MAX_VALUE;
+        QuibbleBE single = null;
+        QuibbleBE folded = null;
+        for (int run = 0; run < 3; ++run) {
+            long start = System.nanoTime();
+            single = run_transactions(lines, false);
+            best_single = Math.min(best_single, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            folded = run_transactions(lines, true);
+            best_folded = Math.min(best_folded, System.nanoTime() - start);
+        }
+        boolean same = same_events(single, folded);
+        System.out.printf("aggregate %,d transactions over %,d events: one at a time %.1f ms, folded %.1f ms, "
+                + "same result: %s%n", transactions, catalog, best_single / 1e6, best_folded / 1e6, same);
+        if (!same) {
+            System.err.println("[BACKEND ERROR] Folding transactions changed the result of the timed stream");
+            System.exit(1);
+        }
+
+        // count the updates the folded operations make to the event table
+        QuibbleBE backend = new QuibbleBE();
+        EventTable table = backend.get_events();
+        TransactionAggregator aggregator = new TransactionAggregator(table.get_names(), table);
+        for (String t : lines) {
+            if (!aggregator.fold(t)) {
+                backend.handle_transaction(t);
+            }
+        }
+        aggregator.flush();
+        System.out.printf("    %,d ticket transactions applied as %,d table updates%n",
+                aggregator.get_transactions(), aggregator.get_applied());
+    }
+
+    /**
+     * Times an end-of-season cleanup, deleting every event of a quarter, half and all of a catalog in random order,
+     * to show that the cost of a delete does not grow with the catalog. Then runs a table for a number of days, each
+     * day dropping the events that have passed and deleting and creating 2% of the catalog, once compacting the table
+     * before every run as the replay used to, and once pruning it in place and compacting only when tombstones
+     * outnumber the live events. The two tables are checked to hold the same events in the same order.
+     *
+     * @param catalog - the number of events
+     * @param days - the number of days to run
+     */
+    static void bench_tombstones(int catalog, int days) {
+        System.out.printf("tombstones: %,d events%n", catalog);
+        for (int count : new int[] {catalog / 4, catalog / 2, catalog}) {
+            Random random = new Random(Benchmark.SEED);
+            String[] creates = new String[count];
+            ArrayList<String> deletes = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                creates[i] = String.format("03 %-20s %06d %05d", "event " + i, Benchmark.random_date(random), 100);
+                deletes.add(String.format("05 %-20s 000000 00000", "event " + i));
+            }
+            Collections.shuffle(deletes, random);
+            QuibbleBE backend = run_transactions(creates, true);
+            long start = System.nanoTime();
+            backend.handle_transactions(deletes);
+            long time = System.nanoTime() - start;
+            System.out.printf("    delete %,9d events: %8.1f ms, %5.0f ns per delete, %d left%n", count, time / 1e6,
+                    (double) time / count, backend.get_events().live());
+        }
+
+        EventTable[] tables = new EventTable[2];
+        long[] times = new long[2];
+        int compactions = 0;
+        for (int t = 0; t < 2; ++t) {
+            Random random = new Random(Benchmark.SEED);
+            NameDictionary names = new NameDictionary();
+            EventTable events = new EventTable(names, catalog);
+            int created = 0;
+            for (; created < catalog; ++created) {
+                events.add(names.intern("event " + created), Benchmark.day_date(random.nextInt(365)), 100);
+            }
+            for (int day = 0; day < days; ++day) {
+                long start = System.nanoTime();
+                if (t == 0) {
+                    events = events.compacted(events.sorted_by_date(), Benchmark.day_date(day));
+                }
+                else {
+                    events.prune(Benchmark.day_date(day));
+                    if (events.tombstones() > events.live()) {
+                        events = events.compacted(events.sorted_by_date(), Benchmark.day_date(day));
+                        ++compactions;
+                    }
+                    else {
+                        events.chain_by_date();
+                    }
+                }
+                times[t] += System.nanoTime() - start;
+                for (int i = 0; i < catalog / 50; ++i) {
+                    int found = events.find(names.lookup("event " + random.nextInt(created)));
+                    if (found != EventTable.NONE) {
+                        events.delete(found);
+                    }
+                    events.add(names.intern("event " + created++), Benchmark.day_date(day + 1 + random.nextInt(365)),
+                            100);
+                }
+            }
+            tables[t] = events;
+        }
+        int[] a = tables[0].sorted_by_date();
+        int[] b = tables[1].sorted_by_date();
+        boolean same = a.length == b.length;
+        for (int i = 0; same && i < a.length; ++i) {
+            same = tables[0].get_name_id(a[i]) == tables[1].get_name_id(b[i])
+                    && tables[0].get_event_date(a[i]) == tables[1].get_event_date(b[i]);
+        }
+        System.out.printf("    %d runs, compacting every run: %.1f ms per run%n", days, times[0] / 1e6 / days);
+        System.out.printf("    %d runs, pruning in place:      %.1f ms per run, %d compactions, same events: %b%n",
+                days, times[1] / 1e6 / days, compactions, same);
+    }
+
+    /**
+     * Times the passes the back end makes over every event in the event table, against the record layout the table
+     * used to have (see RecordTable): putting the live events in date order, pruning the events that have passed, and
+     * reading the fields of each event in date order as the output files are written. The table is filled the way
+     * the back end fills it: most events read from a master events file, which is in date order, and the rest created
+     * by transactions with dates all over the year. Each pass is run five times and the best time is kept; both
+     * layouts are checked to give the same order and prune the same events.
+     *
+     * @param sizes - comma separated list of catalog sizes
+     */
+    static void bench_columns(String sizes) {
+        for (String size_arg : sizes.split(",")) {
+            int size = Integer.parseInt(size_arg);
+            Random random = new Random(Benchmark.SEED);
+            int read = size - size / 20;
+            int[] dates = new int[size];
+            for (int i = 0; i < size; ++i) {
+                dates[i] = Benchmark.random_date(random);
+            }
+            Arrays.sort(dates, 0, read);
+
+            EventTable columns = new EventTable(new NameDictionary(), size);
+            RecordTable records = new RecordTable(size);
+            for (int i = 0; i < size; ++i) {
+                int tickets = random.nextInt(Event.MAX_TICKETS + 1);
+                // events read from the master events file can be copied unless their tickets change
+                long source = i < read && random.nextInt(10) != 0 ? (long) i * 34 : EventTable.NONE;
+                int record = columns.add(i, dates[i], tickets);
+                columns.set_source(record, source);
+                records.add(i, dates[i], tickets, source);
+            }
+            int first_date = 260301;
+            System.out.printf("columns: %,d events%n", size);
+
+            long[][] best = new long[3][2];
+            for (long[] pass : best) {
+                Arrays.fill(pass, Long.MAX_VALUE);
+            }
+            int[] column_order = null;
+            int[] record_order = null;
+            long column_sum = 0;
+            long record_sum = 0;
+            int[] pruned = new int[2];
+            for (int run = 0; run < 5; ++run) {
+                long start = System.nanoTime();
+                column_order = columns.sorted_by_date();
+                best[0][0] = Math.min(best[0][0], System.nanoTime() - start);
+                start = System.nanoTime();
+                record_order = records.sorted_by_date();
+                best[0][1] = Math.min(best[0][1], System.nanoTime() - start);
+
+                EventTable column_copy = columns.copy(columns.get_names());
+                start = System.nanoTime();
+                pruned[0] = column_copy.prune(first_date);
+                best[1][0] = Math.min(best[1][0], System.nanoTime() - start);
+                column_copy = null;
+                RecordTable record_copy = records.copy();
+                start = System.nanoTime();
+                pruned[1] = record_copy.prune(first_date);
+                best[1][1] = Math.min(best[1][1], System.nanoTime() - start);
+                record_copy = null;
+
+                start = System.nanoTime();
+                column_sum = read_fields(columns, column_order);
+                best[2][0] = Math.min(best[2][0], System.nanoTime() - start);
+                start = System.nanoTime();
+                record_sum = records.read_fields(record_order);
+                best[2][1] = Math.min(best[2][1], System.nanoTime() - start);
+            }
+
+            String[] passes = {"sort", "prune", "output fields"};
+            for (int pass = 0; pass < passes.length; ++pass) {
+                System.out.printf("    %-14s records %8.1f ms  columns %8.1f ms  (%.2fx)%n", passes[pass],
+                        best[pass][1] / 1e6, best[pass][0] / 1e6, (double) best[pass][1] / best[pass][0]);
+            }
+            System.out.printf("    same order: %b, same pruned: %b (%,d), same fields: %b%n",
+                    Arrays.equals(column_order, record_order), pruned[0] == pruned[1], pruned[0],
+                    column_sum == record_sum);
+        }
+    }
+
+    /**
+     * The layout EventTable had before its fields were split into columns: every event a RECORD_SIZE byte record in
+     * one direct buffer, with the fields at the offsets below, and the same name index. Only what bench_columns times
+     * is kept, working the same way as in EventTable.
+     */
+    private static class RecordTable {
+        static final int NAME = 0;
+        static final int DATE = 4;
+        static final int TICKETS = 8;
+        static final int NEXT = 12;
+        static final int FLAGS = 16;
+        static final int SOURCE = 17;
+        static final int RECORD_SIZE = 25;
+
+        ByteBuffer records;
+        IntBuffer heads;
+        int size;
+        int live;
+
+        RecordTable(int capacity) {
+            records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.nativeOrder());
+            heads = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+        /**
+         * Adds an event with a name no other event has.
+         */
+        void add(int name_id, int date, int tickets, long source) {
+            int base = size * RECORD_SIZE;
+            records.putInt(base + NAME, name_id);
+            records.putInt(base + DATE, date);
+            records.putInt(base + TICKETS, tickets);
+            records.putInt(base + NEXT, EventTable.NONE);
+            records.put(base + FLAGS, (byte) 0);
+            records.putLong(base + SOURCE, source);
+            heads.put(name_id, size + 1);
+            ++size;
+            ++live;
+        }
+
+        RecordTable copy() {
+            RecordTable table = new RecordTable(size);
+            table.records.put(records.duplicate().limit(size * RECORD_SIZE)).clear();
+            table.heads.put(heads.duplicate()).clear();
+            table.size = size;
+            table.live = live;
+            return table;
+        }
+
+        int[] sorted_by_date() {
+            int[] order = new int[live];
+            int[] dates = new int[live];
+            int k = 0;
+            for (int record = 0; record < size; ++record) {
+                int base = record * RECORD_SIZE;
+                if (records.get(base + FLAGS) == 0) {
+                    order[k] = record;
+                    dates[k++] = records.getInt(base + DATE);
+                }
+            }
+            return EventTable.radix_sort(order, dates);
+        }
+
+        int prune(int first_date) {
+            int pruned = 0;
+            for (int record = 0; record < size; ++record) {
+                int base = record * RECORD_SIZE;
+                if (records.get(base + FLAGS) == 0 && records.getInt(base + DATE) < first_date) {
+                    int name_id = records.getInt(base + NAME);
+                    int head = heads.get(name_id) - 1;
+                    if (head == record) {
+                        heads.put(name_id, records.getInt(base + NEXT) + 1);
+                    }
+                    else {
+                        while (records.getInt(head * RECORD_SIZE + NEXT) != record) {
+                            head = records.getInt(head * RECORD_SIZE + NEXT);
+                        }
+                        records.putInt(head * RECORD_SIZE + NEXT, records.getInt(base + NEXT));
+                    }
+                    records.put(base + FLAGS, (byte) 1);
+                    --live;
+                    ++pruned;
+                }
+            }
+            return pruned;
+        }
+
+        /**
+         * Reads the fields EventWriter reads for each event it writes, in the order given.
+         */
+        long read_fields(int[] order) {
+            long sum = 0;
+            for (int record : order) {
+                int base = record * RECORD_SIZE;
+                if (records.getLong(base + SOURCE) == EventTable.NONE) {
+                    sum += records.getInt(base + NAME) + records.getInt(base + DATE) + records.getInt(base + TICKETS);
+                }
+                else {
+                    sum += records.getLong(base + SOURCE);
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Reads the fields EventWriter reads for each event it writes, in the order given.
+     */
+    private static long read_fields(EventTable table, int[] order) {
+        long sum = 0;
+        for (int record : order) {
+            long source = table.get_source(record);
+            if (source == EventTable.NONE) {
+                sum += table.get_name_id(record) + table.get_event_date(record) + table.get_num_tickets(record);
+            }
+            else {
+                sum += source;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns a back end that has handled a stream of transactions, starting with no events.
+     */
+    private static QuibbleBE run_transactions(String[] lines, boolean aggregating) {
+        QuibbleBE backend = new QuibbleBE();
+        backend.set_aggregating(aggregating);
+        backend.handle_transactions(Arrays.asList(lines));
+        return backend;
+    }
+
+    /**
+     * Returns true if two back ends hold the same events with the same tickets.
+     */
+    private static boolean same_events(QuibbleBE a, QuibbleBE b) {
+        EventTable x = a.get_events();
+        EventTable y = b.get_events();
+        if (x.size() != y.size()) {
+            return false;
+        }
+        for (int record = 0; record < x.size(); ++record) {
+            if (x.get_name_id(record) != y.get_name_id(record) || x.is_deleted(record) != y.is_deleted(record)
+                    || x.get_num_tickets(record) != y.get_num_tickets(record)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates a transaction stream that creates every event, then mostly sells, returns and adds for the first one
+     * percent of the events, with some creates, deletes, logouts and unknown names. Ticket counts start near either
+     * limit and some transactions move a lot of tickets, so the limits are hit often.
+     */
+    private static String[] random_transactions(int count, int catalog, Random random) {
+        int hot = Math.max(1, catalog / 100);
+        String[] lines = new String[catalog + count];
+        for (int i = 0; i < catalog; ++i) {
+            int tickets = random.nextBoolean() ? random.nextInt(100) : Event.MAX_TICKETS - random.nextInt(100);
+            lines[i] = String.format("03 %-20s %06d %05d", "event " + i, Benchmark.random_date(random), tickets);
+        }
+        for (int i = catalog; i < lines.length; ++i) {
+            int event = random.nextInt(10) < 9 ? random.nextInt(hot) : random.nextInt(catalog);
+            String name = random.nextInt(50) == 0 ? "missing " + event : "event " + event;
+            int tickets = random.nextInt(20) == 0 ? random.nextInt(Event.MAX_TICKETS + 1) : 1 + random.nextInt(20);
+            int kind = random.nextInt(100);
+            if (kind < 60) {
+                lines[i] = String.format("01 %-20s 000000 %05d", name, tickets);
+            }
+            else if (kind < 80) {
+                lines[i] = String.format("02 %-20s 000000 %05d", name, tickets);
+            }
+            else if (kind < 95) {
+                lines[i] = String.format("04 %-20s 000000 %05d", name, tickets);
+            }
+            else if (kind < 97) {
+                lines[i] = String.format("03 %-20s %06d %05d", name, Benchmark.random_date(random), tickets);
+            }
+            else if (kind < 99) {
+                lines[i] = String.format("05 %-20s 000000 00000", name);
+            }
+            else {
+                lines[i] = String.format("00 %-20s 000000 00000", "");
+            }
+        }
+        return lines;
+    }
+
+    private static void report(String name, long nanos, long allocated, long kept, int count) {
+        System.out.printf("    %-12s %8.1f ms  %10d bytes allocated  %10d bytes kept  (%.1f kept per transaction)%n",
+                name, nanos / 1e6, allocated, kept, (double) kept / count);
+    }
+
+    /**
+     * Returns the number of bytes allocated on the heap by this thread so far.
+     */
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.util.Arrays;
+
+/**
+ * Folds the ticket transactions (sell, return and add) in the merged transaction file into one operation per event,
+ * so that an event with tens of thousands of sells is updated once instead of once per transaction.
+ *
+ * Selling clamps the number of tickets at Event.MIN_TICKETS and adding clamps it at Event.MAX_TICKETS, so the
+ * transactions cannot simply be summed. Every ticket transaction is a function of the form
+ *     f(x) = min(max(x + delta, low), high)
+ * (a sale of t tickets is delta = -t, low = MIN_TICKETS, no high; an addition is delta = t, no low, high =
+ * MAX_TICKETS), and applying one such function after another gives another function of the same form:
+ *     g(f(x)) = min(max(x + delta_f + delta_g, clamp_g(low_f + delta_g)), clamp_g(high_f + delta_g))
+ * where clamp_g clamps a value to [low_g, high_g]. So any run of ticket transactions for an event is folded into a
+ * single delta, low and high, and gives exactly the same number of tickets as applying them one at a time.
+ *
+ * Ticket transactions refer to an event by name, and the event a name refers to only changes when an event with that
+ * name is created or deleted. Before a create or delete is applied, the folded operation for its name is applied to
+ * the event the name refers to at that point; every other name's operation keeps folding. Operations on different
+ * events are independent, so the order they are applied in does not matter.
+ */
+public class TransactionAggregator {
+    // stand-ins for no lower or upper limit, far enough from zero that sums of deltas never reach a real bound
+    private static final long NO_LOW = Long.MIN_VALUE / 4;
+    private static final long NO_HIGH = Long.MAX_VALUE / 4;
+
+    private NameDictionary names;
+    private EventTable events;
+    private long[] deltas;     // folded operation of each name id
+    private long[] lows;
+    private long[] highs;
+    private boolean[] folded;  // true if the name id has a folded operation that has not been applied
+    private int[] pending;     // name ids with a folded operation, in the order they were first folded
+    private int pending_count;
+    private long transactions; // number of transactions folded, for reporting
+    private long applied;      // number of folded operations applied to the event table
+
+    /**
+     * Two parameter constructor for the aggregator.
+     *
+     * @param names_ - the dictionary holding the event names
+     * @param events_ - the event table the folded operations are applied to
+     */
+    public TransactionAggregator(NameDictionary names_, EventTable events_) {
+        names = names_;
+        events = events_;
+        int capacity = Math.max(names.size(), 16);
+        deltas = new long[capacity];
+        lows = new long[capacity];
+        highs = new long[capacity];
+        folded = new boolean[capacity];
+        pending = new int[16];
+        pending_count = 0;
+    }
+
+    /**
+     * Folds a transaction from the merged transaction file. Ticket transactions are folded into the operation for
+     * their event name and logouts are dropped. Any other transaction is not folded: the operation for its name is
+     * applied first, and the caller must then apply the transaction itself (with QuibbleBE.handle_transaction).
+     *
+     * @param t - the line from the merged transaction file
+     * @return true if the transaction was folded, false if the caller must apply it
+     */
+    public boolean fold(String t) {
+        int t_code = Integer.parseInt(t, 0, 2, 10);
+        if (t_code == 0) {
+            return true;
+        }
+
+        int id = names.lookup(t, QuibbleBE.trim_start(t, 3, 23), QuibbleBE.trim_end(t, 3, 23));
+        if (t_code != 1 && t_code != 2 && t_code != 4) {
+            if (id != NameDictionary.NONE) {
+                apply(id);
+            }
+            return false;
+        }
+        ++transactions;
+        // a name that was never interned cannot belong to any event
+        if (id == NameDictionary.NONE) {
+            return true;
+        }
+
+        int tickets = Integer.parseInt(t, 31, t.length(), 10);
+        if (t_code == 1) {
+            fold(id, -tickets, Event.MIN_TICKETS, NO_HIGH);
+        }
+        else {
+            fold(id, tickets, NO_LOW, Event.MAX_TICKETS);
+        }
+        return true;
+    }
+
+    /**
+     * Applies the folded operation of every name to the events the names refer to.
+     */
+    public void flush() {
+        for (int i = 0; i < pending_count; ++i) {
+            apply(pending[i]);
+        }
+        pending_count = 0;
+    }
+
+    /**
+     * Returns the number of ticket transactions folded so far.
+     * @return the number of transactions
+     */
+    public long get_transactions() {
+        return transactions;
+    }
+
+    /**
+     * Returns the number of folded operations applied to the event table so far.
+     * @return the number of operations
+     */
+    public long get_applied() {
+        return applied;
+    }
+
+    /**
+     * Applies min(max(x + delta, low), high) to the operation already folded for a name.
+     */
+    private void fold(int id, long delta, long low, long high) {
+        if (id >= folded.length) {
+            int capacity = Math.max(folded.length * 2, id + 1);
+            deltas = Arrays.copyOf(deltas, capacity);
+            lows = Arrays.copyOf(lows, capacity);
+            highs = Arrays.copyOf(highs, capacity);
+            folded = Arrays.copyOf(folded, capacity);
+        }
+        if (!folded[id]) {
+            folded[id] = true;
+            deltas[id] = delta;
+            lows[id] = low;
+            highs[id] = high;
+            if (pending_count == pending.length) {
+                pending = Arrays.copyOf(pending, pending_count * 2);
+            }
+            pending[pending_count++] = id;
+            return;
+        }
+        deltas[id] += delta;
+        lows[id] = clamp(lows[id] + delta, low, high);
+        highs[id] = clamp(highs[id] + delta, low, high);
+    }
+
+    /**
+     * Applies the folded operation for a name, if it has one, to the event the name refers to now. The name stays in
+     * the pending list until the next flush, where it is skipped.
+     */
+    private void apply(int id) {
+        if (id >= folded.length || !folded[id]) {
+            return;
+        }
+        folded[id] = false;
+        int record = events.find(id);
+        // the event must have been deleted by another terminal
+        if (record == EventTable.NONE) {
+            return;
+        }
+        long tickets = clamp(events.get_num_tickets(record) + deltas[id], lows[id], highs[id]);
+        events.set_tickets(record, (int) tickets);
+        ++applied;
+    }
+
+    private static long clamp(long value, long low, long high) {
+        return Math.min(Math.max(value, low), high);
+    }
+}
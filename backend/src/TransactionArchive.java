@@ -0,0 +1,424 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archive of the merged transactions processed by the back end, kept in two files:
+ *     transactions.archive      - blocks of transaction lines, each compressed on its own with Deflater
+ *     transactions.archive.idx  - one entry for each block, in the order the blocks were written
+ *
+ * Each run of the back end appends its merged transactions, in their original order, as blocks of about BLOCK bytes
+ * of text. An index entry holds the date of the run and its number, where the block is and how large it is, and a
+ * BloomFilter of the event names in the block, so reading the history of one event only decompresses the blocks from
+ * the requested dates that may mention it. Runs are numbered from 0 in the order they were archived, so runs on the
+ * same date are kept apart, and the number of runs archived marks a position in the history (see Snapshots).
+ *
+ * Index entries are written with a DataOutputStream as: int run date (YYMMDD), int run number, long offset, int
+ * compressed length, int uncompressed length, int number of lines, then the filter. Blocks are written before their
+ * index entries, so a run that fails part way leaves at most some unused bytes at the end of the archive. Runs are
+ * archived in date order, so the blocks for a range of dates are found by a binary search of the index; append
+ * refuses a run dated before the last one archived.
+ */
+public class TransactionArchive {
+    public static final String FILE = "transactions.archive";
+    public static final String INDEX = "transactions.archive.idx";
+    private static final int BLOCK = 1 << 16;   // uncompressed bytes of text in each block, at most one line over
+
+    private File archive;
+    private File index;
+    private ArrayList<Block> blocks;   // index entries, read the first time they are needed
+    private int blocks_read;           // number of blocks decompressed so far, for reporting
+
+    /**
+     * Index entry for one block.
+     */
+    private static class Block {
+        int date;
+        int run;
+        long offset;
+        int compressed;
+        int length;
+        int lines;
+        BloomFilter names;
+    }
+
+    /**
+     * One parameter constructor for the archive.
+     * @param dir - the directory holding the archive files
+     */
+    public TransactionArchive(File dir) {
+        archive = new File(dir, FILE);
+        index = new File(dir, INDEX);
+    }
+
+    /**
+     * Appends a file of transactions to the archive, as processed on the given date. The date must not be before the
+     * date of the last run archived.
+     *
+     * @param transactions - the merged transaction file
+     * @param date - the date of the run, as a YYMMDD integer
+     * @throws IOException - if the date is out of order, the transactions cannot be read or the archive cannot be
+     *                       written
+     */
+    public void append(File transactions, int date) throws IOException {
+        if (date < last_date()) {
+            throw new IOException(String.format("the run on %06d is before the last archived run, on %06d", date,
+                    last_date()));
+        }
+        int run = get_run_count();
+        ArrayList<Block> written = new ArrayList<>();
+        Deflater deflater = new Deflater();
+        try (BufferedReader in = new BufferedReader(new FileReader(transactions));
+             FileChannel out = FileChannel.open(archive.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            long offset = out.size();
+            ByteArrayOutputStream text = new ByteArrayOutputStream(BLOCK + 256);
+            HashSet<String> names = new HashSet<>();
+            int lines = 0;
+            String t;
+            while ((t = in.readLine()) != null) {
+                text.write(t.getBytes());
+                text.write('\n');
+                names.add(name_of(t));
+                ++lines;
+                if (text.size() >= BLOCK) {
+                    written.add(write_block(deflater, out, offset, date, run, text, names, lines));
+                    offset += written.get(written.size() - 1).compressed;
+                    text.reset();
+                    names.clear();
+                    lines = 0;
+                }
+            }
+            if (lines > 0) {
+                written.add(write_block(deflater, out, offset, date, run, text, names, lines));
+            }
+            out.force(false);
+        }
+        finally {
+            deflater.end();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(index, true)))) {
+            for (Block block : written) {
+                out.writeInt(block.date);
+                out.writeInt(block.run);
+                out.writeLong(block.offset);
+                out.writeInt(block.compressed);
+                out.writeInt(block.length);
+                out.writeInt(block.lines);
+                block.names.write(out);
+            }
+        }
+        if (blocks != null) {
+            blocks.addAll(written);
+        }
+    }
+
+    /**
+     * Returns every archived transaction for an event name between two dates, in the order they were processed. Only
+     * the blocks from those dates whose name filter may contain the name are decompressed.
+     *
+     * @param name - the event name
+     * @param from - the first run date to include, as a YYMMDD integer
+     * @param to - the last run date to include, as a YYMMDD integer
+     * @return the transactions, each as the run date, a space, and the transaction line
+     * @throws IOException - if the archive cannot be read
+     */
+    public ArrayList<String> history(String name, int from, int to) throws IOException {
+        ArrayList<String> found = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ArrayList<Block> blocks = get_blocks();
+            for (int i = first_block(from); i < blocks.size() && blocks.get(i).date <= to; ++i) {
+                Block block = blocks.get(i);
+                if (!block.names.might_contain(name)) {
+                    continue;
+                }
+                for (String t : read_block(in, block)) {
+                    if (name_of(t).equals(name)) {
+                        found.add(String.format("%06d", block.date) + " " + t);
+                    }
+                }
+            }
+        }
+        catch (NoSuchFileException e) {
+            // nothing has been archived yet
+        }
+        return found;
+    }
+
+    /**
+     * Returns the archived transactions for an event name in a range of runs, run by run. Only the blocks of those
+     * runs whose name filter may contain the name are decompressed.
+     *
+     * @param name - the event name
+     * @param first - the number of the first run to include
+     * @param end - the number of the run after the last one to include
+     * @return for each run from first, the transaction lines for the name, in the order they were processed
+     * @throws IOException - if the archive cannot be read
+     */
+    public ArrayList<ArrayList<String>> history_by_run(String name, int first, int end) throws IOException {
+        ArrayList<ArrayList<String>> found = new ArrayList<>();
+        for (int run = first; run < end; ++run) {
+            found.add(new ArrayList<>());
+        }
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ArrayList<Block> blocks = get_blocks();
+            for (int i = first_block_of_run(first); i < blocks.size() && blocks.get(i).run < end; ++i) {
+                Block block = blocks.get(i);
+                if (!block.names.might_contain(name)) {
+                    continue;
+                }
+                for (String t : read_block(in, block)) {
+                    if (name_of(t).equals(name)) {
+                        found.get(block.run - first).add(t);
+                    }
+                }
+            }
+        }
+        catch (NoSuchFileException e) {
+            // nothing has been archived yet
+        }
+        return found;
+    }
+
+    /**
+     * Returns every transaction processed by an archived run, in the order they were processed.
+     *
+     * @param run - the number of the run
+     * @return the transaction lines
+     * @throws IOException - if the archive cannot be read
+     */
+    public ArrayList<String> read_run(int run) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ArrayList<Block> blocks = get_blocks();
+            for (int i = first_block_of_run(run); i < blocks.size() && blocks.get(i).run == run; ++i) {
+                lines.addAll(read_block(in, blocks.get(i)));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the date of an archived run.
+     *
+     * @param run - the number of the run
+     * @return the date as a YYMMDD integer
+     * @throws IOException - if the index cannot be read
+     */
+    public int get_run_date(int run) throws IOException {
+        return get_blocks().get(first_block_of_run(run)).date;
+    }
+
+    /**
+     * Returns the number of runs archived on or before a date, which is also the number of the first run after it.
+     *
+     * @param date - a date as a YYMMDD integer
+     * @return the number of runs
+     * @throws IOException - if the index cannot be read
+     */
+    public int runs_until(int date) throws IOException {
+        ArrayList<Block> blocks = get_blocks();
+        int i = first_block(date + 1);
+        return i < blocks.size() ? blocks.get(i).run : get_run_count();
+    }
+
+    /**
+     * Returns the number of runs archived.
+     * @return the number of runs
+     * @throws IOException - if the index cannot be read
+     */
+    public int get_run_count() throws IOException {
+        ArrayList<Block> blocks = get_blocks();
+        return blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).run + 1;
+    }
+
+    /**
+     * Returns the date of the last run archived.
+     * @return the date as a YYMMDD integer, or 0 if nothing has been archived
+     * @throws IOException - if the index cannot be read
+     */
+    public int last_date() throws IOException {
+        ArrayList<Block> blocks = get_blocks();
+        return blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).date;
+    }
+
+    /**
+     * Returns the number of blocks in the archive.
+     * @return the number of blocks
+     * @throws IOException - if the index cannot be read
+     */
+    public int get_block_count() throws IOException {
+        return get_blocks().size();
+    }
+
+    /**
+     * Returns the number of blocks decompressed by this archive object so far.
+     * @return the number of blocks read
+     */
+    public int get_blocks_read() {
+        return blocks_read;
+    }
+
+    /**
+     * Returns the position in the index of the first block archived on or after a date, or the number of blocks if
+     * there is none.
+     */
+    private int first_block(int date) throws IOException {
+        ArrayList<Block> blocks = get_blocks();
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blocks.get(middle).date < date) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position in the index of the first block of a run, or the number of blocks if the run and those
+     * after it have not been archived.
+     */
+    private int first_block_of_run(int run) throws IOException {
+        ArrayList<Block> blocks = get_blocks();
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blocks.get(middle).run < run) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compresses a block of text, appends it to the archive, and returns its index entry.
+     */
+    private Block write_block(Deflater deflater, FileChannel out, long offset, int date, int run,
+                              ByteArrayOutputStream text, HashSet<String> names, int lines) throws IOException {
+        Block block = new Block();
+        block.date = date;
+        block.run = run;
+        block.offset = offset;
+        block.length = text.size();
+        block.lines = lines;
+        block.names = new BloomFilter(names.size(), BloomFilter.BITS_PER_NAME);
+        for (String name : names) {
+            block.names.add(name);
+        }
+
+        deflater.reset();
+        deflater.setInput(text.toByteArray());
+        deflater.finish();
+        byte[] buffer = new byte[BLOCK];
+        int compressed = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+            while (bytes.hasRemaining()) {
+                out.write(bytes, offset + compressed + bytes.position());
+            }
+            compressed += n;
+        }
+        block.compressed = compressed;
+        return block;
+    }
+
+    /**
+     * Reads and decompresses a block, and splits it into lines.
+     */
+    private ArrayList<String> read_block(FileChannel in, Block block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(block.compressed);
+        while (compressed.hasRemaining()) {
+            if (in.read(compressed, block.offset + compressed.position()) < 0) {
+                throw new EOFException(archive.getPath() + " is shorter than its index");
+            }
+        }
+        byte[] text = new byte[block.length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int length = 0;
+            while (length < text.length && !inflater.finished()) {
+                length += inflater.inflate(text, length, text.length - length);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("corrupt block in " + archive.getPath() + ": " + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+        ++blocks_read;
+
+        ArrayList<String> lines = new ArrayList<>(block.lines);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text)));
+        String t;
+        while ((t = reader.readLine()) != null) {
+            lines.add(t);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the index entries, reading the index the first time.
+     */
+    private ArrayList<Block> get_blocks() throws IOException {
+        if (blocks != null) {
+            return blocks;
+        }
+        blocks = new ArrayList<>();
+        if (!index.isFile()) {
+            return blocks;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            while (true) {
+                Block block = new Block();
+                try {
+                    block.date = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                block.run = in.readInt();
+                block.offset = in.readLong();
+                block.compressed = in.readInt();
+                block.length = in.readInt();
+                block.lines = in.readInt();
+                block.names = BloomFilter.read(in);
+                blocks.add(block);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns the trimmed event name of a transaction line, or an empty string if the line is too short to have one.
+     */
+    private static String name_of(String t) {
+        if (t.length() <= 3) {
+            return "";
+        }
+        return t.substring(3, Math.min(t.length(), 23)).trim();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event counting the transactions of a back end run by transaction code. The event's duration
+ * is the whole run. A replay records one event for each run it replays, with the date of that run.
+ *
+ * The event is disabled unless a recording enables it (see PhaseEvent). The back end only counts transactions when
+ * it is enabled, so a run that is not being recorded does no counting at all.
+ */
+@Name("quibble.TransactionCounts")
+@Label("Transaction Counts")
+@Category({"Quibble", "Back End"})
+@Description("Transactions of a back end run, by transaction code")
+@Enabled(false)
+public class TransactionCountsEvent extends jdk.jfr.Event {
+    @Label("Run Date")
+    @Description("The date the back end ran as, as a YYMMDD integer")
+    public int date;
+
+    @Label("Logouts")
+    public long logouts;
+
+    @Label("Sells")
+    public long sells;
+
+    @Label("Returns")
+    public long returns;
+
+    @Label("Creates")
+    public long creates;
+
+    @Label("Adds")
+    public long adds;
+
+    @Label("Deletes")
+    public long deletes;
+
+    @Label("Other")
+    @Description("Lines with any other transaction code")
+    public long other;
+
+    /**
+     * Begins counting the transactions of a run, if a recording has enabled the event.
+     * @param date - the date of the run, as a YYMMDD integer
+     * @return the event, or null if it is not enabled
+     */
+    public static TransactionCountsEvent begin(int date) {
+        TransactionCountsEvent event = new TransactionCountsEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.date = date;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Counts a line of the merged transaction file.
+     * @param t - the line
+     */
+    public void count(String t) {
+        int code = t.length() < 2 ? -1 : (t.charAt(0) - '0') * 10 + t.charAt(1) - '0';
+        switch (code) {
+            case 0 -> ++logouts;
+            case 1 -> ++sells;
+            case 2 -> ++returns;
+            case 3 -> ++creates;
+            case 4 -> ++adds;
+            case 5 -> ++deletes;
+            default -> ++other;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over event names. A filter can say for certain that a name was never added to it, but may wrongly say
+ * that a name was added (a false positive) at a rate set by the number of bits used per name: about 1% at 10 bits per
+ * name.
+ *
+ * Names are hashed exactly as by the back end's BloomFilter, so a filter written by the back end next to the current
+ * events file can be read here, and names added here are found in it.
+ */
+public class BloomFilter {
+    public static final int BITS_PER_NAME = 10;
+
+    private long[] bits;
+    private int hashes;   // number of bits set for each name
+
+    /**
+     * Two parameter constructor for the Bloom filter. Creates an empty filter sized for the expected number of names.
+     *
+     * @param expected - the number of names that will be added
+     * @param bits_per_name - the number of bits to use for each name
+     */
+    public BloomFilter(int expected, int bits_per_name) {
+        bits = new long[(int) Math.max(1, ((long) expected * bits_per_name + 63) / 64)];
+        // the number of hashes that gives the lowest false positive rate is ln(2) times the bits per name
+        hashes = Math.max(1, (int) Math.round(bits_per_name * Math.log(2)));
+    }
+
+    private BloomFilter(long[] bits_, int hashes_) {
+        bits = bits_;
+        hashes = hashes_;
+    }
+
+    /**
+     * Adds a name to the filter.
+     *
+     * @param name - the name
+     */
+    public void add(CharSequence name) {
+        int h1 = 0;
+        int h2 = 0x811c9dc5;
+        for (int i = 0; i < name.length(); ++i) {
+            h1 = 31 * h1 + name.charAt(i);
+            h2 = (h2 ^ name.charAt(i)) * 0x01000193;
+        }
+        set(h1, h2 | 1);
+    }
+
+    /**
+     * Adds a name given as a range of bytes to the filter, such as a name in the mapped current events file. Each byte
+     * is hashed as the character with the same value.
+     *
+     * @param bytes - the bytes containing the name
+     * @param start - the index of the first byte of the name
+     * @param end - the index after the last byte of the name
+     */
+    public void add(ByteBuffer bytes, int start, int end) {
+        int h1 = 0;
+        int h2 = 0x811c9dc5;
+        for (int i = start; i < end; ++i) {
+            int c = bytes.get(i) & 0xff;
+            h1 = 31 * h1 + c;
+            h2 = (h2 ^ c) * 0x01000193;
+        }
+        set(h1, h2 | 1);
+    }
+
+    /**
+     * Returns false if a name was definitely never added to the filter.
+     *
+     * @param name - the name
+     * @return true if the name may have been added to the filter
+     */
+    public boolean might_contain(CharSequence name) {
+        int h1 = 0;
+        int h2 = 0x811c9dc5;
+        for (int i = 0; i < name.length(); ++i) {
+            h1 = 31 * h1 + name.charAt(i);
+            h2 = (h2 ^ name.charAt(i)) * 0x01000193;
+        }
+        h2 |= 1;
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a filter written by the back end, as the number of hashes, the number of 64 bit words, and the words.
+     *
+     * @param in - the stream to read from
+     * @return the filter
+     * @throws IOException - if the filter cannot be read
+     */
+    public static BloomFilter read(DataInputStream in) throws IOException {
+        int hashes = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    /**
+     * Sets the bits for a name from its two hashes, combined as h1 + i * h2.
+     */
+    private void set(int h1, int h2) {
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+}
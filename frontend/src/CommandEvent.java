@@ -0,0 +1,50 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event for one command entered at the front end. The event's duration is the time from reading
+ * the command to finishing it, including the time spent waiting for the user to answer its prompts. The outcome is
+ * "ok", or the error message the command was rejected with.
+ *
+ * The event is disabled unless a recording enables it, for example with
+ *     java -XX:StartFlightRecording:+quibble.Command#enabled=true,+quibble.SessionFlush#enabled=true,filename=fe.jfr
+ *         Main ...
+ * While it is disabled, committing it costs a check of a flag.
+ */
+@Name("quibble.Command")
+@Label("Front End Command")
+@Category({"Quibble", "Front End"})
+@Description("A command entered at the front end")
+@Enabled(false)
+public class CommandEvent extends jdk.jfr.Event {
+    @Label("Command")
+    public String command;
+
+    @Label("Event Name")
+    public String event_name;
+
+    @Label("Tickets")
+    public int tickets;
+
+    @Label("Outcome")
+    public String outcome;
+
+    /**
+     * Begins timing a command.
+     * @param command - the command as entered
+     * @return the event, to be committed when the command ends
+     */
+    public static CommandEvent begin(String command) {
+        CommandEvent event = new CommandEvent();
+        event.command = command;
+        event.outcome = "ok";
+        event.begin();
+        return event;
+    }
+}
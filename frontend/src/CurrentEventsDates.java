@@ -0,0 +1,109 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The dates of the events in the current events file, read from current-events.dates as written by the back end's
+ * CurrentEventsDates. The lines of the current events file are in date order, so the dates are held as runs: for each
+ * date, the line number and byte offset of its first line, and after the last date, those of the END line. The events
+ * within a range of dates are then a run of consecutive lines, found with two binary searches.
+ */
+public class CurrentEventsDates {
+    public static final String SUFFIX = ".dates";
+
+    private int[] dates;     // each date with events, in date order
+    private int[] lines;     // first line of each date, then the END line
+    private int[] offsets;   // offset of the first line of each date, then of the END line
+
+    private CurrentEventsDates(int count) {
+        dates = new int[count];
+        lines = new int[count + 1];
+        offsets = new int[count + 1];
+    }
+
+    /**
+     * Reads the dates written next to a current events file, if they were written for this version of the file.
+     *
+     * @param events_file - the current events file
+     * @param stamp - the stamp of the current events file the events were read from, or null if it is not known
+     * @return the dates, or null if there are no usable dates
+     */
+    public static CurrentEventsDates read(String events_file, CurrentEventsStamp stamp) {
+        if (stamp == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(events_file + SUFFIX)))) {
+            if (!stamp.matches(in)) {
+                return null;
+            }
+            CurrentEventsDates read = new CurrentEventsDates(in.readInt());
+            for (int i = 0; i < read.dates.length; ++i) {
+                read.dates[i] = in.readInt();
+                read.lines[i] = in.readInt();
+                read.offsets[i] = in.readInt();
+            }
+            read.lines[read.dates.length] = in.readInt();
+            read.offsets[read.dates.length] = in.readInt();
+            return read;
+        }
+        catch (IOException e) {
+            // without the dates, events cannot be listed by date
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of dates with events.
+     * @return the number of dates
+     */
+    public int get_count() {
+        return dates.length;
+    }
+
+    /**
+     * Returns the position of the first date on or after a date.
+     * @param date - a date as a YYMMDD integer
+     * @return the position, or get_count() if every date is before it
+     */
+    public int find(int date) {
+        int low = 0;
+        int high = dates.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dates[middle] < date) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public int get_date(int i) {
+        return dates[i];
+    }
+
+    /**
+     * Returns the line number of the first line of a date.
+     * @param i - the position of the date, or get_count() for the END line
+     * @return the line number
+     */
+    public int get_line(int i) {
+        return lines[i];
+    }
+
+    /**
+     * Returns the byte offset of the first line of a date.
+     * @param i - the position of the date, or get_count() for the END line
+     * @return the offset
+     */
+    public int get_offset(int i) {
+        return offsets[i];
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The changes between the previous current events file and the newest one, read from current-events.delta as written
+ * by the back end's CurrentEventsDelta. There is one entry for each name whose first line in the current events file
+ * is new (CREATED), gone (DELETED) or has a different number of tickets (CHANGED), giving the tickets of that line in
+ * the newest file.
+ *
+ * Each current events file the back end writes has a generation, one more than the file before it. A delta brings
+ * events read from the file of the generation before it up to date; a front end that is further behind has to read
+ * the current events file again.
+ */
+public class CurrentEventsDelta {
+    public static final String SUFFIX = ".delta";
+    public static final byte CREATED = 0;
+    public static final byte DELETED = 1;
+    public static final byte CHANGED = 2;
+
+    private long generation;
+    private byte[] kinds;
+    private String[] names;
+    private int[] tickets;
+
+    private CurrentEventsDelta(long generation_, int count) {
+        generation = generation_;
+        kinds = new byte[count];
+        names = new String[count];
+        tickets = new int[count];
+    }
+
+    /**
+     * Returns the generation of the newest current events file, from the delta written next to it.
+     * @param events_file - the current events file
+     * @return the generation, or 0 if there is no delta
+     */
+    public static long read_generation(String events_file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(events_file + SUFFIX))) {
+            return in.readLong();
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the delta written next to a current events file.
+     * @param events_file - the current events file
+     * @return the delta, or null if there is no readable delta
+     */
+    public static CurrentEventsDelta read(String events_file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(events_file + SUFFIX)))) {
+            long generation = in.readLong();
+            in.skipNBytes(CurrentEventsStamp.BYTES);   // the stamp of the current events file, not needed to apply it
+            CurrentEventsDelta delta = new CurrentEventsDelta(generation, in.readInt());
+            for (int i = 0; i < delta.kinds.length; ++i) {
+                delta.kinds[i] = in.readByte();
+                delta.names[i] = in.readUTF();
+                delta.tickets[i] = in.readInt();
+            }
+            return delta;
+        }
+        catch (IOException e) {
+            // without the delta, the front end reads the current events file again
+            return null;
+        }
+    }
+
+    public long get_generation() {
+        return generation;
+    }
+
+    public int get_count() {
+        return kinds.length;
+    }
+
+    public byte get_kind(int i) {
+        return kinds[i];
+    }
+
+    public String get_name(int i) {
+        return names[i];
+    }
+
+    public int get_tickets(int i) {
+        return tickets[i];
+    }
+}
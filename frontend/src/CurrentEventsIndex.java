@@ -0,0 +1,51 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The name index of the current events file, current-events.idx as written by the back end's CurrentEventsIndex: the
+ * byte offset of every line of the file, sorted by name. Lines with the same name keep their order in the file, and
+ * the END line is indexed like any other.
+ */
+public class CurrentEventsIndex {
+    public static final String SUFFIX = ".idx";
+
+    /**
+     * Maps the name index written next to a current events file, if it was written for this version of the file. The
+     * index is the stamp of the events file (see CurrentEventsStamp), an int count, and count int offsets, all
+     * big-endian.
+     *
+     * @param events_file - the current events file
+     * @param stamp - the stamp of the current events file the events were read from, or null if it is not known
+     * @return the offsets in the index, or null if there is no usable index
+     */
+    public static IntBuffer read(String events_file, CurrentEventsStamp stamp) {
+        Path path = Paths.get(events_file + SUFFIX);
+        if (stamp == null || !path.toFile().isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int size = CurrentEventsStamp.BYTES + 4;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), size));
+            if (header.limit() < size || !stamp.matches(header)) {
+                return null;
+            }
+            int count = header.getInt(CurrentEventsStamp.BYTES);
+            if (channel.size() != size + count * 4L) {
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, size, count * 4L).asIntBuffer();
+        }
+        catch (IOException e) {
+            // the file is still usable without its index
+            return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A current events file as the back end's CurrentEventsStamp identifies it: its length and the time it was last
+ * modified. Every sidecar file the back end writes next to the current events file holds the stamp of the file it was
+ * built from, and is only used if that stamp matches the file the front end has. Two files with as many events have
+ * the same length, so the length alone does not tell them apart; the back end writes the file again on every run, so
+ * the time does. Both are read without reading the file, so checking the sidecars costs the same however many events
+ * there are. The stamp also holds a CRC32 of the file, which the front end skips.
+ */
+public class CurrentEventsStamp {
+    public static final int BYTES = 20;   // bytes of a stamp in a sidecar file
+
+    private final long length;
+    private final long modified;
+
+    private CurrentEventsStamp(long length_, long modified_) {
+        length = length_;
+        modified = modified_;
+    }
+
+    /**
+     * Stamps a current events file. The file is stamped before it is read or mapped, so that if the back end
+     * replaces it in between, the sidecars of the newer file do not match.
+     * @param events_file - the current events file
+     * @return the stamp, or null if there is no such file
+     */
+    public static CurrentEventsStamp of(String events_file) {
+        File file = new File(events_file);
+        long modified = file.lastModified();
+        if (modified == 0) {
+            // without a stamp no sidecar is used
+            return null;
+        }
+        return new CurrentEventsStamp(file.length(), modified);
+    }
+
+    /**
+     * Reads the stamp at the start of a sidecar file and checks it against this one.
+     * @param in - the sidecar file
+     * @return true if the sidecar was written for this version of the file
+     * @throws IOException - if the stamp cannot be read
+     */
+    public boolean matches(DataInput in) throws IOException {
+        long read_length = in.readLong();
+        long read_modified = in.readLong();
+        in.readInt();   // the CRC32
+        return read_length == length && read_modified == modified;
+    }
+
+    /**
+     * Checks the stamp at the start of a mapped sidecar file against this one.
+     * @param sidecar - the start of the sidecar file, at least BYTES long
+     * @return true if the sidecar was written for this version of the file
+     */
+    public boolean matches(ByteBuffer sidecar) {
+        return sidecar.getLong(0) == length && sidecar.getLong(8) == modified;
+    }
+}
@@ -27,6 +27,7 @@ public class Event {
     private int num_tickets;
     private int session_num; // created in session number
     private boolean deleted;
+    private int held;        // tickets reserved by holds, which cannot be sold
 
 
     /**
@@ -180,8 +181,8 @@ public class Event {
         if (deleted) {
             throw new EventException(QuibbleFEError.event_deleted(event_name));
         }
-        if ((num_tickets - tickets) < 0) {
-            throw new EventException(QuibbleFEError.sell_tickets_error(event_name, num_tickets));
+        if ((num_tickets - held - tickets) < 0) {
+            throw new EventException(QuibbleFEError.sell_tickets_error(event_name, num_tickets - held));
         }
         if (!current_user.is_admin() && tickets > 8) {
             throw new EventException(QuibbleFEError.unprivileged_tickets(event_name, "sell", current_user));
@@ -189,6 +190,35 @@ public class Event {
         num_tickets -= tickets;
     }
 
+    /**
+     * Holds tickets for an event, so that they cannot be sold until they are released. The same limits apply as to
+     * selling the tickets.
+     *
+     * @param tickets - the number of tickets to hold
+     * @param current_user - the current user as an Account object
+     * @throws EventException - when the tickets could not be sold
+     */
+    public void hold_tickets(int tickets, Account current_user) throws EventException {
+        if (deleted) {
+            throw new EventException(QuibbleFEError.event_deleted(event_name));
+        }
+        if ((num_tickets - held - tickets) < 0) {
+            throw new EventException(QuibbleFEError.sell_tickets_error(event_name, num_tickets - held));
+        }
+        if (!current_user.is_admin() && tickets > 8) {
+            throw new EventException(QuibbleFEError.unprivileged_tickets(event_name, "hold", current_user));
+        }
+        held += tickets;
+    }
+
+    /**
+     * Releases tickets held by hold_tickets.
+     * @param tickets - the number of tickets to release
+     */
+    public void release_tickets(int tickets) {
+        held -= tickets;
+    }
+
     /**
      * Returns tickets for an event. The method will check the user account to determine how many tickets are allowed to
      * be returned at a time.
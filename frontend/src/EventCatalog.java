@@ -0,0 +1,58 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The events known to the front end. Events are found by name; an event keeps its place in the catalog after it has
+ * been deleted (it is only marked as deleted), so that it cannot be modified or created again in the same run.
+ *
+ * Implementations:
+ *     LoadedEventCatalog - reads every event from the current events file at startup
+ *     MappedEventCatalog - memory-maps the current events file and only creates an event when it is looked up
+ */
+public interface EventCatalog {
+    /**
+     * Finds the first event with the given name, including deleted events.
+     * @param event_name - the name of the event
+     * @return the event, or null if there is no event with that name
+     */
+    Event find(String event_name);
+
+    /**
+     * Adds an event created by the front end. The event must not already be in the catalog.
+     * @param event - the new event
+     */
+    void add(Event event);
+
+    /**
+     * Replaces the first event with the name of the given event, or adds the event if there is none. Used to bring
+     * the catalog up to date with a newer current events file (see CurrentEventsDelta).
+     * @param event - the event from the newer file
+     */
+    void replace(Event event);
+
+    /**
+     * Lists the events of the current events file dated within a range, in date order, leaving out deleted events.
+     * Each is the event the front end finds by its name, with any changes made since the file was read or taken from a
+     * newer file, unless an earlier line has the same name. Events created by the front end since the file was read
+     * are listed by their own dates, after the events of the file on the same date; events that are only in a newer
+     * file have no known date, and are not listed.
+     *
+     * @param from_date - the first date to list, as a YYMMDD integer
+     * @param to_date - the last date to list, as a YYMMDD integer
+     * @param listed - called with each event listed and its date, as a YYMMDD integer
+     * @return false if the dates of the events are not known (see CurrentEventsDates)
+     */
+    boolean list(int from_date, int to_date, ObjIntConsumer<Event> listed);
+
+    /**
+     * Finds the events whose names start with a prefix, in name order, leaving out deleted events. Each name is found
+     * once, as the event find returns for it, including events created since the file was read.
+     *
+     * @param prefix - the start of the names to find
+     * @param found - called with each event found
+     */
+    void search(String prefix, Consumer<Event> found);
+}
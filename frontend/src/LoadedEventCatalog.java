@@ -0,0 +1,291 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Event catalog that holds every event in memory, read from the current events file at startup. Events are found
+ * through the id of their name in a NameDictionary instead of by searching the list of events.
+ *
+ * The events read from the file keep their lines' places at the start of the list of events, so the events within a
+ * range of dates are a run of the list, found from the dates the back end wrote next to the file (see
+ * CurrentEventsDates). The first line of a name lists the event find returns for it, which is another event once a
+ * newer file has replaced it, and the events added since the file was read are merged in by their own dates.
+ *
+ * Names are searched by prefix in an array of the ids of every name in the dictionary in name order, built by the
+ * first search so that reading the file costs no more. The order of the names read from the file is taken from the
+ * name index the back end wrote next to it (see CurrentEventsIndex) if there is one for this version of the file, and
+ * the names are sorted otherwise. The names starting with a prefix are then a run of the array, found with a binary
+ * search, so a search costs the same however many events there are, apart from the events it finds. Names created
+ * after the array was built are kept in a small sorted set instead of sorting the array again. The END line that ends
+ * the file is not an event and is never found by a search.
+ */
+public class LoadedEventCatalog implements EventCatalog {
+    private static final int LINE = 27;   // bytes in a line of the current events file, including its newline
+    private static final String END = "END";   // name of the line that ends the current events file
+
+    private ArrayList<Event> events;
+    private NameDictionary names;
+    private ArrayList<Event> events_by_name; // first event in events for each name id
+    private CurrentEventsDates dates;        // dates of the events read from the file, or null if not known
+    private int[] sorted;                    // ids of every name in name order, or null until the first search
+    private TreeSet<String> added;           // names added to the dictionary since sorted was built
+    private IntBuffer index;                 // offset of every line of the file sorted by name, or null
+    private int file_names;                  // number of names read from the file
+    private int file_lines;                  // number of lines read from the file
+    private int[] first_lines;               // line of the first event with each name read, or null until listed
+    private Event end;                       // the END line read from the file, or null if there is none
+
+    /**
+     * Default constructor for the catalog. Creates an empty catalog, used when there is no current events file.
+     */
+    public LoadedEventCatalog() {
+        this(new ArrayList<>(), new NameDictionary(), null, null);
+    }
+
+    /**
+     * Four parameter constructor for the catalog.
+     * @param events_ - the events read from the current events file
+     * @param names_ - the dictionary holding the names of the events
+     * @param dates_ - the dates of the events read from the file, or null if they are not known
+     * @param index_ - the name index of the file, or null if there is none
+     */
+    public LoadedEventCatalog(ArrayList<Event> events_, NameDictionary names_, CurrentEventsDates dates_,
+                              IntBuffer index_) {
+        events = events_;
+        names = names_;
+        index = index_;
+        file_names = names.size();
+        end = !events.isEmpty() && events.get(events.size() - 1).get_event_name().equals(END)
+                ? events.get(events.size() - 1) : null;
+        // dates that do not cover the events read belong to another version of the file
+        dates = dates_ != null && dates_.get_line(dates_.get_count()) < events.size() ? dates_ : null;
+        file_lines = events.size();
+        events_by_name = new ArrayList<>();
+        for (Event event : events) {
+            index_event(event);
+        }
+    }
+
+    @Override public Event find(String event_name) {
+        int id = names.lookup(event_name);
+        if (id == NameDictionary.NONE || id >= events_by_name.size()) {
+            return null;
+        }
+        return events_by_name.get(id);
+    }
+
+    @Override public void add(Event event) {
+        // keep a single string for each name
+        event.set_event_name(names.get_name(names.intern(event.get_event_name())));
+        events.add(event);
+        index_event(event);
+    }
+
+    @Override public void replace(Event event) {
+        add(event);
+        events_by_name.set(names.lookup(event.get_event_name()), event);
+    }
+
+    @Override public boolean list(int from_date, int to_date, ObjIntConsumer<Event> listed) {
+        if (dates == null) {
+            return false;
+        }
+        if (first_lines == null) {
+            // built by the first list, so that reading the file costs no more
+            first_lines = new int[file_names];
+            for (int line = file_lines - 1; line >= 0; --line) {
+                first_lines[names.lookup(events.get(line).get_event_name())] = line;
+            }
+        }
+        ArrayList<Event> later = added_within(from_date, to_date);
+        int next = 0;
+        int end = dates.find(to_date + 1);
+        for (int i = dates.find(from_date); i < end; ++i) {
+            int date = dates.get_date(i);
+            for (; next < later.size() && date_of(later.get(next)) < date; ++next) {
+                listed.accept(later.get(next), date_of(later.get(next)));
+            }
+            for (int line = dates.get_line(i); line < dates.get_line(i + 1); ++line) {
+                // the first line of a name is the event found by name, which a newer file may have replaced
+                Event event = events.get(line);
+                int id = names.lookup(event.get_event_name());
+                if (first_lines[id] == line) {
+                    event = events_by_name.get(id);
+                }
+                if (!event.is_deleted()) {
+                    listed.accept(event, date);
+                }
+            }
+        }
+        for (; next < later.size(); ++next) {
+            listed.accept(later.get(next), date_of(later.get(next)));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the events added since the file was read that are dated within a range, in date order, leaving out
+     * deleted events and those that are not the event find returns for their name. The events of a newer file that
+     * are not in this one have no date, so they are left out too, as are the events that replaced a line of the file,
+     * which are listed at the date of the line.
+     */
+    private ArrayList<Event> added_within(int from_date, int to_date) {
+        ArrayList<Event> within = new ArrayList<>();
+        for (int i = file_lines; i < events.size(); ++i) {
+            Event event = events.get(i);
+            int id = names.lookup(event.get_event_name());
+            int date = date_of(event);
+            if (id >= file_names && events_by_name.get(id) == event && !event.is_deleted() && date >= from_date
+                    && date <= to_date) {
+                within.add(event);
+            }
+        }
+        within.sort((a, b) -> Integer.compare(date_of(a), date_of(b)));
+        return within;
+    }
+
+    /**
+     * Returns the date of an event as a YYMMDD integer, or -1 if it is not known.
+     */
+    private static int date_of(Event event) {
+        String date = event.get_event_date();
+        return date.isEmpty() ? -1 : Integer.parseInt(date);
+    }
+
+    @Override public void search(String prefix, Consumer<Event> found) {
+        if (sorted == null) {
+            sorted = index != null ? order_from_index() : null;
+            if (sorted == null) {
+                sort_names();
+            }
+            index = null;
+            added = new TreeSet<>();
+        }
+        // ids are given out in order, so the names after those already sorted or added are new
+        for (int id = sorted.length + added.size(); id < names.size(); ++id) {
+            added.add(names.get_name(id));
+        }
+
+        int i = first_not_less(prefix);
+        Iterator<String> later = added.tailSet(prefix).iterator();
+        String next_added = later.hasNext() ? later.next() : null;
+        while (true) {
+            String name = i < sorted.length && names.get_name(sorted[i]).startsWith(prefix)
+                    ? names.get_name(sorted[i]) : null;
+            if (next_added != null && !next_added.startsWith(prefix)) {
+                next_added = null;
+            }
+            if (name == null && next_added == null) {
+                break;
+            }
+            // the two runs of names are merged, a name is never in both
+            Event event;
+            if (name == null || (next_added != null && next_added.compareTo(name) < 0)) {
+                event = find(next_added);
+                next_added = later.hasNext() ? later.next() : null;
+            }
+            else {
+                event = events_by_name.get(sorted[i++]);
+            }
+            if (!event.is_deleted() && event != end) {
+                found.accept(event);
+            }
+        }
+    }
+
+    /**
+     * Takes the order of the names read from the file from the back end's name index. Lines with the same name are
+     * next to each other in the index, so each name is kept once. The index is only used if it holds the names read
+     * from the file, each once and in order; it is not checked against the file otherwise.
+     *
+     * @return the ids of the names read from the file in name order, or null if the index does not match the events
+     */
+    private int[] order_from_index() {
+        int[] ids = new int[file_names];
+        int count = 0;
+        String previous = null;
+        for (int i = 0; i < index.limit(); ++i) {
+            int offset = index.get(i);
+            if (offset % LINE != 0 || offset / LINE >= events.size()) {
+                return null;
+            }
+            String name = events.get(offset / LINE).get_event_name();
+            if (name.equals(previous)) {
+                continue;
+            }
+            int id = names.lookup(name);
+            if ((previous != null && previous.compareTo(name) > 0) || id >= file_names || count == file_names) {
+                return null;
+            }
+            ids[count++] = id;
+            previous = name;
+        }
+        // the names are in order and so different, and there are as many as were read, so every name is there
+        return count == file_names ? ids : null;
+    }
+
+    /**
+     * Sorts the ids of every name in the dictionary by name, without the back end's name index.
+     */
+    private void sort_names() {
+        String[] in_order = new String[names.size()];
+        for (int id = 0; id < in_order.length; ++id) {
+            in_order[id] = names.get_name(id);
+        }
+        Arrays.parallelSort(in_order);
+        sorted = new int[in_order.length];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = names.lookup(in_order[i]);
+        }
+    }
+
+    /**
+     * Binary search of the sorted names for the first name that is not less than a name.
+     * @param name - the name
+     * @return the position of the name in sorted, or the number of names if every name is less
+     */
+    private int first_not_less(String name) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (names.get_name(sorted[middle]).compareTo(name) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns every event in the catalog, in the order they were loaded or created.
+     * @return the list of events
+     */
+    public ArrayList<Event> get_events() {
+        return events;
+    }
+
+    /**
+     * Makes an event findable by name. Only the first event with a name is kept, the same event that a search of
+     * the list of events would find.
+     * @param event - an event that has been added to the list of events
+     */
+    private void index_event(Event event) {
+        int id = names.intern(event.get_event_name());
+        while (events_by_name.size() <= id) {
+            events_by_name.add(null);
+        }
+        if (events_by_name.get(id) == null) {
+            events_by_name.set(id, event);
+        }
+    }
+}
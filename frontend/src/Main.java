@@ -5,20 +5,37 @@
 import java.io.File;
 
 /**
- * Starts and runs the Quibble front end. Accepts the current events file as a string argument. If this file is not
- * specified, the Quibble front end will start without parsing the events file.
+ * Starts and runs the Quibble front end. Reads the current events file from the current directory. If this file does
+ * not exist, the Quibble front end will start without parsing the events file.
+ *
+ * Accepts the following options:
+ *     --mapped            - memory-map the current events file and read events only when they are needed
+ *     --hold-seconds N    - release held tickets after N seconds instead of TicketHolds.DEFAULT_SECONDS
  */
 public class Main {
     public static void main(String[] args) {
+        // other arguments are ignored, as they always have been
+        boolean mapped = false;
+        int hold_seconds = TicketHolds.DEFAULT_SECONDS;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--mapped")) {
+                mapped = true;
+            }
+            else if (args[i].equals("--hold-seconds") && i + 1 < args.length && args[i + 1].matches("\\d{1,6}")) {
+                hold_seconds = Integer.parseInt(args[++i]);
+            }
+        }
+
         // start the front end without parsing the events file
         QuibbleFE fe = null;
         File current_events = new File("current-events");
         if (current_events.exists()) {
-            fe = new QuibbleFE("current-events");
+            fe = new QuibbleFE("current-events", mapped);
         }
         else {
             fe = new QuibbleFE();
         }
+        fe.set_hold_seconds(hold_seconds);
         fe.start();
     }
 }
@@ -0,0 +1,465 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Event catalog backed by a memory-mapped current events file. Opening the catalog only maps the file, so the front
+ * end starts in the same time no matter how many events there are. An Event is only created the first time a command
+ * looks it up, and is then kept in a small overlay together with the events created by the front end; every change a
+ * command makes is made to the overlay's Event, never to the file.
+ *
+ * Each line of the file is an event name padded with spaces, a space, and a five digit number of tickets. The name is
+ * taken to be everything before the last six bytes of the line, which matches the columns read by
+ * QuibbleIO.read_events_file for names of up to 20 characters.
+ *
+ * If the back end has written a name index next to the file (current-events.idx, the byte offset of every line sorted
+ * by name), lookups are a binary search of the index. Without an index, or with one built for a different version of
+ * the file, every lookup scans the file from the start. Opening the catalog stamps the file with its length and time
+ * before mapping it, and each sidecar file is only used if it was stamped with the same ones (see CurrentEventsStamp).
+ *
+ * Names are first checked against a BloomFilter of every name in the file, read from current-events.bloom if the back
+ * end wrote one. A name the filter has never seen, such as a mistyped name, is rejected without touching the file or
+ * the index. Without the back end's filter, one is built by the first lookup that has to scan the file.
+ *
+ * Events are listed by date from the dates the back end wrote next to the file (see CurrentEventsDates), which give
+ * the byte range of the lines within a range of dates; only those lines are read. The events added since the file
+ * was mapped are merged in by their own dates.
+ *
+ * Names are searched by prefix in the name index too: the names starting with a prefix are a run of the index, so
+ * only the lines they point to are read. Without an index, a search scans the file. Neither finds the END line that
+ * ends the file.
+ */
+public class MappedEventCatalog implements EventCatalog {
+    private static final String END = "END";   // name of the line that ends the current events file
+
+    private String events_file;
+    private MappedByteBuffer file;
+    private IntBuffer index;                  // offset of every line sorted by name, or null if there is no index
+    private BloomFilter names;                // every name in the file and the overlay, or null if not built yet
+    private HashMap<String, Event> overlay;   // events looked up or created so far, by name
+    private CurrentEventsDates dates;         // dates of the lines of the file, or null if not known
+    private TreeSet<String> added;            // names of the events added or replaced, which may not be in the file
+    private int end_line;                     // offset of the END line of the file, or -1 if there is none
+
+    /**
+     * One parameter constructor for the catalog. Maps the events file; no events are read.
+     * @param events_file_ - the current events file
+     */
+    public MappedEventCatalog(String events_file_) {
+        events_file = events_file_;
+        overlay = new HashMap<>();
+        added = new TreeSet<>();
+        CurrentEventsStamp stamp = CurrentEventsStamp.of(events_file);
+        try (FileChannel channel = FileChannel.open(Paths.get(events_file), StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (IOException e) {
+            System.err.println("[INTERNAL ERROR] Unable to read events file '" + events_file + "': " + e.getMessage());
+            System.exit(1);
+        }
+        end_line = find_end_line();
+        index = CurrentEventsIndex.read(events_file, stamp);
+        names = read_filter(Paths.get(events_file + ".bloom"), stamp);
+        dates = CurrentEventsDates.read(events_file, stamp);
+    }
+
+    /**
+     * Reads the name filter written by the back end, if there is one for this version of the events file. The filter
+     * file is the stamp of the events file (see CurrentEventsStamp) followed by the filter.
+     * @param path - the filter file
+     * @param stamp - the stamp of the events file
+     * @return the filter, or null if there is no usable filter
+     */
+    private BloomFilter read_filter(Path path, CurrentEventsStamp stamp) {
+        if (!path.toFile().isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+            if (!stamp.matches(in)) {
+                return null;
+            }
+            return BloomFilter.read(in);
+        }
+        catch (IOException e) {
+            // the file is still usable without its filter
+            return null;
+        }
+    }
+
+    @Override public Event find(String event_name) {
+        Event event = overlay.get(event_name);
+        if (event == null) {
+            if (names == null && index == null) {
+                // this lookup would scan the file anyway
+                build_filter();
+            }
+            if (names != null && !names.might_contain(event_name)) {
+                return null;
+            }
+            int line = find_line(event_name.getBytes());
+            if (line == -1) {
+                return null;
+            }
+            event = read_event(line);
+            overlay.put(event_name, event);
+        }
+        return event;
+    }
+
+    @Override public void add(Event event) {
+        overlay.putIfAbsent(event.get_event_name(), event);
+        added.add(event.get_event_name());
+        if (names != null) {
+            names.add(event.get_event_name());
+        }
+    }
+
+    @Override public void replace(Event event) {
+        overlay.put(event.get_event_name(), event);
+        added.add(event.get_event_name());
+        if (names != null) {
+            names.add(event.get_event_name());
+        }
+    }
+
+    @Override public boolean list(int from_date, int to_date, ObjIntConsumer<Event> listed) {
+        if (dates == null) {
+            return false;
+        }
+        ArrayList<Event> later = added_within(from_date, to_date);
+        int next = 0;
+        int end = dates.find(to_date + 1);
+        for (int i = dates.find(from_date); i < end; ++i) {
+            for (; next < later.size() && date_of(later.get(next)) < dates.get_date(i); ++next) {
+                listed.accept(later.get(next), date_of(later.get(next)));
+            }
+            int line = dates.get_offset(i);
+            while (line < dates.get_offset(i + 1)) {
+                int line_end = line_end(line);
+                byte[] name = new byte[name_end(line, line_end) - line];
+                file.get(line, name);
+                // a looked up event is only the event of its name's first line
+                Event event = overlay.get(new String(name));
+                if (event == null || find_line(name) != line) {
+                    event = read_event(line);
+                }
+                if (!event.is_deleted()) {
+                    listed.accept(event, dates.get_date(i));
+                }
+                line = line_end + 1;
+            }
+        }
+        for (; next < later.size(); ++next) {
+            listed.accept(later.get(next), date_of(later.get(next)));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the events added since the file was mapped that are dated within a range, in date order, leaving out
+     * deleted events. Only the events created by the front end have a date, and none of them is in the file; the
+     * events of a newer file have no date, so they are left out, and those that replaced a line of the file are
+     * listed at the date of the line.
+     */
+    private ArrayList<Event> added_within(int from_date, int to_date) {
+        ArrayList<Event> within = new ArrayList<>();
+        for (String name : added) {
+            Event event = overlay.get(name);
+            int date = date_of(event);
+            if (!event.is_deleted() && date >= from_date && date <= to_date) {
+                within.add(event);
+            }
+        }
+        within.sort((a, b) -> Integer.compare(date_of(a), date_of(b)));
+        return within;
+    }
+
+    /**
+     * Returns the date of an event as a YYMMDD integer, or -1 if it is not known.
+     */
+    private static int date_of(Event event) {
+        String date = event.get_event_date();
+        return date.isEmpty() ? -1 : Integer.parseInt(date);
+    }
+
+    @Override public void search(String prefix, Consumer<Event> found) {
+        Map<String, Integer> matches = index != null ? search_index_prefix(prefix.getBytes())
+                : scan_prefix(prefix.getBytes());
+        Iterator<Map.Entry<String, Integer>> in_file = matches.entrySet().iterator();
+        Map.Entry<String, Integer> next_line = in_file.hasNext() ? in_file.next() : null;
+        Iterator<String> later = added.tailSet(prefix).iterator();
+        String next_added = next_match(later, prefix);
+        // the names in the file and the names added are merged, the event of a name is its overlay event if it has one
+        while (next_line != null || next_added != null) {
+            int order = next_line == null ? 1 : next_added == null ? -1 : next_line.getKey().compareTo(next_added);
+            Event event;
+            if (order <= 0) {
+                event = overlay.get(next_line.getKey());
+                if (event == null) {
+                    event = read_event(next_line.getValue());
+                }
+                next_line = in_file.hasNext() ? in_file.next() : null;
+            }
+            else {
+                event = overlay.get(next_added);
+            }
+            if (order >= 0) {
+                next_added = next_match(later, prefix);
+            }
+            if (!event.is_deleted()) {
+                found.accept(event);
+            }
+        }
+    }
+
+    /**
+     * Finds the lines of the names starting with a prefix from the name index.
+     * @param prefix - the prefix, encoded the same way as the file
+     * @return the offset of the first line of each name, in name order
+     */
+    private Map<String, Integer> search_index_prefix(byte[] prefix) {
+        LinkedHashMap<String, Integer> matches = new LinkedHashMap<>();
+        for (int i = lower_bound(prefix); i < index.limit(); ++i) {
+            int line = index.get(i);
+            int name_end = name_end(line, line_end(line));
+            if (!name_starts_with(line, name_end, prefix)) {
+                break;
+            }
+            if (line == end_line) {
+                continue;
+            }
+            // duplicates are in file order, so the first entry of a name is the line find reads
+            matches.putIfAbsent(read_name(line, name_end), line);
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the lines of the names starting with a prefix by scanning the file.
+     * @param prefix - the prefix, encoded the same way as the file
+     * @return the offset of the first line of each name, in name order
+     */
+    private Map<String, Integer> scan_prefix(byte[] prefix) {
+        TreeMap<String, Integer> matches = new TreeMap<>();
+        int limit = file.limit();
+        int line = 0;
+        while (line < limit) {
+            int end = line_end(line);
+            int name_end = name_end(line, end);
+            if (name_starts_with(line, name_end, prefix) && line != end_line) {
+                matches.putIfAbsent(read_name(line, name_end), line);
+            }
+            line = end + 1;
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the END line, the last line of the file if its name is END.
+     * @return the offset of the line, or -1 if the last line is an event
+     */
+    private int find_end_line() {
+        int limit = file.limit();
+        int end = limit > 0 && file.get(limit - 1) == '\n' ? limit - 1 : limit;
+        int line = end;
+        while (line > 0 && file.get(line - 1) != '\n') {
+            --line;
+        }
+        return line < end && read_name(line, name_end(line, end)).equals(END) ? line : -1;
+    }
+
+    /**
+     * Returns the next name from an iterator over names in order, or null if there are no more names starting with a
+     * prefix.
+     */
+    private static String next_match(Iterator<String> names, String prefix) {
+        if (!names.hasNext()) {
+            return null;
+        }
+        String name = names.next();
+        return name.startsWith(prefix) ? name : null;
+    }
+
+    /**
+     * Builds the name filter from every line of the file, and the events already created.
+     */
+    private void build_filter() {
+        int limit = file.limit();
+        int lines = 0;
+        for (int i = 0; i < limit; ++i) {
+            if (file.get(i) == '\n') {
+                ++lines;
+            }
+        }
+        names = new BloomFilter(lines + 1 + overlay.size(), BloomFilter.BITS_PER_NAME);
+        int line = 0;
+        while (line < limit) {
+            int end = line_end(line);
+            names.add(file, line, name_end(line, end));
+            line = end + 1;
+        }
+        for (String name : overlay.keySet()) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Searches the file for the first line with the given event name.
+     * @param name - the event name, encoded the same way as the file
+     * @return the offset of the line, or -1 if no line has the name
+     */
+    private int find_line(byte[] name) {
+        if (index != null) {
+            return search_index(name);
+        }
+        int limit = file.limit();
+        int line = 0;
+        while (line < limit) {
+            int end = line_end(line);
+            if (name_matches(line, end, name)) {
+                return line;
+            }
+            line = end + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Binary search of the name index for the first line with the given event name.
+     * @param name - the event name, encoded the same way as the file
+     * @return the offset of the line, or -1 if no line has the name
+     */
+    private int search_index(byte[] name) {
+        // the first entry whose name is not less than the name, so duplicates are found in file order
+        int low = lower_bound(name);
+        if (low == index.limit()) {
+            return -1;
+        }
+        int line = index.get(low);
+        return name_matches(line, line_end(line), name) ? line : -1;
+    }
+
+    /**
+     * Binary search of the name index for the first entry whose name is not less than the given name.
+     * @param name - the event name, encoded the same way as the file
+     * @return the position of the entry, or the number of entries if every name is less
+     */
+    private int lower_bound(byte[] name) {
+        int low = 0;
+        int high = index.limit();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int line = index.get(middle);
+            if (compare_name(line, line_end(line), name) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the offset of the newline that ends a line, or the end of the file for the last line.
+     * @param line - the offset of the line
+     * @return the end of the line
+     */
+    private int line_end(int line) {
+        int limit = file.limit();
+        int end = line;
+        while (end < limit && file.get(end) != '\n') {
+            ++end;
+        }
+        return end;
+    }
+
+    /**
+     * Compares the name field of a line, with the padding removed, to an event name.
+     * @param line - the offset of the line
+     * @param end - the end of the line
+     * @param name - the event name, encoded the same way as the file
+     * @return the result of comparing the name field to the name, as for String.compareTo on ASCII names
+     */
+    private int compare_name(int line, int end, byte[] name) {
+        int name_end = name_end(line, end);
+        int length = name_end - line;
+        for (int i = 0; i < Math.min(length, name.length); ++i) {
+            int difference = (file.get(line + i) & 0xff) - (name[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Creates an Event from a line of the file.
+     * @param line - the offset of the line
+     * @return the event
+     */
+    private Event read_event(int line) {
+        int end = line_end(line);
+        int name_end = name_end(line, end);
+        int tickets = 0;
+        for (int i = Math.max(name_end, end - 5); i < end; ++i) {
+            byte b = file.get(i);
+            if (b >= '0' && b <= '9') {
+                tickets = tickets * 10 + (b - '0');
+            }
+        }
+        return new Event(read_name(line, name_end), tickets);
+    }
+
+    private String read_name(int line, int name_end) {
+        byte[] name = new byte[name_end - line];
+        file.get(line, name);
+        return new String(name);
+    }
+
+    private boolean name_starts_with(int line, int name_end, byte[] prefix) {
+        if (name_end - line < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (file.get(line + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean name_matches(int line, int end, byte[] name) {
+        return name_end(line, end) - line == name.length && compare_name(line, end, name) == 0;
+    }
+
+    /**
+     * Returns the end of the name field of a line, after removing the padding.
+     */
+    private int name_end(int line, int end) {
+        int name_end = Math.max(line, end - 6);
+        while (name_end > line && (file.get(name_end - 1) & 0xff) <= ' ') {
+            --name_end;
+        }
+        return name_end;
+    }
+}
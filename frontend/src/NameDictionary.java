@@ -0,0 +1,151 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+
+/**
+ * Dictionary of event names for the front end. Maps every distinct event name to a compact integer id, starting at 0,
+ * and keeps a single string for each name. Names can be looked up directly from a range of characters in a line, so
+ * parsing the current events file only creates a string the first time a name is seen.
+ *
+ * Names are never removed from the dictionary; the id of a deleted event stays valid.
+ */
+public class NameDictionary {
+    public static final int NONE = -1;   // returned when a name is not in the dictionary
+
+    private String[] names;   // the name for each id
+    private int[] index;      // open-addressing (linear probing) index, each slot holds an id plus one (0 is empty)
+    private int size;         // number of names
+
+    /**
+     * Default constructor for the name dictionary. Creates an empty dictionary.
+     */
+    public NameDictionary() {
+        names = new String[16];
+        index = new int[32];
+        size = 0;
+    }
+
+    /**
+     * Returns the number of names in the dictionary. Ids range from 0 to size - 1.
+     * @return the number of names
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks up a name given as a range of characters. The range is used as is, so callers should trim it first.
+     *
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     * @return the id of the name, or NONE if the name is not in the dictionary
+     */
+    public int lookup(CharSequence text, int start, int end) {
+        return index[probe(text, start, end)] - 1;
+    }
+
+    /**
+     * Looks up a name.
+     *
+     * @param name - the name
+     * @return the id of the name, or NONE if the name is not in the dictionary
+     */
+    public int lookup(String name) {
+        return lookup(name, 0, name.length());
+    }
+
+    /**
+     * Returns the id of a name given as a range of characters, adding the name to the dictionary if it is not
+     * already there.
+     *
+     * @param text - the text containing the name
+     * @param start - the index of the first character of the name
+     * @param end - the index after the last character of the name
+     * @return the id of the name
+     */
+    public int intern(CharSequence text, int start, int end) {
+        int slot = probe(text, start, end);
+        if (index[slot] != 0) {
+            return index[slot] - 1;
+        }
+        if ((size + 1) * 2 > index.length) {
+            rehash(index.length * 2);
+            slot = probe(text, start, end);
+        }
+        if (size == names.length) {
+            String[] grown = new String[names.length * 2];
+            System.arraycopy(names, 0, grown, 0, size);
+            names = grown;
+        }
+        names[size] = text.subSequence(start, end).toString();
+        index[slot] = ++size;
+        return size - 1;
+    }
+
+    /**
+     * Returns the id of a name, adding the name to the dictionary if it is not already there.
+     *
+     * @param name - the name
+     * @return the id of the name
+     */
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    /**
+     * Gets the single string kept for a name.
+     *
+     * @param id - the id of the name
+     * @return the name
+     */
+    public String get_name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the index slot holding a name, or the empty slot where the name should be inserted.
+     */
+    private int probe(CharSequence text, int start, int end) {
+        int mask = index.length - 1;
+        int slot = hash(text, start, end) & mask;
+        while (index[slot] != 0 && !name_equals(names[index[slot] - 1], text, start, end)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean name_equals(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); ++i) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a range of characters the same way as String.hashCode, with the high bits spread into the low bits.
+     */
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int slots) {
+        index = new int[slots];
+        for (int id = 0; id < size; ++id) {
+            int slot = hash(names[id], 0, names[id].length()) & (slots - 1);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            index[slot] = id + 1;
+        }
+    }
+}
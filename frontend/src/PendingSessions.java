@@ -0,0 +1,149 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sessions this front end has written to transaction files that the back end has not yet applied to the current events
+ * file. Until it has, the events read from a newer file are missing the changes of these sessions, so they are applied
+ * again after each refresh (see QuibbleFE.refresh_events).
+ *
+ * The back end records the sessions it has applied in current-events.sessions, as written by its ProcessedSessions:
+ *     long - the first generation whose sessions are all in the file
+ *     int  - the number of entries
+ *     then for each entry: the generation of the current events file that first had the session (long) and the CRC32
+ *     of the session's lines, each followed by a newline (int)
+ *
+ * A session is settled once it is listed for a generation after the one it was written in, up to the generation of
+ * the events read. It is also settled once the back end no longer lists the generations after it was written, or if
+ * the generations have started again, since then it cannot tell whether the session was applied. A session with
+ * nothing but the logout transaction changes no event, and is never pending.
+ *
+ * Sessions with the same lines have the same checksum, and the back end lists each one it applied, so each entry
+ * settles only one session. The entries that settled a session are claimed, and stay claimed for as long as the back
+ * end lists them, so a later session with the same lines is not settled by an entry that was already used.
+ */
+public class PendingSessions implements Iterable<Transaction> {
+    public static final String SUFFIX = ".sessions";
+
+    private ArrayList<Session> sessions;
+    private ArrayList<long[]> claimed;   // generation and checksum of each entry that settled a session
+
+    /**
+     * The transactions of one session, with the generation of the events it was written against.
+     */
+    private static class Session {
+        final ArrayList<Transaction> transactions;
+        final long generation;
+        final int checksum;
+
+        Session(List<Transaction> transactions_, long generation_) {
+            transactions = new ArrayList<>(transactions_);
+            generation = generation_;
+            CRC32 crc = new CRC32();
+            for (Transaction t : transactions) {
+                crc.update((t.toString() + '\n').getBytes());
+            }
+            checksum = (int) crc.getValue();
+        }
+    }
+
+    /**
+     * Default constructor for the pending sessions. There are none.
+     */
+    public PendingSessions() {
+        sessions = new ArrayList<>();
+        claimed = new ArrayList<>();
+    }
+
+    /**
+     * Adds a session that has just been written to its transaction file.
+     * @param transactions - the transactions of the session, ending with the logout transaction
+     * @param generation - the generation of the current events file the events were read from
+     */
+    public void add(List<Transaction> transactions, long generation) {
+        if (transactions.size() > 1) {
+            sessions.add(new Session(transactions, generation));
+        }
+    }
+
+    /**
+     * Drops the sessions that the back end has applied to the current events file of a generation, so that only the
+     * sessions still missing from that file are left.
+     * @param events_file - the current events file
+     * @param generation - the generation of the current events file the events were read from
+     */
+    public void settle(String events_file, long generation) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        long first = 0;
+        long[] generations = new long[0];
+        int[] checksums = new int[0];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(events_file + SUFFIX)))) {
+            long read_first = in.readLong();
+            int count = in.readInt();
+            generations = new long[count];
+            checksums = new int[count];
+            for (int i = 0; i < count; ++i) {
+                generations[i] = in.readLong();
+                checksums[i] = in.readInt();
+            }
+            first = read_first;
+        }
+        catch (IOException e) {
+            // without the file no session is known to be applied
+        }
+
+        // the claims whose entries are still listed stay claimed, the others are dropped
+        boolean[] used = new boolean[generations.length];
+        ArrayList<long[]> still_claimed = new ArrayList<>();
+        for (long[] claim : claimed) {
+            for (int i = 0; i < generations.length; ++i) {
+                if (!used[i] && generations[i] == claim[0] && checksums[i] == (int) claim[1]) {
+                    used[i] = true;
+                    still_claimed.add(claim);
+                    break;
+                }
+            }
+        }
+        claimed = still_claimed;
+
+        Iterator<Session> it = sessions.iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            boolean applied = session.generation > generation || session.generation + 1 < first;
+            for (int i = 0; i < generations.length && !applied; ++i) {
+                applied = !used[i] && checksums[i] == session.checksum && generations[i] > session.generation
+                        && generations[i] <= generation;
+                if (applied) {
+                    used[i] = true;
+                    claimed.add(new long[] {generations[i], checksums[i]});
+                }
+            }
+            if (applied) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the transactions of the pending sessions, in the order they were made.
+     * @return an iterator over the transactions
+     */
+    @Override public Iterator<Transaction> iterator() {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (Session session : sessions) {
+            transactions.addAll(session.transactions);
+        }
+        return transactions.iterator();
+    }
+}
@@ -2,6 +2,7 @@
  * @author Dan Lawrence, Jerry Mak
  */
 import java.util.ArrayList;
+import java.util.HashSet;
 
 
 /**
@@ -12,10 +13,27 @@ import java.util.ArrayList;
  *     current_user    - Account object representing the current user of the system (used to determine privileges)
  *     current_command - Current command running by the system
  *     session_number  - The current session (used to name transaction files after login-logout sequences)
- *     current_events  - A list of event objects representing each event known to Quibble. These are first loaded
- *                       upon startup after reading the current events file, and then modified after subsequent commands
+ *     current_events  - A catalog of event objects representing each event known to Quibble. These are either loaded
+ *                       upon startup from the current events file (LoadedEventCatalog) or read from the mapped file
+ *                       when first needed (MappedEventCatalog), and then modified after subsequent commands
  *     transactions    - A list of transactions in the current session. This list is written to a file and reset after
  *                       a logout command is parsed
+ *     pending         - Sessions written to transaction files that the back end has not yet applied (see
+ *                       PendingSessions)
+ *     holds           - Tickets held in the current session (see TicketHolds). Holds that expire are released before
+ *                       the next command, and every hold is released on logout
+ *
+ * Before each login the front end looks for a newer current events file written by the back end. If the back end
+ * left a delta from the file the front end has (see CurrentEventsDelta), the changed events are updated in place;
+ * otherwise, if the file is newer still, it is read again. Either way the front end keeps running, and the sessions it
+ * has written that are not yet in the newer file are applied again, so that their changes are not lost.
+ *
+ * The list command shows the events dated within a range, from the dates the back end writes next to the current
+ * events file (see CurrentEventsDates), since the file itself has no dates. The search command shows the events whose
+ * names start with a prefix, from the names of the events kept in name order by the catalog.
+ *
+ * Each command is recorded as a CommandEvent, and each session written to its transaction file as a SessionFlushEvent,
+ * for Java Flight Recorder; both are disabled unless a recording enables them.
  *
  * Important methods:
  *     start              - starts the main loop of the front end and runs a command based on user input
@@ -26,8 +44,12 @@ import java.util.ArrayList;
  *     execute_create     - runs the create command
  *     execute_delete     - runs the delete command
  *     execute_return     - runs the return command
+ *     execute_hold       - runs the hold command
+ *     execute_confirm    - runs the confirm command
+ *     execute_list       - runs the list command
+ *     execute_search     - runs the search command
  *     end_session        - dumps all transactions to a file and clears the transactions list
- *     find_current_event - searches for an event from current_events and returns it
+ *     find_current_event - finds an event from current_events by name and returns it
  *
  *     Note: this class will not throw exceptions, and in general attempts to re-prompt the user for input instead of
  *     crashing horribly.
@@ -36,12 +58,19 @@ public class QuibbleFE {
     private Account current_user;
     private String current_command;
     private int session_num;
-    private ArrayList<Event> current_events;
+    private EventCatalog current_events;
     private ArrayList<Transaction> transactions;
+    private PendingSessions pending;   // sessions written but not yet in the current events file
+    private TicketHolds holds;
     private QuibbleIO qio;
+    private String events_file;   // the current events file, or null if the front end started without one
+    private boolean mapped;       // true if the current events file is memory-mapped rather than loaded
+    private long generation;      // generation of the current events file the events were read from
+    private CommandEvent command_event = new CommandEvent();   // the command being run (see CommandEvent)
 
     // List of valid FE commands
-    private String[] commands = {"logout", "sell", "return", "create", "add", "delete", "login"};
+    private String[] commands = {"logout", "sell", "return", "create", "add", "delete", "login", "hold", "confirm",
+            "list", "search"};
 
     /**
      * Default constructor for the front end. Used for testing when no current events file is supplied.
@@ -49,8 +78,10 @@ public class QuibbleFE {
     public QuibbleFE() {
         qio = new QuibbleIO();
         current_user = new Account();
-        current_events = new ArrayList<>();
+        current_events = new LoadedEventCatalog();
         transactions = new ArrayList<>();
+        pending = new PendingSessions();
+        holds = new TicketHolds(TicketHolds.DEFAULT_SECONDS);
         current_command = "";
         session_num = qio.get_session_num();
     }
@@ -61,14 +92,37 @@ public class QuibbleFE {
      * @param events_file
      */
     public QuibbleFE(String events_file) {
+        this(events_file, false);
+    }
+
+    /**
+     * Two parameter constructor for the front end. Initializes all attributes to default and opens the current events
+     * file. If mapped is true, the file is memory-mapped and an event is only read when a command needs it, so the
+     * front end starts in constant time however large the file is. Otherwise every event is loaded.
+     * @param events_file - the current events file
+     * @param mapped - true to map the file instead of loading every event
+     */
+    public QuibbleFE(String events_file_, boolean mapped_) {
         qio = new QuibbleIO();
         current_user = new Account();
-        current_events = qio.read_events_file(events_file);
+        events_file = events_file_;
+        mapped = mapped_;
+        open_events();
         transactions = new ArrayList<>();
+        pending = new PendingSessions();
+        holds = new TicketHolds(TicketHolds.DEFAULT_SECONDS);
         current_command = "";
         session_num = qio.get_session_num();
     }
 
+    /**
+     * Sets the time a hold lasts before its tickets are released.
+     * @param seconds - the time in seconds
+     */
+    public void set_hold_seconds(int seconds) {
+        holds = new TicketHolds(seconds);
+    }
+
     /**
      * Main loop for front end. Waits for a user to enter a command and modifies the front end state based on the
      * command. Exits upon reading EOF (ctrl+D).
@@ -78,17 +132,19 @@ public class QuibbleFE {
         while (true) {
             String command = qio.get_user_input("Enter command:");
             current_command = command;
+            command_event = CommandEvent.begin(command);
+            holds.expire();
 
             if (!is_valid_command(command)) {
-                System.err.println(QuibbleFEError.invalid_command(command));
+                reject(QuibbleFEError.invalid_command(command));
             }
             else if (!current_user.is_logged_in() && !command.equals("login")) {
                 // already logged out
                 if (command.equals("logout")) {
-                    System.err.println("You have already logged out.");
+                    reject("You have already logged out.");
                 }
                 else {
-                    System.err.println(QuibbleFEError.command_without_login_error(command));
+                    reject(QuibbleFEError.command_without_login_error(command));
                 }
             }
             else if (command.equals("login")) {
@@ -112,26 +168,155 @@ public class QuibbleFE {
             else if (command.equals("return")) {
                 execute_return();
             }
+            else if (command.equals("hold")) {
+                execute_hold();
+            }
+            else if (command.equals("confirm")) {
+                execute_confirm();
+            }
+            else if (command.equals("list")) {
+                execute_list();
+            }
+            else if (command.equals("search")) {
+                execute_search();
+            }
+            command_event.commit();
+        }
+    }
+
+    /**
+     * Prints the error message a command is rejected with, and records it as the outcome of the command.
+     * @param message - the error message
+     */
+    private void reject(String message) {
+        System.err.println(message);
+        command_event.outcome = message;
+    }
+
+    /**
+     * Reads or maps the current events file. The generation is read first, so that if the back end replaces the file
+     * in between, the next refresh applies a delta the events already have, which does no harm.
+     */
+    private void open_events() {
+        generation = CurrentEventsDelta.read_generation(events_file);
+        if (mapped) {
+            current_events = new MappedEventCatalog(events_file);
+        }
+        else {
+            // the file is stamped before it is read, in case it is replaced, so no newer sidecar is taken for it
+            CurrentEventsStamp stamp = CurrentEventsStamp.of(events_file);
+            NameDictionary names = new NameDictionary();
+            ArrayList<Event> events = qio.read_events_file(events_file, names);
+            current_events = new LoadedEventCatalog(events, names, CurrentEventsDates.read(events_file, stamp),
+                    CurrentEventsIndex.read(events_file, stamp));
+        }
+    }
+
+    /**
+     * Brings current_events up to date with the newest current events file, applying the back end's delta if the
+     * events are one generation behind, or reading the file again if they are further behind. The sessions that are
+     * not yet in the newer file are then applied again to the events they changed (see PendingSessions).
+     */
+    public void refresh_events() {
+        if (events_file == null) {
+            return;
+        }
+        long latest = CurrentEventsDelta.read_generation(events_file);
+        if (latest == generation) {
+            return;
+        }
+        CurrentEventsDelta delta = latest == generation + 1 ? CurrentEventsDelta.read(events_file) : null;
+        if (delta == null || delta.get_generation() != generation + 1) {
+            open_events();
+            pending.settle(events_file, generation);
+            reapply_pending(null);
+            return;
+        }
+
+        HashSet<String> changed = new HashSet<>();
+        for (int i = 0; i < delta.get_count(); ++i) {
+            String event_name = delta.get_name(i);
+            Event found = find_current_event(event_name);
+            if (delta.get_kind(i) == CurrentEventsDelta.DELETED) {
+                if (found != null && !found.is_deleted()) {
+                    try {
+                        found.mark_deleted();
+                    }
+                    catch (EventException e) {
+                        // not reached, the event is not deleted
+                    }
+                }
+            }
+            else if (found == null || found.is_deleted()) {
+                current_events.replace(new Event(event_name, delta.get_tickets(i)));
+            }
+            else {
+                found.set_ticket_number(delta.get_tickets(i));
+            }
+            changed.add(event_name);
+        }
+        generation = delta.get_generation();
+        pending.settle(events_file, generation);
+        reapply_pending(changed);
+    }
+
+    /**
+     * Applies the transactions of the pending sessions again, after the events they changed have been read from a
+     * newer current events file. The events are changed directly, without the checks the commands make, since the
+     * transactions were accepted when they were made.
+     * @param changed - the names of the events read again, or null if every event was
+     */
+    private void reapply_pending(HashSet<String> changed) {
+        for (Transaction t : pending) {
+            Event event = t.get_event();
+            if (changed != null && !changed.contains(event.get_event_name())) {
+                continue;
+            }
+            Event found = find_current_event(event.get_event_name());
+            String command = commands[t.get_code()];
+            if (command.equals("create")) {
+                if (found == null) {
+                    current_events.add(event.clone());
+                }
+            }
+            else if (found == null || found.is_deleted()) {
+                // the event is gone, so there is nothing left to change
+            }
+            else if (command.equals("delete")) {
+                try {
+                    found.mark_deleted();
+                }
+                catch (EventException e) {
+                    // not reached, the event is not deleted
+                }
+            }
+            else if (command.equals("sell")) {
+                found.set_ticket_number(Math.max(0, found.get_num_tickets() - event.get_num_tickets()));
+            }
+            else if (command.equals("return") || command.equals("add")) {
+                found.set_ticket_number(Math.min(Event.MAX_TICKETS, found.get_num_tickets() + event.get_num_tickets()));
+            }
         }
     }
 
     /**
      * Method to execute the login command. Modifies the current_user object if user input is valid, and does nothing
-     * otherwise.
+     * otherwise. Before a session starts, the events are brought up to date with the back end (see refresh_events).
      */
     public void execute_login() {
         // are we already logged in?
         if (current_user.is_logged_in()) {
-            System.err.println(QuibbleFEError.already_logged_in_error(current_user.toString()));
+            reject(QuibbleFEError.already_logged_in_error(current_user.toString()));
             return;
         }
+        refresh_events();
 
         String user = qio.get_user_input("Username:");
         try {
             current_user.login(user);
         }
         catch (AccountException e) {
-            System.err.println(e.getMessage());
+            reject(e.getMessage());
         }
     }
 
@@ -145,10 +330,13 @@ public class QuibbleFE {
             current_user.logout();
         }
         catch (AccountException e) {
-            System.err.println(e.getMessage());
+            reject(e.getMessage());
             return;
         }
 
+        // holds belong to the session
+        holds.release_all();
+
         // add the logout transaction to the list and dump the list to the transaction file
         transactions.add(new Transaction(get_current_command_id()));
         end_session();
@@ -161,31 +349,33 @@ public class QuibbleFE {
     public void execute_create() {
         // command requires elevated privileges
         if (!current_user.is_admin()) {
-            System.err.println(QuibbleFEError.insufficient_privileges_error(current_command));
+            reject(QuibbleFEError.insufficient_privileges_error(current_command));
             return;
         }
 
         String event_name = qio.get_user_event_name("Event name:");
-        Event event = new Event(event_name);
-        event.set_session_num(session_num);
+        command_event.event_name = event_name;
 
         // does the event already exist in the system?
-        if (current_events.contains(event)) {
-            Event found = find_current_event(event);
+        Event found = find_current_event(event_name);
+        if (found != null) {
             if (found.is_deleted()) {
                 // Event has been deleted, report this
-                System.err.println(QuibbleFEError.event_deleted(event_name));
+                reject(QuibbleFEError.event_deleted(event_name));
             }
             else {
                 // Event already exists, report this
-                System.err.println(QuibbleFEError.event_already_exists(event_name, current_command));
+                reject(QuibbleFEError.event_already_exists(event_name, current_command));
             }
             return;
         }
 
+        Event event = new Event(event_name);
+        event.set_session_num(session_num);
         String event_date = qio.get_user_event_date("Event date:");
         event.set_event_date(event_date);
         int event_tickets = qio.get_user_event_tickets("Number of tickets:");
+        command_event.tickets = event_tickets;
         event.set_ticket_number(event_tickets);
 
         // add the event and transaction to each list
@@ -200,24 +390,24 @@ public class QuibbleFE {
     public void execute_delete() {
         // command requires elevated privileges
         if (!current_user.is_admin()) {
-            System.err.println(QuibbleFEError.insufficient_privileges_error(current_command));
+            reject(QuibbleFEError.insufficient_privileges_error(current_command));
             return;
         }
 
         String event_name = qio.get_user_event_name("Event name:");
-        Event event = new Event(event_name);
+        command_event.event_name = event_name;
 
-        if (!current_events.contains(event)) {
-            System.err.println(QuibbleFEError.event_not_found(event_name, current_command));
+        Event found = find_current_event(event_name);
+        if (found == null) {
+            reject(QuibbleFEError.event_not_found(event_name, current_command));
             return;
         }
 
-        Event found = find_current_event(event);
         try {
             found.mark_deleted();
         }
         catch (EventException e) {
-            System.err.println(e.getMessage());
+            reject(e.getMessage());
             return;
         }
 
@@ -230,21 +420,22 @@ public class QuibbleFE {
      */
     public void execute_sell() {
         String event_name = qio.get_user_event_name("Event name:");
-        Event event = new Event(event_name);
+        command_event.event_name = event_name;
 
-        if (!current_events.contains(event)) {
-            System.err.println(QuibbleFEError.event_not_found(event_name, current_command));
+        Event found = find_current_event(event_name);
+        if (found == null) {
+            reject(QuibbleFEError.event_not_found(event_name, current_command));
             return;
         }
 
-        Event found = find_current_event(event);
         int tickets = qio.get_user_event_tickets("Number of tickets:");
+        command_event.tickets = tickets;
 
         try {
             found.sell_tickets(tickets, current_user);
         }
         catch (EventException e) {
-            System.err.println(e.getMessage());
+            reject(e.getMessage());
             return;
         }
 
@@ -258,36 +449,37 @@ public class QuibbleFE {
     public void execute_add() {
         // command requires elevated privileges
         if (!current_user.is_admin()) {
-            System.err.println(QuibbleFEError.insufficient_privileges_error(current_command));
+            reject(QuibbleFEError.insufficient_privileges_error(current_command));
             return;
         }
 
         String event_name = qio.get_user_event_name("Event name:");
-        Event event = new Event(event_name);
+        command_event.event_name = event_name;
 
-        if (!current_events.contains(event)) {
-            System.err.println(QuibbleFEError.event_not_found(event_name, current_command));
+        Event found = find_current_event(event_name);
+        if (found == null) {
+            reject(QuibbleFEError.event_not_found(event_name, current_command));
             return;
         }
 
-        Event found = find_current_event(event);
         if (found.is_deleted()) {
-            System.err.println(QuibbleFEError.event_deleted(event_name));
+            reject(QuibbleFEError.event_deleted(event_name));
             return;
         }
 
         if (session_num == found.get_session_num()) {
-            System.err.println("You cannot add tickets to an event that has been created in the same session.");
+            reject("You cannot add tickets to an event that has been created in the same session.");
             return;
         }
 
         int tickets = qio.get_user_event_tickets("Number of tickets:");
+        command_event.tickets = tickets;
 
         try {
             found.add_tickets(tickets);
         }
         catch (EventException e) {
-            System.err.println(e.getMessage());
+            reject(e.getMessage());
             return;
         }
 
@@ -300,27 +492,127 @@ public class QuibbleFE {
      */
     public void execute_return() {
         String event_name = qio.get_user_event_name("Event name:");
-        Event event = new Event(event_name);
+        command_event.event_name = event_name;
 
-        if (!current_events.contains(event)) {
-            System.err.println(QuibbleFEError.event_not_found(event_name, current_command));
+        Event found = find_current_event(event_name);
+        if (found == null) {
+            reject(QuibbleFEError.event_not_found(event_name, current_command));
             return;
         }
 
-        Event found = find_current_event(event);
         int tickets = qio.get_user_event_tickets("Number of tickets:");
+        command_event.tickets = tickets;
 
         try {
             found.return_tickets(tickets, current_user);
         }
         catch (EventException e) {
-            System.err.println(e.getMessage());
+            reject(e.getMessage());
             return;
         }
 
         transactions.add(new Transaction(get_current_command_id(), found.get_event_name(), found.get_event_date(), tickets));
     }
 
+    /**
+     * Method to execute the hold command. Reserves a user specified number of tickets of an existing event in
+     * current_events, so that they cannot be sold until the hold is confirmed or expires. Nothing is written to the
+     * transaction file.
+     */
+    public void execute_hold() {
+        String event_name = qio.get_user_event_name("Event name:");
+        command_event.event_name = event_name;
+
+        Event found = find_current_event(event_name);
+        if (found == null) {
+            reject(QuibbleFEError.event_not_found(event_name, current_command));
+            return;
+        }
+
+        int tickets = qio.get_user_event_tickets("Number of tickets:");
+        command_event.tickets = tickets;
+
+        TicketHolds.Hold hold;
+        try {
+            hold = holds.hold(found, tickets, current_user);
+        }
+        catch (EventException e) {
+            reject(e.getMessage());
+            return;
+        }
+
+        qio.print_line("Hold number: " + hold.get_number());
+    }
+
+    /**
+     * Method to execute the confirm command. Sells the tickets of a hold made in this session that has not expired,
+     * adding a sell transaction to the transaction list.
+     */
+    public void execute_confirm() {
+        String number = qio.get_user_input("Hold number:");
+
+        TicketHolds.Hold hold = null;
+        if (number.matches("\\d{1,9}")) {
+            hold = holds.take(Integer.parseInt(number));
+        }
+        if (hold == null) {
+            reject(QuibbleFEError.hold_not_found(number, current_command));
+            return;
+        }
+
+        Event found = hold.get_event();
+        command_event.event_name = found.get_event_name();
+        command_event.tickets = hold.get_tickets();
+        try {
+            found.sell_tickets(hold.get_tickets(), current_user);
+        }
+        catch (EventException e) {
+            reject(e.getMessage());
+            return;
+        }
+
+        transactions.add(new Transaction(get_command_id("sell"), found.get_event_name(), found.get_event_date(),
+                hold.get_tickets()));
+    }
+
+    /**
+     * Method to execute the list command. Prints the events dated within a user specified range of dates, in date
+     * order, with the tickets each has left. Nothing is written to the transaction file.
+     */
+    public void execute_list() {
+        String from_date = qio.get_user_event_date("From date:");
+        String to_date = qio.get_user_event_date("To date:");
+        if (to_date.compareTo(from_date) < 0) {
+            reject(QuibbleFEError.invalid_date_range(from_date, to_date, current_command));
+            return;
+        }
+
+        int[] count = new int[1];
+        boolean known = current_events.list(Integer.parseInt(from_date), Integer.parseInt(to_date), (event, date) -> {
+            qio.print_line(String.format("%06d %-20s %05d", date, event.get_event_name(), event.get_num_tickets()));
+            ++count[0];
+        });
+        if (!known) {
+            reject(QuibbleFEError.dates_not_available(current_command));
+            return;
+        }
+        qio.print_line("Events listed: " + count[0]);
+    }
+
+    /**
+     * Method to execute the search command. Prints the events whose names start with a user specified prefix, in name
+     * order, with the tickets each has left. Nothing is written to the transaction file.
+     */
+    public void execute_search() {
+        String prefix = qio.get_user_event_name("Event name prefix:");
+        int[] count = new int[1];
+        current_events.search(prefix, event -> {
+            qio.print_line(String.format("%-20s %05d", event.get_event_name(), event.get_num_tickets()));
+            ++count[0];
+        });
+        qio.print_line("Events found: " + count[0]);
+    }
+
     /**
      * Returns true if a command is a valid Quibble command, false otherwise.
      * @param command - the name of a command
@@ -336,13 +628,12 @@ public class QuibbleFE {
     }
 
     /**
-     * Returns a reference to the specified event in the current_events list. Assumes that the event is in the list.
-     * @param to_find - the event to search for in the list
-     * @return a reference to the event in the current events list
+     * Returns a reference to the first event in current_events with the given name, including deleted events.
+     * @param event_name - the name of the event to search for
+     * @return a reference to the event in current_events, or null if there is no such event
      */
-    public Event find_current_event(Event to_find) {
-        int i = current_events.indexOf(to_find);
-        return current_events.get(i);
+    public Event find_current_event(String event_name) {
+        return current_events.find(event_name);
     }
 
     /**
@@ -350,8 +641,17 @@ public class QuibbleFE {
      * @return command id of a command
      */
     public int get_current_command_id() {
+        return get_command_id(current_command);
+    }
+
+    /**
+     * Gets the command id of a Quibble command for use with transaction files.
+     * @param command - the name of a command
+     * @return command id of the command
+     */
+    public int get_command_id(String command) {
         for (int i = 0; i < commands.length; ++i) {
-            if (current_command.equals(commands[i])) {
+            if (command.equals(commands[i])) {
                 return i;
             }
         }
@@ -359,11 +659,13 @@ public class QuibbleFE {
     }
 
     /**
-     * Ends a front end session, writing all transactions to a file and clearing the current list of transactions.
+     * Ends a front end session, writing all transactions to a file and clearing the current list of transactions. The
+     * session is kept as pending until the back end has applied it (see PendingSessions).
      */
     public void end_session() {
         String t_file = qio.create_transaction_file(session_num);
         qio.write_transactions(t_file, transactions);
+        pending.add(transactions, generation);
         ++session_num;
         transactions.clear();
     }
@@ -151,4 +151,39 @@ public class QuibbleFEError {
 
     }
 
+
+    /**
+     * Generates an error message informing the user that a hold does not exist, or no longer exists because it has
+     * been confirmed or has expired.
+     *
+     * @param hold - the hold number entered by the user
+     * @param command_name - the name of the command running
+     * @return a message informing the user that the hold was not found
+     */
+    public static String hold_not_found(String hold, String command_name) {
+        return base_error(command_name) + " Hold '" + hold + "' does not exist or has expired.";
+    }
+
+    /**
+     * Generates an error message informing the user that a range of dates ends before it starts.
+     *
+     * @param from_date - the first date entered by the user
+     * @param to_date - the last date entered by the user
+     * @param command_name - the name of the command running
+     * @return a message informing the user that the range of dates is empty
+     */
+    public static String invalid_date_range(String from_date, String to_date, String command_name) {
+        return base_error(command_name) + " The date '" + to_date + "' is before the date '" + from_date + "'.";
+    }
+
+    /**
+     * Generates an error message informing the user that the dates of the events are not known, because the back end
+     * has not written them next to the current events file.
+     *
+     * @param command_name - the name of the command running
+     * @return a message informing the user that events cannot be listed by date
+     */
+    public static String dates_not_available(String command_name) {
+        return base_error(command_name) + " The dates of the events are not available.";
+    }
 }
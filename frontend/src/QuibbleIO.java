@@ -42,6 +42,15 @@ public class QuibbleIO {
         return input;
     }
 
+    /**
+     * Prints a line of output for the user, such as a result of a command.
+     *
+     * @param line - the line to print
+     */
+    public void print_line(String line) {
+        System.out.println(line);
+    }
+
     /**
      * Returns the user date, which must be specified in YYMMDD format. Loops until the user enters a valid date.
      * @param prompt - a terminal prompt
@@ -147,19 +156,29 @@ public class QuibbleIO {
     }
 
     /**
-     * Parses the events file into a list of Event objects. Assumes that the file is properly formatted.
+     * Parses the events file into a list of Event objects. Assumes that the file is properly formatted. Event names
+     * are added to the name dictionary, and each event uses the dictionary's string for its name.
      * @param events_file - the events file to read
+     * @param names - the dictionary to add event names to
      * @return the list of events
      */
-    public ArrayList<Event> read_events_file(String events_file) {
+    public ArrayList<Event> read_events_file(String events_file, NameDictionary names) {
         ArrayList<Event> events = new ArrayList<>();
         try (BufferedReader br = new BufferedReader(new FileReader(events_file))) {
             String line;
             while ((line = br.readLine()) != null) {
                 // Event names should be 20 characters long
-                String event_name = line.substring(0, 20).trim();
+                int name_start = 0;
+                int name_end = 20;
+                while (name_start < name_end && line.charAt(name_start) <= ' ') {
+                    ++name_start;
+                }
+                while (name_end > name_start && line.charAt(name_end - 1) <= ' ') {
+                    --name_end;
+                }
+                String event_name = names.get_name(names.intern(line, name_start, name_end));
                 // ticket numbers should be 5 characters long
-                int ticket_num = Integer.parseInt(line.substring(21));
+                int ticket_num = Integer.parseInt(line, 21, line.length(), 10);
                 Event event = new Event(event_name, ticket_num);
                 events.add(event);
             }
@@ -196,6 +215,8 @@ public class QuibbleIO {
      * @param transactions - lost of transactions
      */
     public void write_transactions(String t_file, ArrayList<Transaction> transactions) {
+        SessionFlushEvent event = new SessionFlushEvent();
+        event.begin();
         File file = new File(t_file);
         try {
             FileWriter fw = new FileWriter(file);
@@ -208,6 +229,9 @@ public class QuibbleIO {
             System.err.println("[INTERNAL ERROR] Unable to write transactions to file '" + t_file + "': " + e.getMessage());
             System.exit(1);
         }
+        event.file = t_file;
+        event.transactions = transactions.size();
+        event.commit();
     }
 
     /**
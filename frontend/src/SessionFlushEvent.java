@@ -0,0 +1,26 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event for writing the transactions of a session to its transaction file on logout (see
+ * QuibbleIO.write_transactions). The event's duration is the time the write took. The event is disabled unless a
+ * recording enables it (see CommandEvent).
+ */
+@Name("quibble.SessionFlush")
+@Label("Session Flush")
+@Category({"Quibble", "Front End"})
+@Description("The transactions of a session written to its transaction file")
+@Enabled(false)
+public class SessionFlushEvent extends jdk.jfr.Event {
+    @Label("Transaction File")
+    public String file;
+
+    @Label("Transactions")
+    public int transactions;
+}
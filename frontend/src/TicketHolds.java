@@ -0,0 +1,123 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.util.HashMap;
+
+/**
+ * Tickets held for a customer while a sale is finalised. A hold reserves tickets of an Event, so that they cannot be
+ * sold or held again, for a limited time; it is then either confirmed, which sells the tickets, or released when it
+ * expires. Holds are numbered from 1 in the order they are made, and expire through a TimingWheel, so that checking
+ * for expired holds before each command costs the same however many holds there are.
+ *
+ * Nothing is written to the transaction file for a hold; a confirmed hold is written as a sell.
+ */
+public class TicketHolds {
+    public static final int DEFAULT_SECONDS = 300;   // time a hold lasts unless the front end is told otherwise
+    private static final int SLOTS = 512;            // one turn of the wheel is longer than the default hold
+    private static final long TICK = 1000;           // milliseconds in a tick of the wheel
+
+    private TimingWheel<Hold> wheel;
+    private HashMap<Integer, Hold> holds;   // holds that have not been confirmed, released or expired, by number
+    private long seconds;
+    private int next_number;
+
+    /**
+     * A number of tickets held for an event.
+     */
+    public static class Hold {
+        private final int number;
+        private final Event event;
+        private final int tickets;
+        private TimingWheel.Timer<Hold> timer;
+
+        private Hold(int number_, Event event_, int tickets_) {
+            number = number_;
+            event = event_;
+            tickets = tickets_;
+        }
+
+        public int get_number() {
+            return number;
+        }
+
+        public Event get_event() {
+            return event;
+        }
+
+        public int get_tickets() {
+            return tickets;
+        }
+    }
+
+    /**
+     * One parameter constructor for the holds.
+     * @param seconds_ - the time each hold lasts, in seconds
+     */
+    public TicketHolds(int seconds_) {
+        seconds = seconds_;
+        wheel = new TimingWheel<>(SLOTS, TICK, System.currentTimeMillis());
+        holds = new HashMap<>();
+        next_number = 1;
+    }
+
+    /**
+     * Holds tickets for an event. The tickets must be available to the user, as for a sell.
+     *
+     * @param event - the event
+     * @param tickets - the number of tickets to hold
+     * @param current_user - the current user
+     * @return the hold
+     * @throws EventException - if the tickets cannot be held
+     */
+    public Hold hold(Event event, int tickets, Account current_user) throws EventException {
+        event.hold_tickets(tickets, current_user);
+        Hold hold = new Hold(next_number++, event, tickets);
+        hold.timer = wheel.schedule(hold, seconds * 1000, System.currentTimeMillis());
+        holds.put(hold.number, hold);
+        return hold;
+    }
+
+    /**
+     * Ends a hold, so that it can be confirmed. The held tickets are released; the caller sells them.
+     *
+     * @param number - the number of the hold
+     * @return the hold, or null if there is no such hold or it has expired
+     */
+    public Hold take(int number) {
+        Hold hold = holds.remove(number);
+        if (hold != null) {
+            wheel.cancel(hold.timer);
+            hold.event.release_tickets(hold.tickets);
+        }
+        return hold;
+    }
+
+    /**
+     * Releases the tickets of every hold that has expired.
+     */
+    public void expire() {
+        wheel.advance(System.currentTimeMillis(), hold -> {
+            holds.remove(hold.number);
+            hold.event.release_tickets(hold.tickets);
+        });
+    }
+
+    /**
+     * Releases the tickets of every hold, such as when the user who made them logs out.
+     */
+    public void release_all() {
+        for (Hold hold : holds.values()) {
+            wheel.cancel(hold.timer);
+            hold.event.release_tickets(hold.tickets);
+        }
+        holds.clear();
+    }
+
+    /**
+     * Returns the number of holds that have not been confirmed, released or expired.
+     * @return the number of holds
+     */
+    public int size() {
+        return holds.size();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * @author Dan Lawrence, Jerry Mak
+ */
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel, used to expire ticket holds. Time is divided into ticks, and each timer is kept in the slot of
+ * the tick it expires on, in a ring of slots that is reused every time the wheel goes round. Scheduling and cancelling
+ * a timer take constant time, and advancing the wheel by one tick only looks at the timers in one slot, so the cost of
+ * a tick does not grow with the number of timers, only with the number due around that tick. Timers further away than
+ * one turn of the wheel wait in their slot until the wheel comes round to their tick.
+ *
+ * The wheel has no thread of its own: it is advanced to the current time by its owner, and every timer that has
+ * expired by then is handed back in one call. A wheel that has not been advanced for more than a turn sweeps each slot
+ * once instead of replaying every tick it missed.
+ *
+ * @param <T> - the item a timer is set for
+ */
+public class TimingWheel<T> {
+    private Timer<T>[] slots;   // the first timer in each slot, or null
+    private int mask;
+    private long tick;          // milliseconds in a tick
+    private long origin;        // time of tick 0, in milliseconds
+    private long current;       // the last tick the wheel has been advanced to
+    private int size;
+
+    /**
+     * A timer scheduled on the wheel. Timers in a slot form a doubly linked list, so any timer can be cancelled in
+     * constant time.
+     *
+     * @param <T> - the item the timer is set for
+     */
+    public static class Timer<T> {
+        private final T item;
+        private final long deadline;   // the tick the timer expires on
+        private Timer<T> previous;
+        private Timer<T> next;
+        private boolean scheduled;
+
+        private Timer(T item_, long deadline_) {
+            item = item_;
+            deadline = deadline_;
+        }
+
+        public T get_item() {
+            return item;
+        }
+    }
+
+    /**
+     * Three parameter constructor for the wheel.
+     *
+     * @param slots_ - the number of slots, rounded up to a power of two
+     * @param tick_ - the length of a tick in milliseconds
+     * @param now - the current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(int slots_, long tick_, long now) {
+        slots = (Timer<T>[]) new Timer<?>[Integer.highestOneBit(Math.max(1, slots_ - 1)) << 1];
+        mask = slots.length - 1;
+        tick = tick_;
+        origin = now;
+    }
+
+    /**
+     * Sets a timer for an item. The item expires on the first tick at or after the delay, but never before the next
+     * tick.
+     *
+     * @param item - the item
+     * @param delay - the time until the item expires, in milliseconds
+     * @param now - the current time in milliseconds
+     * @return the timer, which can be cancelled
+     */
+    public Timer<T> schedule(T item, long delay, long now) {
+        long deadline = Math.max(current + 1, (now - origin + delay + tick - 1) / tick);
+        Timer<T> timer = new Timer<>(item, deadline);
+        int slot = (int) (deadline & mask);
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        slots[slot] = timer;
+        timer.scheduled = true;
+        ++size;
+        return timer;
+    }
+
+    /**
+     * Cancels a timer, so its item does not expire.
+     * @param timer - the timer
+     * @return false if the timer had already expired or been cancelled
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (!timer.scheduled) {
+            return false;
+        }
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the current time, handing every item whose timer has expired to a consumer.
+     *
+     * @param now - the current time in milliseconds
+     * @param expired - called with each expired item
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long target = (now - origin) / tick;
+        if (target <= current) {
+            return;
+        }
+        long ticks = Math.min(target - current, slots.length);
+        for (long t = target - ticks + 1; t <= target; ++t) {
+            Timer<T> timer = slots[(int) (t & mask)];
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                if (timer.deadline <= target) {
+                    unlink(timer);
+                    expired.accept(timer.item);
+                }
+                timer = next;
+            }
+        }
+        current = target;
+    }
+
+    /**
+     * Returns the number of timers that have neither expired nor been cancelled.
+     * @return the number of timers
+     */
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        }
+        else {
+            slots[(int) (timer.deadline & mask)] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+        --size;
+    }
+}
@@ -6,7 +6,8 @@
  * Public class for representing a transaction. Encapsulates a transaction code and an event associated with the
  * transaction.
  *
- * Contains only one method, toString, which is used mainly to print the transaction to the current transaction file.
+ * Its toString method is used mainly to print the transaction to the current transaction file; the front end also
+ * reads back the code and event of a transaction it has written to apply it again (see PendingSessions).
  */
 public class Transaction {
     private int t_code;
@@ -38,6 +39,22 @@ public class Transaction {
         event = new Event(event_name, event_date, tickets);
     }
 
+    /**
+     * Gets the transaction code.
+     * @return the index of the command in the front end's list of commands
+     */
+    public int get_code() {
+        return t_code;
+    }
+
+    /**
+     * Gets the event the transaction was made on.
+     * @return the event, with the number of tickets of the transaction
+     */
+    public Event get_event() {
+        return event;
+    }
+
     /**
      * Displays the transaction as a 36 character string, with each field padded properly.
      * @return